@@ -0,0 +1,297 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import org.mastodon.RefPool;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Edits of many objects of the data model used by the {@link Mamut} gateway.
+ * <p>
+ * The objects to edit are first collected as pool ids, then the edits are
+ * applied in a single pass over these ids. This way the objects to edit can
+ * come from the matches of a selection expression without materializing
+ * them in a collection of objects, and each object is visited only once.
+ * <p>
+ * The graph listeners are not paused: the undo recorder and the
+ * spatio-temporal index of the model are graph listeners that need one event
+ * per added or removed object, and resuming paused graph listeners would
+ * discard the undo history. Removals therefore still cost one graph event
+ * per object.
+ * <p>
+ * None of these methods acquire the graph lock nor set an undo point. This is
+ * the responsibility of the caller.
+ */
+final class BulkModelEdits
+{
+
+	private BulkModelEdits()
+	{}
+
+	/**
+	 * Removes the spots and links with the specified ids from the model.
+	 * <p>
+	 * Links that have their source or target spot among the spots to remove
+	 * are removed along with the spot. The caller must hold the graph write
+	 * lock.
+	 *
+	 * @param model
+	 *            the model to edit.
+	 * @param vertexIds
+	 *            the ids of the spots to remove.
+	 * @param edgeIds
+	 *            the ids of the links to remove.
+	 * @return the number of spots and the number of links removed, as a
+	 *         2-element array.
+	 */
+	static int[] removeIds( final Model model, final TIntList vertexIds, final TIntList edgeIds )
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final TIntHashSet vertices = new TIntHashSet( vertexIds );
+		final TIntArrayList edges = new TIntArrayList( edgeIds.size() );
+		final Spot ref = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		try
+		{
+			for ( int i = 0; i < edgeIds.size(); i++ )
+			{
+				final Link e = idmap.getEdge( edgeIds.get( i ), eref );
+				if ( vertices.contains( idmap.getVertexId( e.getSource( ref ) ) )
+						|| vertices.contains( idmap.getVertexId( e.getTarget( ref ) ) ) )
+					continue;
+				edges.add( edgeIds.get( i ) );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			graph.releaseRef( eref );
+		}
+		return remove( graph, idmap, vertexIds, edges );
+	}
+
+	/**
+	 * Returns the ids, among the specified ones, that are not the ids of spots
+	 * currently in the graph. Each id is checked in the spot pool, without
+	 * iterating over the graph. The caller should hold the graph read lock.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param vertexIds
+	 *            the ids to check.
+	 * @return the invalid ids, in the order of the specified ones.
+	 */
+	static TIntArrayList missingVertices( final ModelGraph graph, final TIntList vertexIds )
+	{
+		final Spot ref = graph.vertexRef();
+		try
+		{
+			return missing( graph.vertices().getRefPool(), vertexIds, ref );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+
+	/**
+	 * Returns the ids, among the specified ones, that are not the ids of links
+	 * currently in the graph. Each id is checked in the link pool, without
+	 * iterating over the graph. The caller should hold the graph read lock.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param edgeIds
+	 *            the ids to check.
+	 * @return the invalid ids, in the order of the specified ones.
+	 */
+	static TIntArrayList missingEdges( final ModelGraph graph, final TIntList edgeIds )
+	{
+		final Link ref = graph.edgeRef();
+		try
+		{
+			return missing( graph.edges().getRefPool(), edgeIds, ref );
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+
+	private static < O > TIntArrayList missing( final RefPool< O > pool, final TIntList ids, final O ref )
+	{
+		final TIntArrayList missing = new TIntArrayList();
+		for ( int i = 0; i < ids.size(); i++ )
+		{
+			final int id = ids.get( i );
+			if ( id < 0 || pool.getObjectIfExists( id, ref ) == null )
+				missing.add( id );
+		}
+		return missing;
+	}
+
+	/**
+	 * Assigns a tag to the spots and links with the specified ids.
+	 * <p>
+	 * The tags are written one object at a time, with one
+	 * {@link ObjTagMap#set(Object, Object)} per object: there is no bulk write
+	 * in the tag maps. The tag-set model listeners are paused meanwhile, so
+	 * the only notification is the one that
+	 * {@link TagSetModel#resumeListeners()} sends when they are resumed. The
+	 * ids are not checked: the caller must pass ids of objects in the graph,
+	 * and should hold the graph read lock.
+	 *
+	 * @param model
+	 *            the model to edit.
+	 * @param tagSet
+	 *            the tag-set.
+	 * @param tag
+	 *            the tag to assign, or <code>null</code> to remove the tags
+	 *            of this tag-set from the objects.
+	 * @param vertexIds
+	 *            the ids of the spots to tag.
+	 * @param edgeIds
+	 *            the ids of the links to tag.
+	 */
+	static void tag( final Model model, final TagSet tagSet, final Tag tag, final TIntList vertexIds, final TIntList edgeIds )
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+		final ObjTagMap< Spot, Tag > vertexTags = tagSetModel.getVertexTags().tags( tagSet );
+		final ObjTagMap< Link, Tag > edgeTags = tagSetModel.getEdgeTags().tags( tagSet );
+		final Spot vref = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		tagSetModel.pauseListeners();
+		try
+		{
+			for ( int i = 0; i < vertexIds.size(); i++ )
+			{
+				final Spot v = idmap.getVertex( vertexIds.get( i ), vref );
+				if ( tag == null )
+					vertexTags.remove( v );
+				else
+					vertexTags.set( v, tag );
+			}
+			for ( int i = 0; i < edgeIds.size(); i++ )
+			{
+				final Link e = idmap.getEdge( edgeIds.get( i ), eref );
+				if ( tag == null )
+					edgeTags.remove( e );
+				else
+					edgeTags.set( e, tag );
+			}
+		}
+		finally
+		{
+			tagSetModel.resumeListeners();
+			graph.releaseRef( vref );
+			graph.releaseRef( eref );
+		}
+	}
+
+	/**
+	 * Removes all the spots and links of the graph, one spot at a time along
+	 * with its links. The caller must hold the graph write lock.
+	 *
+	 * @param model
+	 *            the model to clear.
+	 * @return the number of spots and the number of links removed, as a
+	 *         2-element array.
+	 */
+	static int[] clear( final Model model )
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final TIntArrayList vertexIds = new TIntArrayList( graph.vertices().size() );
+		for ( final Spot v : graph.vertices() )
+			vertexIds.add( idmap.getVertexId( v ) );
+		return remove( graph, idmap, vertexIds, new TIntArrayList( 0 ) );
+	}
+
+	/**
+	 * Removes the spots and links with the specified ids from the graph, in
+	 * one pass. Links are removed first. The caller must hold the graph write
+	 * lock.
+	 *
+	 * @param graph
+	 *            the graph to edit.
+	 * @param idmap
+	 *            the id bimap of the graph.
+	 * @param vertexIds
+	 *            the ids of the spots to remove.
+	 * @param edgeIds
+	 *            the ids of the links to remove. Must not contain links
+	 *            incident to one of the spots to remove.
+	 * @return the number of spots and the number of links removed, as a
+	 *         2-element array.
+	 */
+	static int[] remove( final ModelGraph graph, final GraphIdBimap< Spot, Link > idmap, final TIntList vertexIds, final TIntList edgeIds )
+	{
+		int nLinks = 0;
+		int nSpots = 0;
+		final Spot vref = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		try
+		{
+			for ( int i = 0; i < edgeIds.size(); i++ )
+			{
+				graph.remove( idmap.getEdge( edgeIds.get( i ), eref ) );
+				nLinks++;
+			}
+
+			for ( int i = 0; i < vertexIds.size(); i++ )
+			{
+				final Spot v = idmap.getVertex( vertexIds.get( i ), vref );
+				nLinks += v.edges().size();
+				graph.remove( v );
+				nSpots++;
+			}
+		}
+		finally
+		{
+			graph.releaseRef( vref );
+			graph.releaseRef( eref );
+		}
+		return new int[] { nSpots, nLinks };
+	}
+}
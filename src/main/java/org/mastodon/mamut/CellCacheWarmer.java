@@ -0,0 +1,368 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatioTemporalIndex;
+import org.mastodon.views.bdv.SharedBigDataViewerData;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.util.IntervalIndexer;
+
+/**
+ * Loads the image cells that feature computers will read, in block order.
+ * <p>
+ * Computers that read image data around spots visit the spots in their own
+ * order, and every spot triggers random reads in the cell cache of the
+ * image data. On compressed or remote data, cells are then loaded, evicted
+ * and decompressed again many times. This class groups the spots of each
+ * timepoint by source and by the cells their bounding box overlaps, and
+ * loads each of these cells once, sorted by cell index and in parallel over
+ * cells, so that the computers find them in the cache.
+ * <p>
+ * Only sources backed by a cell image at full resolution are warmed. The BDV
+ * cache keeps cells in soft references, so the loaded cells are held by an
+ * {@link ImageCache}, which must have a memory budget. Warming stops at the
+ * first timepoint whose cells, added to the cells loaded before, exceed the
+ * budget: loading more would evict the cells loaded first before the
+ * computers read them.
+ * <p>
+ * The computers themselves are not changed: they still visit the spots in
+ * their own order, but find the cells they read already loaded. The number
+ * of reads of each cell is kept, so that the reads of the cells the cache
+ * still holds once the computers are done can be counted with
+ * {@link Result#heldReads(ImageCache)}.
+ */
+final class CellCacheWarmer
+{
+
+	/**
+	 * What warming did.
+	 */
+	static final class Result
+	{
+
+		/**
+		 * The cells loaded for one source at one timepoint, sorted by index,
+		 * with the number of spot reads of each.
+		 */
+		private static final class Block
+		{
+
+			private final int setupId;
+
+			private final int timepoint;
+
+			private final long[] cells;
+
+			private final int[] reads;
+
+			private Block( final int setupId, final int timepoint, final long[] cells, final int[] reads )
+			{
+				this.setupId = setupId;
+				this.timepoint = timepoint;
+				this.cells = cells;
+				this.reads = reads;
+			}
+		}
+
+		/** Number of spots whose cells were loaded, once per source. */
+		final long spots;
+
+		/** Number of cell reads of the spots, counting each spot separately. */
+		final long reads;
+
+		/** Number of distinct cells loaded. */
+		final long cells;
+
+		/**
+		 * First timepoint that was not warmed because the budget was
+		 * reached, or -1 if all the timepoints were warmed.
+		 */
+		final int stoppedAt;
+
+		private final List< Block > blocks;
+
+		private Result( final long spots, final long reads, final long cells, final int stoppedAt, final List< Block > blocks )
+		{
+			this.spots = spots;
+			this.reads = reads;
+			this.cells = cells;
+			this.stoppedAt = stoppedAt;
+			this.blocks = blocks;
+		}
+
+		/**
+		 * Returns the fraction of cell reads that are for a cell already read
+		 * for another spot. This is computed from the spot geometry, not
+		 * measured in the cache: it is the fraction of reads that would hit
+		 * the cache if it held all the cells until the computers are done.
+		 *
+		 * @return the cell reuse ratio, from 0 to 1.
+		 */
+		double cellReuseRatio()
+		{
+			return reads == 0 ? 0. : 1. - ( double ) cells / reads;
+		}
+
+		/**
+		 * Returns the number of cell reads of the spots that are for a cell
+		 * the specified cache still holds. Called after the computers ran,
+		 * this is a lower bound of the reads that found their cell in the
+		 * cache, unless cells were added to the cache meanwhile, by
+		 * prefetching for instance: cells are only evicted when others are
+		 * added, so the cells still held were held during the whole
+		 * computation.
+		 *
+		 * @param cache
+		 *            the cache the cells were loaded in.
+		 * @return the number of reads of held cells.
+		 */
+		long heldReads( final ImageCache cache )
+		{
+			long held = 0;
+			for ( final Block block : blocks )
+				for ( int i = 0; i < block.cells.length; i++ )
+					if ( cache.holds( block.setupId, block.timepoint, block.cells[ i ] ) )
+						held += block.reads[ i ];
+			return held;
+		}
+	}
+
+	private CellCacheWarmer()
+	{}
+
+	/**
+	 * Loads the cells overlapped by the spots of the model, timepoint after
+	 * timepoint, until the memory budget of the cache is reached.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param imageData
+	 *            the image data to read.
+	 * @param numThreads
+	 *            the number of cells to load concurrently.
+	 * @param cache
+	 *            the cache that holds the loaded cells, with a memory budget.
+	 *            Cells it already holds are not loaded again.
+	 * @return what was loaded.
+	 * @throws InterruptedException
+	 *             if interrupted while loading cells.
+	 * @throws ExecutionException
+	 *             if loading a cell failed.
+	 */
+	static Result warm( final Model model, final SharedBigDataViewerData imageData, final int numThreads, final ImageCache cache ) throws InterruptedException, ExecutionException
+	{
+		final List< SourceAndConverter< ? > > sources = imageData.getSources();
+		final SpatioTemporalIndex< Spot > index = model.getSpatioTemporalIndex();
+		final ForkJoinPool pool = new ForkJoinPool( Math.max( 1, numThreads ) );
+		long nSpots = 0;
+		long nReads = 0;
+		long nCells = 0;
+		long nBytes = 0;
+		final long budget = cache.getMemoryBudget();
+		final List< Result.Block > blocks = new ArrayList<>();
+		try
+		{
+			for ( int t = 0; t < imageData.getNumTimepoints(); t++ )
+			{
+				// Cells of this timepoint, for all sources.
+				final List< Runnable > loads = new ArrayList<>();
+				final List< Result.Block > tBlocks = new ArrayList<>();
+				long tSpots = 0;
+				long tReads = 0;
+				long tCells = 0;
+				long tBytes = 0;
+				for ( int setupId = 0; setupId < sources.size(); setupId++ )
+				{
+					final Source< ? > source = sources.get( setupId ).getSpimSource();
+					if ( !source.isPresent( t ) )
+						continue;
+					final RandomAccessibleInterval< ? > rai = source.getSource( t, 0 );
+					if ( !( rai instanceof AbstractCellImg ) )
+						continue;
+					final AbstractCellImg< ?, ?, ?, ? > img = ( AbstractCellImg< ?, ?, ?, ? > ) rai;
+					final AffineTransform3D transform = new AffineTransform3D();
+					source.getSourceTransform( t, 0, transform );
+
+					// Distinct cells overlapped by the spots of this timepoint.
+					final CellGrid grid = img.getCellGrid();
+					final int n = Math.min( 3, grid.numDimensions() );
+					final long[] gridDims = new long[ grid.numDimensions() ];
+					grid.getGridDimensions( gridDims );
+					final int[] cellDims = new int[ grid.numDimensions() ];
+					grid.getCellDimensions( cellDims );
+					final TLongIntHashMap cells = new TLongIntHashMap();
+					final double[] pos = new double[ 3 ];
+					final double[] corner = new double[ 3 ];
+					final double[] pixel = new double[ 3 ];
+					final long[] min = new long[ grid.numDimensions() ];
+					final long[] max = new long[ grid.numDimensions() ];
+					final long[] cell = new long[ grid.numDimensions() ];
+					index.readLock().lock();
+					try
+					{
+						for ( final Spot spot : index.getSpatialIndex( t ) )
+						{
+							spot.localize( pos );
+							final double r = Math.sqrt( spot.getBoundingSphereRadiusSquared() );
+							cellRange( transform, pos, r, n, cellDims, gridDims, corner, pixel, min, max );
+							tReads += addCells( min, max, gridDims, cell, cells );
+							tSpots++;
+						}
+					}
+					finally
+					{
+						index.readLock().unlock();
+					}
+
+					// To load in index order, in parallel.
+					final long[] sorted = cells.keys();
+					Arrays.sort( sorted );
+					final int[] reads = new int[ sorted.length ];
+					for ( int i = 0; i < sorted.length; i++ )
+						reads[ i ] = cells.get( sorted[ i ] );
+					tBlocks.add( new Result.Block( setupId, t, sorted, reads ) );
+					tCells += sorted.length;
+					final int setup = setupId;
+					final int tp = t;
+					final long cellBytes = ImageCache.cellBytes( img );
+					tBytes += sorted.length * cellBytes;
+					final int nTasks = Math.max( 1, Math.min( sorted.length, 4 * pool.getParallelism() ) );
+					for ( int task = 0; task < nTasks; task++ )
+					{
+						final int from = ( int ) ( ( long ) sorted.length * task / nTasks );
+						final int to = ( int ) ( ( long ) sorted.length * ( task + 1 ) / nTasks );
+						loads.add( () -> load( img, gridDims, sorted, from, to, cache, setup, tp, cellBytes ) );
+					}
+				}
+				if ( nBytes + tBytes > budget )
+					return new Result( nSpots, nReads, nCells, t, blocks );
+				nBytes += tBytes;
+				nSpots += tSpots;
+				nReads += tReads;
+				nCells += tCells;
+				blocks.addAll( tBlocks );
+				final List< Future< ? > > futures = new ArrayList<>( loads.size() );
+				for ( final Runnable load : loads )
+					futures.add( pool.submit( load ) );
+				for ( final Future< ? > future : futures )
+					future.get();
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return new Result( nSpots, nReads, nCells, -1, blocks );
+	}
+
+	/**
+	 * Computes the range of cells overlapped by the bounding box of a sphere,
+	 * in source pixel coordinates.
+	 */
+	private static void cellRange( final AffineTransform3D transform, final double[] pos, final double r, final int n, final int[] cellDims, final long[] gridDims, final double[] corner, final double[] pixel, final long[] min, final long[] max )
+	{
+		for ( int d = 0; d < min.length; d++ )
+		{
+			min[ d ] = d < n ? Long.MAX_VALUE : 0;
+			max[ d ] = d < n ? Long.MIN_VALUE : 0;
+		}
+		for ( int c = 0; c < 8; c++ )
+		{
+			for ( int d = 0; d < 3; d++ )
+				corner[ d ] = pos[ d ] + ( ( ( c >> d ) & 1 ) == 0 ? -r : r );
+			transform.applyInverse( pixel, corner );
+			for ( int d = 0; d < n; d++ )
+			{
+				final long cell = ( long ) Math.floor( Math.round( pixel[ d ] ) / ( double ) cellDims[ d ] );
+				min[ d ] = Math.min( min[ d ], cell );
+				max[ d ] = Math.max( max[ d ], cell );
+			}
+		}
+		for ( int d = 0; d < n; d++ )
+		{
+			min[ d ] = Math.max( 0, Math.min( gridDims[ d ] - 1, min[ d ] ) );
+			max[ d ] = Math.max( 0, Math.min( gridDims[ d ] - 1, max[ d ] ) );
+		}
+	}
+
+	/**
+	 * Counts a read of the cells in the specified range, by index, and returns
+	 * how many cells the range has.
+	 */
+	private static long addCells( final long[] min, final long[] max, final long[] gridDims, final long[] cell, final TLongIntHashMap cells )
+	{
+		long count = 0;
+		System.arraycopy( min, 0, cell, 0, min.length );
+		while ( true )
+		{
+			cells.adjustOrPutValue( IntervalIndexer.positionToIndex( cell, gridDims ), 1, 1 );
+			count++;
+			int d = 0;
+			while ( d < cell.length && ++cell[ d ] > max[ d ] )
+			{
+				cell[ d ] = min[ d ];
+				d++;
+			}
+			if ( d == cell.length )
+				return count;
+		}
+	}
+
+	private static void load( final AbstractCellImg< ?, ?, ?, ? > img, final long[] gridDims, final long[] indices, final int from, final int to,
+			final ImageCache cache, final int setupId, final int timepoint, final long cellBytes )
+	{
+		final RandomAccess< ? > ra = img.getCells().randomAccess();
+		final long[] cell = new long[ gridDims.length ];
+		for ( int i = from; i < to; i++ )
+		{
+			if ( cache.contains( setupId, timepoint, indices[ i ] ) )
+				continue;
+			IntervalIndexer.indexToPosition( indices[ i ], gridDims, cell );
+			ra.setPosition( cell );
+			cache.hold( setupId, timepoint, indices[ i ], ra.get(), cellBytes );
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes primitive values to a file channel through a bounded direct buffer,
+ * so that memory use does not depend on the size of the output.
+ */
+final class ChannelWriter implements AutoCloseable
+{
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer;
+
+	private long written;
+
+	ChannelWriter( final File file, final ByteOrder order ) throws IOException
+	{
+		this.channel = FileChannel.open( file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		this.buffer = ByteBuffer.allocateDirect( CHUNK_SIZE ).order( order );
+	}
+
+	/**
+	 * Returns the buffer, with at least the specified number of bytes
+	 * remaining. The caller must write at most this number of bytes to it.
+	 *
+	 * @param bytes
+	 *            the number of bytes to write, at most 1 MB.
+	 * @return the buffer.
+	 * @throws IOException
+	 *             if flushing the buffer fails.
+	 */
+	ByteBuffer reserve( final int bytes ) throws IOException
+	{
+		if ( buffer.remaining() < bytes )
+			flush();
+		return buffer;
+	}
+
+	void putInt( final int v ) throws IOException
+	{
+		reserve( 4 ).putInt( v );
+	}
+
+	void putDouble( final double v ) throws IOException
+	{
+		reserve( 8 ).putDouble( v );
+	}
+
+	void put( final byte[] bytes ) throws IOException
+	{
+		int from = 0;
+		while ( from < bytes.length )
+		{
+			if ( !buffer.hasRemaining() )
+				flush();
+			final int n = Math.min( buffer.remaining(), bytes.length - from );
+			buffer.put( bytes, from, n );
+			from += n;
+		}
+	}
+
+	/**
+	 * Writes a string as its length in bytes followed by its UTF-8 bytes.
+	 *
+	 * @param str
+	 *            the string, <code>null</code> is written as an empty string.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	void putString( final String str ) throws IOException
+	{
+		final byte[] bytes = str == null ? new byte[ 0 ] : str.getBytes( StandardCharsets.UTF_8 );
+		putInt( bytes.length );
+		put( bytes );
+	}
+
+	/**
+	 * Returns the number of bytes written so far, including the ones still
+	 * buffered.
+	 *
+	 * @return the number of bytes.
+	 */
+	long written()
+	{
+		return written + buffer.position();
+	}
+
+	private void flush() throws IOException
+	{
+		buffer.flip();
+		written += buffer.remaining();
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+		buffer.clear();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			flush();
+		}
+		finally
+		{
+			channel.close();
+		}
+	}
+}
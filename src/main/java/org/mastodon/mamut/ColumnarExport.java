@@ -0,0 +1,313 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Exports the spots and links of a model, with their feature values and tags,
+ * to a columnar binary file.
+ * <p>
+ * The file is little-endian. Strings are written as their length in bytes
+ * (int) followed by their UTF-8 bytes. The layout is:
+ * 
+ * <pre>
+ * int     magic ('MCOL')
+ * int     version
+ * int     number of tables (2: "spots" then "links")
+ * for each table:
+ *   string  table name
+ *   int     number of rows
+ *   int     number of columns
+ *   for each column:
+ *     string  column name
+ *     string  units
+ *     byte    type (1: int, 2: double, 3: dictionary, 4: string)
+ *     if dictionary: int number of entries, followed by the entries (strings)
+ *   for each column, all the rows:
+ *     int     for int columns
+ *     double  for double columns, NaN when a feature value is not set
+ *     int     for dictionary columns: index in the dictionary, -1 for none
+ *     string  for string columns
+ * </pre>
+ * 
+ * The spot table has the columns <code>id</code>, <code>label</code>,
+ * <code>frame</code>, <code>x</code>, <code>y</code>, <code>z</code>,
+ * <code>radius</code>, then one column per spot feature projection and one
+ * dictionary column per tag set. The link table has the columns
+ * <code>id</code>, <code>source</code> and <code>target</code>, then one
+ * column per link feature projection and one dictionary column per tag set.
+ * The <code>source</code> and <code>target</code> columns are row indices in
+ * the spot table. The <code>id</code> columns are the ids of the objects in
+ * the model graph.
+ */
+final class ColumnarExport
+{
+
+	private static final int MAGIC = 0x4D434F4C;
+
+	private static final int VERSION = 1;
+
+	private static final byte INT = 1;
+
+	private static final byte DOUBLE = 2;
+
+	private static final byte DICTIONARY = 3;
+
+	private static final byte STRING = 4;
+
+	private ColumnarExport()
+	{}
+
+	/**
+	 * A column of the table, written row by row.
+	 */
+	private static abstract class Column< O >
+	{
+
+		final String name;
+
+		final String units;
+
+		final byte type;
+
+		final List< String > dictionary;
+
+		Column( final String name, final String units, final byte type )
+		{
+			this( name, units, type, null );
+		}
+
+		Column( final String name, final String units, final byte type, final List< String > dictionary )
+		{
+			this.name = name;
+			this.units = units == null ? "" : units;
+			this.type = type;
+			this.dictionary = dictionary;
+		}
+
+		abstract void write( O o, ChannelWriter out ) throws IOException;
+	}
+
+	/**
+	 * Exports the model to the specified file. The graph read lock is held
+	 * during the export.
+	 *
+	 * @param model
+	 *            the model to export.
+	 * @param file
+	 *            the file to write.
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	static long export( final Model model, final File file ) throws IOException
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		final Spot ref = graph.vertexRef();
+		lock.readLock().lock();
+		try (final ChannelWriter out = new ChannelWriter( file, ByteOrder.LITTLE_ENDIAN ))
+		{
+			out.putInt( MAGIC );
+			out.putInt( VERSION );
+			out.putInt( 2 );
+
+			// Spot rows, for the source and target columns of links.
+			final TIntIntHashMap rows = new TIntIntHashMap( 2 * graph.vertices().size(), 0.5f, -1, -1 );
+			for ( final Spot spot : graph.vertices() )
+				rows.put( idmap.getVertexId( spot ), rows.size() );
+
+			final String spaceUnits = model.getSpaceUnits();
+			final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+			final List< TagSet > tagSets = tagSetModel.getTagSetStructure().getTagSets();
+
+			final List< Column< Spot > > spotColumns = new ArrayList<>();
+			spotColumns.add( new Column< Spot >( "id", "", INT )
+			{
+				@Override
+				void write( final Spot spot, final ChannelWriter out ) throws IOException
+				{
+					out.putInt( idmap.getVertexId( spot ) );
+				}
+			} );
+			spotColumns.add( new Column< Spot >( "label", "", STRING )
+			{
+				@Override
+				void write( final Spot spot, final ChannelWriter out ) throws IOException
+				{
+					out.putString( spot.getLabel() );
+				}
+			} );
+			spotColumns.add( new Column< Spot >( "frame", model.getTimeUnits(), INT )
+			{
+				@Override
+				void write( final Spot spot, final ChannelWriter out ) throws IOException
+				{
+					out.putInt( spot.getTimepoint() );
+				}
+			} );
+			final String[] axes = { "x", "y", "z" };
+			for ( int d = 0; d < 3; d++ )
+			{
+				final int dim = d;
+				spotColumns.add( new Column< Spot >( axes[ d ], spaceUnits, DOUBLE )
+				{
+					@Override
+					void write( final Spot spot, final ChannelWriter out ) throws IOException
+					{
+						out.putDouble( spot.getDoublePosition( dim ) );
+					}
+				} );
+			}
+			spotColumns.add( new Column< Spot >( "radius", spaceUnits, DOUBLE )
+			{
+				@Override
+				void write( final Spot spot, final ChannelWriter out ) throws IOException
+				{
+					out.putDouble( Math.sqrt( spot.getBoundingSphereRadiusSquared() ) );
+				}
+			} );
+			addFeatureColumns( spotColumns, FeatureColumns.of( model.getFeatureModel(), Spot.class ) );
+			for ( final TagSet tagSet : tagSets )
+				spotColumns.add( tagColumn( tagSet, tagSetModel.getVertexTags().tags( tagSet ) ) );
+
+			final List< Column< Link > > linkColumns = new ArrayList<>();
+			linkColumns.add( new Column< Link >( "id", "", INT )
+			{
+				@Override
+				void write( final Link link, final ChannelWriter out ) throws IOException
+				{
+					out.putInt( idmap.getEdgeId( link ) );
+				}
+			} );
+			linkColumns.add( new Column< Link >( "source", "", INT )
+			{
+				@Override
+				void write( final Link link, final ChannelWriter out ) throws IOException
+				{
+					out.putInt( rows.get( idmap.getVertexId( link.getSource( ref ) ) ) );
+				}
+			} );
+			linkColumns.add( new Column< Link >( "target", "", INT )
+			{
+				@Override
+				void write( final Link link, final ChannelWriter out ) throws IOException
+				{
+					out.putInt( rows.get( idmap.getVertexId( link.getTarget( ref ) ) ) );
+				}
+			} );
+			addFeatureColumns( linkColumns, FeatureColumns.of( model.getFeatureModel(), Link.class ) );
+			for ( final TagSet tagSet : tagSets )
+				linkColumns.add( tagColumn( tagSet, tagSetModel.getEdgeTags().tags( tagSet ) ) );
+
+			writeTable( "spots", graph.vertices(), graph.vertices().size(), spotColumns, out );
+			writeTable( "links", graph.edges(), graph.edges().size(), linkColumns, out );
+			return out.written();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+			graph.releaseRef( ref );
+		}
+	}
+
+	private static < O > void addFeatureColumns( final List< Column< O > > columns, final List< FeatureColumns.Column< O > > features )
+	{
+		for ( final FeatureColumns.Column< O > feature : features )
+			columns.add( new Column< O >( feature.name, feature.units, DOUBLE )
+			{
+				@Override
+				void write( final O o, final ChannelWriter out ) throws IOException
+				{
+					out.putDouble( feature.value( o ) );
+				}
+			} );
+	}
+
+	private static < O > Column< O > tagColumn( final TagSet tagSet, final ObjTagMap< O, Tag > tags )
+	{
+		final List< String > dictionary = new ArrayList<>();
+		final TIntIntHashMap codes = new TIntIntHashMap( 10, 0.5f, -1, -1 );
+		for ( final Tag tag : tagSet.getTags() )
+		{
+			codes.put( tag.id(), dictionary.size() );
+			dictionary.add( tag.label() );
+		}
+		return new Column< O >( tagSet.getName(), "", DICTIONARY, dictionary )
+		{
+			@Override
+			void write( final O o, final ChannelWriter out ) throws IOException
+			{
+				final Tag tag = tags.get( o );
+				out.putInt( tag == null ? -1 : codes.get( tag.id() ) );
+			}
+		};
+	}
+
+	private static < O > void writeTable( final String name, final Iterable< O > objects, final int nRows, final List< Column< O > > columns, final ChannelWriter out ) throws IOException
+	{
+		out.putString( name );
+		out.putInt( nRows );
+		out.putInt( columns.size() );
+		for ( final Column< O > column : columns )
+		{
+			out.putString( column.name );
+			out.putString( column.units );
+			out.reserve( 1 ).put( column.type );
+			if ( column.type == DICTIONARY )
+			{
+				out.putInt( column.dictionary.size() );
+				for ( final String entry : column.dictionary )
+					out.putString( entry );
+			}
+		}
+		for ( final Column< O > column : columns )
+			for ( final O o : objects )
+				column.write( o, out );
+	}
+}
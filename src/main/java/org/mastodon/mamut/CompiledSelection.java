@@ -0,0 +1,1234 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mastodon.feature.Feature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.kdtree.ClipConvexPolytope;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.mastodon.spatial.SpatialIndex;
+import org.mastodon.spatial.SpatioTemporalIndex;
+
+import gnu.trove.list.array.TIntArrayList;
+import net.imglib2.algorithm.kdtree.ConvexPolytope;
+import net.imglib2.algorithm.kdtree.HyperPlane;
+
+/**
+ * A selection expression compiled to a tree of predicates, that can be
+ * evaluated repeatedly and in parallel.
+ * <p>
+ * Only a subset of the selection language is compiled: feature comparisons
+ * (<code>vertexFeature( 'name' ) &gt; 10</code>,
+ * <code>edgeFeature( 'name', 'projection' ) &lt;= 2.5</code>), tag tests
+ * (<code>vertexTag( 'tag-set', 'tag' )</code>,
+ * <code>edgeTag( 'tag-set', 'tag' )</code>), combined with <code>&amp;</code>,
+ * <code>|</code>, <code>!</code> and parentheses. Expressions using other
+ * constructs are not compiled, and must be evaluated with the
+ * {@link org.mastodon.mamut.selectioncreator.SelectionParser}.
+ * <p>
+ * Compiled expressions are cached by expression text. Features and tags are
+ * resolved against the model at each evaluation, so that recomputed features
+ * are taken into account. Evaluation collects the ids of the spots and links
+ * under the graph read lock, then tests them in chunks, with one object ref
+ * per worker. Chunks are tested in parallel only when every term of the
+ * expression is known to be safe to read from several threads: expressions
+ * with tag tests, or with features outside of a fixed list of core features,
+ * are evaluated on one thread.
+ */
+final class CompiledSelection
+{
+
+	private static final int CACHE_SIZE = 64;
+
+	private static final int CHUNK_SIZE = 1 << 14;
+
+	/** Key of the feature and projection of the spot timepoint. */
+	private static final String SPOT_FRAME = "Spot frame";
+
+	/** Key of the feature of the spot position. */
+	private static final String SPOT_POSITION = "Spot position";
+
+	/** Keys of the projections of the spot position, per dimension. */
+	private static final List< String > AXES = Arrays.asList( "X", "Y", "Z" );
+
+	/**
+	 * Keys of the features whose projections can be read from several
+	 * threads: they read the spot or link they are given, or a property map,
+	 * and not the graph through an internal ref. Other features, such as the
+	 * link source and target ids or third-party features, are tested on one
+	 * thread.
+	 */
+	private static final Set< String > PARALLEL_FEATURES = Collections.unmodifiableSet( new HashSet<>( Arrays.asList(
+			SPOT_FRAME,
+			SPOT_POSITION,
+			"Spot radius",
+			"Spot N links",
+			"Spot center intensity",
+			"Spot median intensity",
+			"Spot sum intensity",
+			"Spot intensity",
+			"Spot track ID",
+			"Track N spots",
+			"Detection quality",
+			"Link displacement",
+			"Link velocity",
+			"Link cost" ) ) );
+
+	/** Marks expressions that cannot be compiled in the cache. */
+	private static final CompiledSelection UNSUPPORTED = new CompiledSelection( null, null );
+
+	private static final Map< String, CompiledSelection > CACHE = Collections.synchronizedMap(
+			new LinkedHashMap< String, CompiledSelection >( 16, 0.75f, true )
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry( final Map.Entry< String, CompiledSelection > eldest )
+				{
+					return size() > CACHE_SIZE;
+				}
+			} );
+
+	private final String expression;
+
+	private final Node root;
+
+	private CompiledSelection( final String expression, final Node root )
+	{
+		this.expression = expression;
+		this.root = root;
+	}
+
+	/**
+	 * Returns the compiled form of the specified expression, from the cache if
+	 * it was compiled before.
+	 *
+	 * @param expression
+	 *            the selection expression.
+	 * @return the compiled expression, or <code>null</code> if the expression
+	 *         uses constructs that are not compiled, or is invalid.
+	 */
+	static CompiledSelection compile( final String expression )
+	{
+		CompiledSelection compiled = CACHE.get( expression );
+		if ( compiled == null )
+		{
+			try
+			{
+				compiled = new CompiledSelection( expression, new Parser( expression ).parse() );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				compiled = UNSUPPORTED;
+			}
+			CACHE.put( expression, compiled );
+		}
+		return compiled == UNSUPPORTED ? null : compiled;
+	}
+
+	String getExpression()
+	{
+		return expression;
+	}
+
+	/**
+	 * Returns whether this expression can match spots.
+	 *
+	 * @return <code>true</code> if this expression can match spots.
+	 */
+	boolean matchesVertices()
+	{
+		return root.vertices;
+	}
+
+	/**
+	 * Returns whether this expression can match links.
+	 *
+	 * @return <code>true</code> if this expression can match links.
+	 */
+	boolean matchesEdges()
+	{
+		return root.edges;
+	}
+
+	/**
+	 * Returns whether this expression tests tags.
+	 *
+	 * @return <code>true</code> if this expression contains tag tests.
+	 */
+	boolean usesTags()
+	{
+		return usesTags( root );
+	}
+
+	private static boolean usesTags( final Node node )
+	{
+		if ( node instanceof TagTerm )
+			return true;
+		if ( node instanceof And )
+			return usesTags( ( ( And ) node ).a ) || usesTags( ( ( And ) node ).b );
+		if ( node instanceof Or )
+			return usesTags( ( ( Or ) node ).a ) || usesTags( ( ( Or ) node ).b );
+		if ( node instanceof Not )
+			return usesTags( ( ( Not ) node ).a );
+		return false;
+	}
+
+	/**
+	 * Resolves the features and tags of this expression against the model,
+	 * to test individual objects.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return the predicate, or <code>null</code> if a feature or tag used in
+	 *         the expression cannot be found in the model.
+	 */
+	Bound bind( final Model model )
+	{
+		return root.bind( model );
+	}
+
+	/**
+	 * The ids of the spots and links matched by an expression.
+	 */
+	static final class Matches
+	{
+
+		final TIntArrayList vertices;
+
+		final TIntArrayList edges;
+
+		Matches( final TIntArrayList vertices, final TIntArrayList edges )
+		{
+			this.vertices = vertices;
+			this.edges = edges;
+		}
+	}
+
+	/**
+	 * Evaluates this expression on the specified model. The graph read lock
+	 * is held during evaluation.
+	 * <p>
+	 * If the expression restricts the spot frame to a range of timepoints
+	 * (<code>vertexFeature( 'Spot frame' ) == 25</code>, or combined with
+	 * <code>&amp;</code> to other terms), only the spots of these timepoints
+	 * are tested, taken from the spatio-temporal index of the model. If it
+	 * restricts the spot position to a box
+	 * (<code>vertexFeature( 'Spot position', 'X' ) &lt; 100</code>), the
+	 * spatial index of each timepoint is clipped with this box, and only the
+	 * spots inside are tested. Otherwise all the spots are tested.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @param maxTimepoint
+	 *            the last timepoint of the data, used to bound frame ranges
+	 *            that are open at the top. If negative, only frame ranges
+	 *            bounded on both sides use the index, and position boxes are
+	 *            used only within such a range.
+	 * @return the matches, or <code>null</code> if a feature or tag used in
+	 *         the expression cannot be found in the model.
+	 */
+	Matches evaluate( final Model model, final int numThreads, final int maxTimepoint )
+	{
+		final Bound bound = root.bind( model );
+		if ( bound == null )
+			return null;
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.readLock().lock();
+		try
+		{
+			final TIntArrayList vertexIds = root.vertices ? candidates( model, maxTimepoint ) : null;
+			TIntArrayList edgeIds = null;
+			if ( root.edges )
+			{
+				edgeIds = new TIntArrayList( graph.edges().size() );
+				for ( final Link link : graph.edges() )
+					edgeIds.add( idmap.getEdgeId( link ) );
+			}
+			return test( graph, bound, vertexIds, edgeIds, numThreads );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Evaluates this expression on the specified spots and links only. The
+	 * graph read lock is held during evaluation.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param vertexIds
+	 *            the ids of the spots to test. They must be in the graph.
+	 * @param edgeIds
+	 *            the ids of the links to test. They must be in the graph.
+	 * @param numThreads
+	 *            the number of threads to use.
+	 * @return the matching ids among the specified ones, or
+	 *         <code>null</code> if a feature or tag used in the expression
+	 *         cannot be found in the model.
+	 */
+	Matches evaluate( final Model model, final TIntArrayList vertexIds, final TIntArrayList edgeIds, final int numThreads )
+	{
+		final Bound bound = root.bind( model );
+		if ( bound == null )
+			return null;
+		final ModelGraph graph = model.getGraph();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.readLock().lock();
+		try
+		{
+			return test( graph, bound, root.vertices ? vertexIds : null, root.edges ? edgeIds : null, numThreads );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Tests the specified spots and links with a bound predicate, on several
+	 * threads if it allows it. A <code>null</code> id list is not tested.
+	 */
+	private static Matches test( final ModelGraph graph, final Bound bound, final TIntArrayList vertexIds, final TIntArrayList edgeIds, final int numThreads )
+	{
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final int threads = bound.parallel() ? numThreads : 1;
+		final TIntArrayList vertices = new TIntArrayList();
+		if ( vertexIds != null )
+		{
+			test( vertexIds, threads, vertices, () -> {
+				final Spot ref = graph.vertexRef();
+				return new Chunk()
+				{
+					@Override
+					public boolean test( final int id )
+					{
+						return bound.vertex( idmap.getVertex( id, ref ) );
+					}
+
+					@Override
+					public void close()
+					{
+						graph.releaseRef( ref );
+					}
+				};
+			} );
+		}
+		final TIntArrayList edges = new TIntArrayList();
+		if ( edgeIds != null )
+		{
+			test( edgeIds, threads, edges, () -> {
+				final Link ref = graph.edgeRef();
+				return new Chunk()
+				{
+					@Override
+					public boolean test( final int id )
+					{
+						return bound.edge( idmap.getEdge( id, ref ) );
+					}
+
+					@Override
+					public void close()
+					{
+						graph.releaseRef( ref );
+					}
+				};
+			} );
+		}
+		return new Matches( vertices, edges );
+	}
+
+	/**
+	 * Returns the ids of the spots that can match this expression: the spots
+	 * of the frame range and inside the position box it implies, or all the
+	 * spots.
+	 */
+	private TIntArrayList candidates( final Model model, final int maxTimepoint )
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final double[] range = frameRange( root );
+		final double[][] box = positionBox( root );
+		if ( range != null || ( box != null && maxTimepoint >= 0 ) )
+		{
+			final double min = range == null ? 0. : Math.max( 0., range[ 0 ] );
+			final double max = maxTimepoint < 0 ? range[ 1 ] : range == null ? maxTimepoint : Math.min( maxTimepoint, range[ 1 ] );
+			if ( max < Double.POSITIVE_INFINITY )
+			{
+				final ConvexPolytope polytope = box == null ? null : polytope( box );
+				final TIntArrayList ids = new TIntArrayList();
+				final SpatioTemporalIndex< Spot > index = model.getSpatioTemporalIndex();
+				index.readLock().lock();
+				try
+				{
+					for ( int t = ( int ) min; t <= max; t++ )
+					{
+						final SpatialIndex< Spot > spatialIndex = index.getSpatialIndex( t );
+						final Iterable< Spot > spots;
+						if ( polytope == null )
+						{
+							spots = spatialIndex;
+						}
+						else
+						{
+							final ClipConvexPolytope< Spot > clip = spatialIndex.getClipConvexPolytope();
+							clip.clip( polytope );
+							spots = clip.getInsideValues();
+						}
+						for ( final Spot spot : spots )
+							ids.add( idmap.getVertexId( spot ) );
+					}
+				}
+				finally
+				{
+					index.readLock().unlock();
+				}
+				return ids;
+			}
+		}
+		final TIntArrayList ids = new TIntArrayList( graph.vertices().size() );
+		for ( final Spot spot : graph.vertices() )
+			ids.add( idmap.getVertexId( spot ) );
+		return ids;
+	}
+
+	/**
+	 * Returns the box, <code>{ min[], max[] }</code> inclusive, outside of
+	 * which no spot can match the specified node, or <code>null</code> if the
+	 * node does not restrict positions.
+	 */
+	private static double[][] positionBox( final Node node )
+	{
+		if ( node instanceof FeatureTerm )
+		{
+			final FeatureTerm term = ( FeatureTerm ) node;
+			final int d = AXES.indexOf( term.projection );
+			if ( !term.vertices || !SPOT_POSITION.equals( term.feature ) || d < 0 )
+				return null;
+			final double[][] box = new double[ 2 ][ AXES.size() ];
+			Arrays.fill( box[ 0 ], Double.NEGATIVE_INFINITY );
+			Arrays.fill( box[ 1 ], Double.POSITIVE_INFINITY );
+			final double v = term.threshold;
+			switch ( term.comparison )
+			{
+			case EQ:
+				box[ 0 ][ d ] = v;
+				box[ 1 ][ d ] = v;
+				return box;
+			case GE:
+			case GT:
+				box[ 0 ][ d ] = v;
+				return box;
+			case LE:
+			case LT:
+				box[ 1 ][ d ] = v;
+				return box;
+			case NE:
+			default:
+				return null;
+			}
+		}
+		if ( node instanceof And )
+		{
+			final double[][] a = positionBox( ( ( And ) node ).a );
+			final double[][] b = positionBox( ( ( And ) node ).b );
+			if ( a == null )
+				return b;
+			if ( b == null )
+				return a;
+			for ( int d = 0; d < AXES.size(); d++ )
+			{
+				a[ 0 ][ d ] = Math.max( a[ 0 ][ d ], b[ 0 ][ d ] );
+				a[ 1 ][ d ] = Math.min( a[ 1 ][ d ], b[ 1 ][ d ] );
+			}
+			return a;
+		}
+		if ( node instanceof Or )
+		{
+			final double[][] a = positionBox( ( ( Or ) node ).a );
+			final double[][] b = positionBox( ( ( Or ) node ).b );
+			if ( a == null || b == null )
+				return null;
+			for ( int d = 0; d < AXES.size(); d++ )
+			{
+				a[ 0 ][ d ] = Math.min( a[ 0 ][ d ], b[ 0 ][ d ] );
+				a[ 1 ][ d ] = Math.max( a[ 1 ][ d ], b[ 1 ][ d ] );
+			}
+			return a;
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the polytope bounded by the finite sides of the specified box,
+	 * widened by one ulp so that spots on its sides are inside.
+	 */
+	private static ConvexPolytope polytope( final double[][] box )
+	{
+		final List< HyperPlane > planes = new ArrayList<>();
+		for ( int d = 0; d < AXES.size(); d++ )
+		{
+			if ( box[ 0 ][ d ] > Double.NEGATIVE_INFINITY )
+			{
+				final double[] normal = new double[ AXES.size() ];
+				normal[ d ] = 1.;
+				planes.add( new HyperPlane( normal, Math.nextDown( box[ 0 ][ d ] ) ) );
+			}
+			if ( box[ 1 ][ d ] < Double.POSITIVE_INFINITY )
+			{
+				final double[] normal = new double[ AXES.size() ];
+				normal[ d ] = -1.;
+				planes.add( new HyperPlane( normal, -Math.nextUp( box[ 1 ][ d ] ) ) );
+			}
+		}
+		return new ConvexPolytope( planes );
+	}
+
+	/**
+	 * Returns the range of timepoints, <code>{ min, max }</code> inclusive,
+	 * outside of which no spot can match the specified node, or
+	 * <code>null</code> if the node does not restrict timepoints.
+	 */
+	private static double[] frameRange( final Node node )
+	{
+		if ( node instanceof FeatureTerm )
+		{
+			final FeatureTerm term = ( FeatureTerm ) node;
+			if ( !term.vertices || !SPOT_FRAME.equals( term.feature ) || !SPOT_FRAME.equals( term.projection ) )
+				return null;
+			final double v = term.threshold;
+			switch ( term.comparison )
+			{
+			case EQ:
+				return new double[] { Math.ceil( v ), Math.floor( v ) };
+			case GE:
+				return new double[] { Math.ceil( v ), Double.POSITIVE_INFINITY };
+			case GT:
+				return new double[] { Math.floor( v ) + 1, Double.POSITIVE_INFINITY };
+			case LE:
+				return new double[] { Double.NEGATIVE_INFINITY, Math.floor( v ) };
+			case LT:
+				return new double[] { Double.NEGATIVE_INFINITY, Math.ceil( v ) - 1 };
+			case NE:
+			default:
+				return null;
+			}
+		}
+		if ( node instanceof And )
+		{
+			final double[] a = frameRange( ( ( And ) node ).a );
+			final double[] b = frameRange( ( ( And ) node ).b );
+			if ( a == null )
+				return b;
+			if ( b == null )
+				return a;
+			return new double[] { Math.max( a[ 0 ], b[ 0 ] ), Math.min( a[ 1 ], b[ 1 ] ) };
+		}
+		if ( node instanceof Or )
+		{
+			final double[] a = frameRange( ( ( Or ) node ).a );
+			final double[] b = frameRange( ( ( Or ) node ).b );
+			if ( a == null || b == null )
+				return null;
+			return new double[] { Math.min( a[ 0 ], b[ 0 ] ), Math.max( a[ 1 ], b[ 1 ] ) };
+		}
+		return null;
+	}
+
+	/**
+	 * Replaces the content of the selection with the specified matches.
+	 *
+	 * @param matches
+	 *            the matches.
+	 * @param graph
+	 *            the graph.
+	 * @param selection
+	 *            the selection model to modify.
+	 */
+	static void select( final Matches matches, final ModelGraph graph, final SelectionModel< Spot, Link > selection )
+	{
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final Spot vref = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.readLock().lock();
+		selection.pauseListeners();
+		try
+		{
+			selection.clearSelection();
+			for ( int i = 0; i < matches.vertices.size(); i++ )
+				selection.setSelected( idmap.getVertex( matches.vertices.getQuick( i ), vref ), true );
+			for ( int i = 0; i < matches.edges.size(); i++ )
+				selection.setSelected( idmap.getEdge( matches.edges.getQuick( i ), eref ), true );
+		}
+		finally
+		{
+			selection.resumeListeners();
+			lock.readLock().unlock();
+			graph.releaseRef( vref );
+			graph.releaseRef( eref );
+		}
+	}
+
+	/*
+	 * Chunked evaluation.
+	 */
+
+	/** Tests ids of one chunk, with the refs of one worker. */
+	private interface Chunk extends AutoCloseable
+	{
+		boolean test( int id );
+
+		@Override
+		void close();
+	}
+
+	private interface ChunkFactory
+	{
+		Chunk create();
+	}
+
+	/**
+	 * Tests the ids in chunks, on the specified number of workers, and adds
+	 * the matching ids to the output in their original order.
+	 */
+	private static void test( final TIntArrayList ids, final int numThreads, final TIntArrayList out, final ChunkFactory factory )
+	{
+		final int nChunks = ( ids.size() + CHUNK_SIZE - 1 ) / CHUNK_SIZE;
+		if ( numThreads <= 1 || nChunks <= 1 )
+		{
+			try (final Chunk chunk = factory.create())
+			{
+				for ( int i = 0; i < ids.size(); i++ )
+				{
+					final int id = ids.getQuick( i );
+					if ( chunk.test( id ) )
+						out.add( id );
+				}
+			}
+			return;
+		}
+
+		final TIntArrayList[] results = new TIntArrayList[ nChunks ];
+		final AtomicInteger next = new AtomicInteger();
+		final List< Future< ? > > workers = new ArrayList<>();
+		for ( int w = 0; w < Math.min( numThreads, nChunks ); w++ )
+			workers.add( ForkJoinPool.commonPool().submit( () -> {
+				try (final Chunk chunk = factory.create())
+				{
+					int c;
+					while ( ( c = next.getAndIncrement() ) < nChunks )
+					{
+						final TIntArrayList result = new TIntArrayList();
+						final int to = Math.min( ids.size(), ( c + 1 ) * CHUNK_SIZE );
+						for ( int i = c * CHUNK_SIZE; i < to; i++ )
+						{
+							final int id = ids.getQuick( i );
+							if ( chunk.test( id ) )
+								result.add( id );
+						}
+						results[ c ] = result;
+					}
+				}
+			} ) );
+		try
+		{
+			for ( final Future< ? > worker : workers )
+				worker.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+		for ( final TIntArrayList result : results )
+			out.addAll( result );
+	}
+
+	/*
+	 * Expression tree.
+	 */
+
+	/** A predicate bound to the features and tags of a model. */
+	interface Bound
+	{
+		boolean vertex( Spot spot );
+
+		boolean edge( Link link );
+
+		/** Whether this predicate can be tested from several threads. */
+		boolean parallel();
+	}
+
+	private static abstract class Node
+	{
+
+		/** Whether this node can match vertices. */
+		final boolean vertices;
+
+		/** Whether this node can match edges. */
+		final boolean edges;
+
+		Node( final boolean vertices, final boolean edges )
+		{
+			this.vertices = vertices;
+			this.edges = edges;
+		}
+
+		/**
+		 * Resolves features and tags against the model.
+		 *
+		 * @return the bound predicate, or <code>null</code> if a feature or
+		 *         tag cannot be found.
+		 */
+		abstract Bound bind( Model model );
+	}
+
+	private enum Comparison
+	{
+		GT, GE, LT, LE, EQ, NE;
+
+		boolean test( final double a, final double b )
+		{
+			switch ( this )
+			{
+			case GT:
+				return a > b;
+			case GE:
+				return a >= b;
+			case LT:
+				return a < b;
+			case LE:
+				return a <= b;
+			case EQ:
+				return a == b;
+			case NE:
+			default:
+				return a != b;
+			}
+		}
+	}
+
+	private static final class FeatureTerm extends Node
+	{
+
+		private final String feature;
+
+		private final String projection;
+
+		private final Comparison comparison;
+
+		private final double threshold;
+
+		FeatureTerm( final boolean vertex, final String feature, final String projection, final Comparison comparison, final double threshold )
+		{
+			super( vertex, !vertex );
+			this.feature = feature;
+			this.projection = projection == null ? feature : projection;
+			this.comparison = comparison;
+			this.threshold = threshold;
+		}
+
+		@Override
+		Bound bind( final Model model )
+		{
+			if ( vertices )
+			{
+				final FeatureProjection< Spot > p = findProjection( model.getFeatureModel(), Spot.class, feature, projection );
+				if ( p == null )
+					return null;
+				return new Bound()
+				{
+					@Override
+					public boolean vertex( final Spot spot )
+					{
+						return p.isSet( spot ) && comparison.test( p.value( spot ), threshold );
+					}
+
+					@Override
+					public boolean edge( final Link link )
+					{
+						return false;
+					}
+
+					@Override
+					public boolean parallel()
+					{
+						return PARALLEL_FEATURES.contains( feature );
+					}
+				};
+			}
+			final FeatureProjection< Link > p = findProjection( model.getFeatureModel(), Link.class, feature, projection );
+			if ( p == null )
+				return null;
+			return new Bound()
+			{
+				@Override
+				public boolean vertex( final Spot spot )
+				{
+					return false;
+				}
+
+				@Override
+				public boolean edge( final Link link )
+				{
+					return p.isSet( link ) && comparison.test( p.value( link ), threshold );
+				}
+
+				@Override
+				public boolean parallel()
+				{
+					return PARALLEL_FEATURES.contains( feature );
+				}
+			};
+		}
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static < O > FeatureProjection< O > findProjection( final FeatureModel featureModel, final Class< O > target, final String feature, final String projection )
+	{
+		for ( final FeatureSpec< ?, ? > spec : featureModel.getFeatureSpecs() )
+		{
+			if ( !spec.getKey().equals( feature ) || !target.equals( spec.getTargetClass() ) )
+				continue;
+			final Feature< O > f = ( Feature< O > ) featureModel.getFeature( spec );
+			if ( f == null || f.projections() == null )
+				return null;
+			for ( final FeatureProjection< O > p : f.projections() )
+				if ( p.getKey().toString().equals( projection ) )
+					return p;
+		}
+		return null;
+	}
+
+	private static final class TagTerm extends Node
+	{
+
+		private final String tagSetName;
+
+		private final String tagLabel;
+
+		TagTerm( final boolean vertex, final String tagSetName, final String tagLabel )
+		{
+			super( vertex, !vertex );
+			this.tagSetName = tagSetName;
+			this.tagLabel = tagLabel;
+		}
+
+		@Override
+		Bound bind( final Model model )
+		{
+			for ( final TagSet tagSet : model.getTagSetModel().getTagSetStructure().getTagSets() )
+			{
+				if ( !tagSet.getName().equals( tagSetName ) )
+					continue;
+				for ( final Tag tag : tagSet.getTags() )
+				{
+					if ( !tag.label().equals( tagLabel ) )
+						continue;
+					final ObjTagMap< Spot, Tag > vertexTags = model.getTagSetModel().getVertexTags().tags( tagSet );
+					final ObjTagMap< Link, Tag > edgeTags = model.getTagSetModel().getEdgeTags().tags( tagSet );
+					return new Bound()
+					{
+						@Override
+						public boolean vertex( final Spot spot )
+						{
+							return vertices && tag.equals( vertexTags.get( spot ) );
+						}
+
+						@Override
+						public boolean edge( final Link link )
+						{
+							return edges && tag.equals( edgeTags.get( link ) );
+						}
+
+						/*
+						 * Tag maps look objects up with internal refs, they
+						 * are not safe to read from several threads.
+						 */
+						@Override
+						public boolean parallel()
+						{
+							return false;
+						}
+					};
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class And extends Node
+	{
+
+		private final Node a;
+
+		private final Node b;
+
+		And( final Node a, final Node b )
+		{
+			super( a.vertices && b.vertices, a.edges && b.edges );
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		Bound bind( final Model model )
+		{
+			final Bound ba = a.bind( model );
+			final Bound bb = b.bind( model );
+			if ( ba == null || bb == null )
+				return null;
+			return new Bound()
+			{
+				@Override
+				public boolean vertex( final Spot spot )
+				{
+					return ba.vertex( spot ) && bb.vertex( spot );
+				}
+
+				@Override
+				public boolean edge( final Link link )
+				{
+					return ba.edge( link ) && bb.edge( link );
+				}
+
+				@Override
+				public boolean parallel()
+				{
+					return ba.parallel() && bb.parallel();
+				}
+			};
+		}
+	}
+
+	private static final class Or extends Node
+	{
+
+		private final Node a;
+
+		private final Node b;
+
+		Or( final Node a, final Node b )
+		{
+			super( a.vertices || b.vertices, a.edges || b.edges );
+			this.a = a;
+			this.b = b;
+		}
+
+		@Override
+		Bound bind( final Model model )
+		{
+			final Bound ba = a.bind( model );
+			final Bound bb = b.bind( model );
+			if ( ba == null || bb == null )
+				return null;
+			return new Bound()
+			{
+				@Override
+				public boolean vertex( final Spot spot )
+				{
+					return ba.vertex( spot ) || bb.vertex( spot );
+				}
+
+				@Override
+				public boolean edge( final Link link )
+				{
+					return ba.edge( link ) || bb.edge( link );
+				}
+
+				@Override
+				public boolean parallel()
+				{
+					return ba.parallel() && bb.parallel();
+				}
+			};
+		}
+	}
+
+	private static final class Not extends Node
+	{
+
+		private final Node a;
+
+		Not( final Node a )
+		{
+			super( true, true );
+			this.a = a;
+		}
+
+		@Override
+		Bound bind( final Model model )
+		{
+			final Bound ba = a.bind( model );
+			if ( ba == null )
+				return null;
+			return new Bound()
+			{
+				@Override
+				public boolean vertex( final Spot spot )
+				{
+					return !ba.vertex( spot );
+				}
+
+				@Override
+				public boolean edge( final Link link )
+				{
+					return !ba.edge( link );
+				}
+
+				@Override
+				public boolean parallel()
+				{
+					return ba.parallel();
+				}
+			};
+		}
+	}
+
+	/*
+	 * Parser.
+	 */
+
+	/**
+	 * Recursive-descent parser for the compiled subset of the selection
+	 * language. Throws an {@link IllegalArgumentException} on anything else.
+	 */
+	private static final class Parser
+	{
+
+		private final String str;
+
+		private int pos;
+
+		Parser( final String str )
+		{
+			this.str = str;
+		}
+
+		Node parse()
+		{
+			final Node node = or();
+			skipSpaces();
+			if ( pos != str.length() )
+				throw error();
+			return node;
+		}
+
+		private Node or()
+		{
+			Node node = and();
+			while ( accept( "|" ) )
+				node = new Or( node, and() );
+			return node;
+		}
+
+		private Node and()
+		{
+			Node node = unary();
+			while ( accept( "&" ) )
+				node = new And( node, unary() );
+			return node;
+		}
+
+		private Node unary()
+		{
+			if ( accept( "!" ) )
+				return new Not( unary() );
+			if ( accept( "(" ) )
+			{
+				final Node node = or();
+				expect( ")" );
+				return node;
+			}
+			return term();
+		}
+
+		private Node term()
+		{
+			final String name = identifier();
+			final boolean vertex;
+			final boolean feature;
+			switch ( name )
+			{
+			case "vertexFeature":
+				vertex = true;
+				feature = true;
+				break;
+			case "edgeFeature":
+				vertex = false;
+				feature = true;
+				break;
+			case "vertexTag":
+				vertex = true;
+				feature = false;
+				break;
+			case "edgeTag":
+				vertex = false;
+				feature = false;
+				break;
+			default:
+				throw error();
+			}
+			expect( "(" );
+			final String first = string();
+			String second = null;
+			if ( accept( "," ) )
+				second = string();
+			expect( ")" );
+			if ( !feature )
+			{
+				if ( second == null )
+					throw error();
+				return new TagTerm( vertex, first, second );
+			}
+			return new FeatureTerm( vertex, first, second, comparison(), number() );
+		}
+
+		private Comparison comparison()
+		{
+			if ( accept( ">=" ) )
+				return Comparison.GE;
+			if ( accept( "<=" ) )
+				return Comparison.LE;
+			if ( accept( "==" ) )
+				return Comparison.EQ;
+			if ( accept( "!=" ) )
+				return Comparison.NE;
+			if ( accept( ">" ) )
+				return Comparison.GT;
+			if ( accept( "<" ) )
+				return Comparison.LT;
+			throw error();
+		}
+
+		private double number()
+		{
+			skipSpaces();
+			final int start = pos;
+			while ( pos < str.length() && "+-.0123456789eE".indexOf( str.charAt( pos ) ) >= 0 )
+				pos++;
+			try
+			{
+				return Double.parseDouble( str.substring( start, pos ) );
+			}
+			catch ( final NumberFormatException e )
+			{
+				throw error();
+			}
+		}
+
+		private String identifier()
+		{
+			skipSpaces();
+			final int start = pos;
+			while ( pos < str.length() && Character.isJavaIdentifierPart( str.charAt( pos ) ) )
+				pos++;
+			if ( start == pos )
+				throw error();
+			return str.substring( start, pos );
+		}
+
+		private String string()
+		{
+			skipSpaces();
+			if ( pos >= str.length() )
+				throw error();
+			final char quote = str.charAt( pos );
+			if ( quote != '\'' && quote != '"' )
+				throw error();
+			final int end = str.indexOf( quote, pos + 1 );
+			if ( end < 0 )
+				throw error();
+			final String s = str.substring( pos + 1, end );
+			pos = end + 1;
+			return s;
+		}
+
+		private boolean accept( final String token )
+		{
+			skipSpaces();
+			if ( !str.startsWith( token, pos ) )
+				return false;
+			pos += token.length();
+			return true;
+		}
+
+		private void expect( final String token )
+		{
+			if ( !accept( token ) )
+				throw error();
+		}
+
+		private void skipSpaces()
+		{
+			while ( pos < str.length() && Character.isWhitespace( str.charAt( pos ) ) )
+				pos++;
+		}
+
+		private IllegalArgumentException error()
+		{
+			return new IllegalArgumentException( "Cannot compile '" + str + "' at position " + pos + "." );
+		}
+	}
+}
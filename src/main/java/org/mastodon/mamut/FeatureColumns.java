@@ -0,0 +1,113 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mastodon.feature.Feature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureSpec;
+
+/**
+ * Flattens the features declared in a {@link FeatureModel} into a list of
+ * scalar columns, one per feature projection, for a given target class.
+ */
+final class FeatureColumns
+{
+
+	/**
+	 * A scalar column: one projection of one feature.
+	 *
+	 * @param <O>
+	 *            the type of objects the feature is defined for.
+	 */
+	static final class Column< O >
+	{
+
+		final String name;
+
+		final String units;
+
+		final FeatureProjection< O > projection;
+
+		private Column( final String name, final String units, final FeatureProjection< O > projection )
+		{
+			this.name = name;
+			this.units = units;
+			this.projection = projection;
+		}
+
+		/**
+		 * Returns the value of this column for the specified object, or
+		 * {@link Double#NaN} if it is not set.
+		 *
+		 * @param o
+		 *            the object.
+		 * @return the value.
+		 */
+		double value( final O o )
+		{
+			return projection.isSet( o ) ? projection.value( o ) : Double.NaN;
+		}
+	}
+
+	private FeatureColumns()
+	{}
+
+	/**
+	 * Returns the columns of all the features of the feature model that are
+	 * defined for the specified target class, in the order of the feature
+	 * specs.
+	 *
+	 * @param featureModel
+	 *            the feature model.
+	 * @param target
+	 *            the target class, <code>Spot.class</code> or
+	 *            <code>Link.class</code>.
+	 * @return a new list of columns.
+	 */
+	@SuppressWarnings( "unchecked" )
+	static < O > List< Column< O > > of( final FeatureModel featureModel, final Class< O > target )
+	{
+		final List< Column< O > > columns = new ArrayList<>();
+		for ( final FeatureSpec< ?, ? > spec : featureModel.getFeatureSpecs() )
+		{
+			if ( !target.equals( spec.getTargetClass() ) )
+				continue;
+			final Feature< O > feature = ( Feature< O > ) featureModel.getFeature( spec );
+			if ( feature == null || feature.projections() == null )
+				continue;
+			for ( final FeatureProjection< O > projection : feature.projections() )
+				columns.add( new Column<>( projection.getKey().toString(), projection.units(), projection ) );
+		}
+		return columns;
+	}
+}
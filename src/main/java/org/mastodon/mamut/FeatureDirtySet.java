@@ -0,0 +1,289 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.properties.PropertyChangeListener;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Records, for each feature computed by {@link Mamut#computeFeatures(String...)},
+ * the spots and links changed since it was last computed.
+ * <p>
+ * A spot is dirty when it is added, moved or resized. A link is dirty when it
+ * is added, or when one of its spots is dirty. When links are added or
+ * removed, the whole tracks of their spots are dirty, so that track-level
+ * values stored on spots and links are accounted for. Features that were never
+ * computed through this instance, and all features after the graph is
+ * rebuilt, are entirely dirty.
+ */
+final class FeatureDirtySet implements GraphListener< Spot, Link >
+{
+
+	/**
+	 * The number of objects of a feature to recompute and to skip, estimated
+	 * from the changes seen since it was last computed. Feature computers
+	 * decide on their own what they actually recompute.
+	 */
+	static final class Count
+	{
+
+		final int recomputed;
+
+		final int skipped;
+
+		/** Whether all the objects are recomputed. */
+		final boolean all;
+
+		private Count( final int recomputed, final int skipped, final boolean all )
+		{
+			this.recomputed = recomputed;
+			this.skipped = skipped;
+			this.all = all;
+		}
+	}
+
+	private static final class Dirty
+	{
+
+		private final TIntHashSet vertices = new TIntHashSet();
+
+		private final TIntHashSet edges = new TIntHashSet();
+
+		/** Spots whose whole track is dirty. */
+		private final TIntHashSet tracks = new TIntHashSet();
+
+		private boolean all = false;
+	}
+
+	private final Model model;
+
+	private final GraphIdBimap< Spot, Link > idmap;
+
+	private final Map< FeatureSpec< ?, ? >, Dirty > dirties = new HashMap<>();
+
+	private final PropertyChangeListener< Spot > shapeListener = spot -> touchVertex( spot );
+
+	private FeatureDirtySet( final Model model )
+	{
+		this.model = model;
+		this.idmap = model.getGraphIdBimap();
+	}
+
+	/**
+	 * Creates a dirty set for the specified model and starts listening to it.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return a new dirty set.
+	 */
+	static FeatureDirtySet attach( final Model model )
+	{
+		final FeatureDirtySet dirtySet = new FeatureDirtySet( model );
+		final ModelGraph graph = model.getGraph();
+		graph.addGraphListener( dirtySet );
+		graph.addVertexPositionListener( dirtySet.shapeListener );
+		graph.addVertexCovarianceListener( dirtySet.shapeListener );
+		return dirtySet;
+	}
+
+	/**
+	 * Stops listening to the model.
+	 */
+	void detach()
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( shapeListener );
+		graph.removeVertexCovarianceListener( shapeListener );
+	}
+
+	/**
+	 * Marks the specified features as up to date.
+	 *
+	 * @param featureSpecs
+	 *            the specs of the features that were computed.
+	 */
+	synchronized void computed( final Collection< FeatureSpec< ?, ? > > featureSpecs )
+	{
+		for ( final FeatureSpec< ?, ? > spec : featureSpecs )
+			dirties.put( spec, new Dirty() );
+	}
+
+	/**
+	 * Counts the objects of a feature that are out of sync. Must be called
+	 * with the graph read lock held.
+	 *
+	 * @param spec
+	 *            the feature spec.
+	 * @param all
+	 *            if <code>true</code>, all the objects are counted as dirty.
+	 * @param vertices
+	 *            receives the ids of the dirty spots, unless all of them are.
+	 * @param edges
+	 *            receives the ids of the dirty links, unless all of them are.
+	 * @return the number of objects to recompute and to skip.
+	 */
+	synchronized Count count( final FeatureSpec< ?, ? > spec, final boolean all, final TIntHashSet vertices, final TIntHashSet edges )
+	{
+		final ModelGraph graph = model.getGraph();
+		final boolean spots = spec.getTargetClass().equals( Spot.class );
+		final int total = spots ? graph.vertices().size() : graph.edges().size();
+		final Dirty dirty = dirties.get( spec );
+		if ( all || dirty == null || dirty.all )
+			return new Count( total, 0, true );
+
+		final TIntHashSet dv = new TIntHashSet( dirty.vertices );
+		final TIntHashSet de = new TIntHashSet( dirty.edges );
+		final Spot vref = graph.vertexRef();
+		final Spot vref2 = graph.vertexRef();
+		try
+		{
+			// Expand to the tracks of the spots whose links changed.
+			final TIntArrayList stack = new TIntArrayList( dirty.tracks.toArray() );
+			final TIntHashSet visited = new TIntHashSet( dirty.tracks );
+			while ( !stack.isEmpty() )
+			{
+				final int id = stack.removeAt( stack.size() - 1 );
+				dv.add( id );
+				final Spot spot = idmap.getVertex( id, vref );
+				for ( final Link link : spot.edges() )
+				{
+					final int other = idmap.getVertexId( link.getSource( vref2 ) ) == id
+							? idmap.getVertexId( link.getTarget( vref2 ) )
+							: idmap.getVertexId( link.getSource( vref2 ) );
+					if ( visited.add( other ) )
+						stack.add( other );
+				}
+			}
+			// Links of dirty spots.
+			dv.forEach( id -> {
+				for ( final Link link : idmap.getVertex( id, vref ).edges() )
+					de.add( idmap.getEdgeId( link ) );
+				return true;
+			} );
+		}
+		finally
+		{
+			graph.releaseRef( vref );
+			graph.releaseRef( vref2 );
+		}
+		vertices.addAll( dv );
+		edges.addAll( de );
+		final int recomputed = spots ? dv.size() : de.size();
+		return new Count( recomputed, total - recomputed, false );
+	}
+
+	private synchronized void touchVertex( final Spot spot )
+	{
+		final int id = idmap.getVertexId( spot );
+		for ( final Dirty dirty : dirties.values() )
+			dirty.vertices.add( id );
+	}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		for ( final Dirty dirty : dirties.values() )
+		{
+			dirty.all = true;
+			dirty.vertices.clear();
+			dirty.edges.clear();
+			dirty.tracks.clear();
+		}
+	}
+
+	@Override
+	public synchronized void vertexAdded( final Spot spot )
+	{
+		touchVertex( spot );
+	}
+
+	@Override
+	public synchronized void vertexRemoved( final Spot spot )
+	{
+		final int id = idmap.getVertexId( spot );
+		for ( final Dirty dirty : dirties.values() )
+		{
+			dirty.vertices.remove( id );
+			dirty.tracks.remove( id );
+		}
+	}
+
+	@Override
+	public synchronized void edgeAdded( final Link link )
+	{
+		final int id = idmap.getEdgeId( link );
+		for ( final Dirty dirty : dirties.values() )
+			dirty.edges.add( id );
+		touchTracks( link );
+	}
+
+	@Override
+	public synchronized void edgeRemoved( final Link link )
+	{
+		final int id = idmap.getEdgeId( link );
+		for ( final Dirty dirty : dirties.values() )
+			dirty.edges.remove( id );
+		touchTracks( link );
+	}
+
+	/** The tracks of the source and target spots changed. */
+	private void touchTracks( final Link link )
+	{
+		final ModelGraph graph = model.getGraph();
+		final Spot ref = graph.vertexRef();
+		try
+		{
+			final int source = idmap.getVertexId( link.getSource( ref ) );
+			final int target = idmap.getVertexId( link.getTarget( ref ) );
+			for ( final Dirty dirty : dirties.values() )
+			{
+				dirty.tracks.add( source );
+				dirty.tracks.add( target );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+}
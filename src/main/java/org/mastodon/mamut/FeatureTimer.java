@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mastodon.feature.Feature;
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.feature.FeatureSpecsService;
+import org.mastodon.mamut.feature.MamutFeatureComputer;
+import org.mastodon.mamut.feature.MamutFeatureComputerService;
+import org.mastodon.views.bdv.SharedBigDataViewerData;
+import org.scijava.Context;
+import org.scijava.command.CommandInfo;
+import org.scijava.command.CommandService;
+import org.scijava.event.EventHandler;
+import org.scijava.event.EventService;
+import org.scijava.event.EventSubscriber;
+import org.scijava.log.Logger;
+import org.scijava.module.Module;
+import org.scijava.module.ModuleItem;
+import org.scijava.module.event.ModuleExecutedEvent;
+import org.scijava.module.event.ModuleExecutingEvent;
+
+/**
+ * Computes features with a single call to the feature computer service, and
+ * times each feature computer it runs.
+ * <p>
+ * The service resolves the dependencies of the requested features itself, so
+ * that each computer runs once even when several requested features depend on
+ * it. The time spent in each computer is measured between the
+ * {@link ModuleExecutingEvent} and the {@link ModuleExecutedEvent} the context
+ * publishes for its module. Computers run without these events are only
+ * accounted for in the total time.
+ * <p>
+ * Computers are not run concurrently: all the feature computer services of a
+ * model share its feature model and its spot and link update stacks, which
+ * are not thread-safe.
+ * <p>
+ * This class also reads the dependency graph of the feature computers, built
+ * from the {@link Feature} inputs and outputs of the
+ * {@link MamutFeatureComputer} commands.
+ */
+final class FeatureTimer
+{
+
+	/**
+	 * Key of the total computation time in {@link #getTimings()}.
+	 */
+	static final String TOTAL = "total";
+
+	private final Context context;
+
+	private final MamutFeatureComputerService service;
+
+	private final Map< String, Long > timings = Collections.synchronizedMap( new LinkedHashMap<>() );
+
+	/**
+	 * Start times of the computers running, in nanoseconds.
+	 */
+	private final Map< Module, Long > starts = Collections.synchronizedMap( new HashMap<>() );
+
+	private String cancelReason;
+
+	FeatureTimer( final Context context, final MamutFeatureComputerService service )
+	{
+		this.context = context;
+		this.service = service;
+	}
+
+	/**
+	 * Computes the specified features and the features they depend on.
+	 *
+	 * @param forceComputeAll
+	 *            whether to force recomputation for all data items.
+	 * @param featureSpecs
+	 *            the specs of the features to compute.
+	 * @param logger
+	 *            the logger to report timings to.
+	 * @return the features computed, or <code>null</code> if computation was
+	 *         canceled, in which case {@link #getCancelReason()} says why.
+	 */
+	Map< FeatureSpec< ?, ? >, Feature< ? > > compute( final boolean forceComputeAll, final Collection< FeatureSpec< ?, ? > > featureSpecs, final Logger logger )
+	{
+		timings.clear();
+		cancelReason = null;
+		final EventService eventService = context.getService( EventService.class );
+		final List< EventSubscriber< ? > > subscribers = ( eventService == null )
+				? Collections.emptyList()
+				: eventService.subscribe( this );
+		final long start = System.currentTimeMillis();
+		final Map< FeatureSpec< ?, ? >, Feature< ? > > features;
+		try
+		{
+			features = service.compute( forceComputeAll, featureSpecs );
+		}
+		finally
+		{
+			if ( eventService != null )
+				eventService.unsubscribe( subscribers );
+			starts.clear();
+		}
+		final long total = System.currentTimeMillis() - start;
+		synchronized ( timings )
+		{
+			for ( final Map.Entry< String, Long > entry : timings.entrySet() )
+				logger.info( String.format( " - %s computed in %d ms.\n", entry.getKey(), entry.getValue() ) );
+			timings.put( TOTAL, total );
+		}
+		logger.info( String.format( " - All features computed in %d ms.\n", total ) );
+		if ( service.isCanceled() )
+		{
+			cancelReason = service.getCancelReason();
+			return null;
+		}
+		return features;
+	}
+
+	/**
+	 * Returns the time spent in each feature computer in the last call to
+	 * {@link #compute(boolean, Collection, Logger)}, keyed by the key of the
+	 * feature it computes, in execution order, and the total time under the
+	 * {@link #TOTAL} key.
+	 *
+	 * @return the timings, in milliseconds.
+	 */
+	Map< String, Long > getTimings()
+	{
+		synchronized ( timings )
+		{
+			return new LinkedHashMap<>( timings );
+		}
+	}
+
+	String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	@EventHandler
+	void onEvent( final ModuleExecutingEvent event )
+	{
+		if ( event.getModule().getDelegateObject() instanceof MamutFeatureComputer )
+			starts.put( event.getModule(), System.nanoTime() );
+	}
+
+	@EventHandler
+	void onEvent( final ModuleExecutedEvent event )
+	{
+		final Module module = event.getModule();
+		final Long start = starts.remove( module );
+		if ( start == null )
+			return;
+		final long time = ( System.nanoTime() - start.longValue() ) / 1_000_000;
+		final FeatureSpec< ?, ? > spec = featureSpec( context.getService( FeatureSpecsService.class ), module.getInfo().outputs() );
+		timings.merge( spec == null ? module.getInfo().getTitle() : spec.getKey(), time, Long::sum );
+	}
+
+	/**
+	 * Returns the specified features and all the features they depend on,
+	 * directly or not.
+	 *
+	 * @param context
+	 *            the context, used to find the feature computers.
+	 * @param featureSpecs
+	 *            the specs of the features.
+	 * @return a new set of feature specs.
+	 */
+	static Set< FeatureSpec< ?, ? > > withDependencies( final Context context, final Collection< FeatureSpec< ?, ? > > featureSpecs )
+	{
+		return withDependencies( dependencies( context ), featureSpecs );
+	}
+
+	private static Set< FeatureSpec< ?, ? > > withDependencies( final Map< FeatureSpec< ?, ? >, List< FeatureSpec< ?, ? > > > dependencies, final Collection< FeatureSpec< ?, ? > > featureSpecs )
+	{
+		final Set< FeatureSpec< ?, ? > > closure = new LinkedHashSet<>();
+		final Deque< FeatureSpec< ?, ? > > queue = new ArrayDeque<>( featureSpecs );
+		while ( !queue.isEmpty() )
+		{
+			final FeatureSpec< ?, ? > spec = queue.pop();
+			if ( !closure.add( spec ) )
+				continue;
+			for ( final FeatureSpec< ?, ? > dependency : dependencies.getOrDefault( spec, new ArrayList<>() ) )
+				queue.push( dependency );
+		}
+		return closure;
+	}
+
+	/**
+	 * Returns the features each feature computer takes as input, keyed by the
+	 * feature it computes.
+	 */
+	private static Map< FeatureSpec< ?, ? >, List< FeatureSpec< ?, ? > > > dependencies( final Context context )
+	{
+		final List< CommandInfo > commandInfos = context.getService( CommandService.class ).getCommandsOfType( MamutFeatureComputer.class );
+		final FeatureSpecsService featureSpecs = context.getService( FeatureSpecsService.class );
+		final Map< FeatureSpec< ?, ? >, List< FeatureSpec< ?, ? > > > dependencies = new HashMap<>();
+		for ( final CommandInfo commandInfo : commandInfos )
+		{
+			final FeatureSpec< ?, ? > output = featureSpec( featureSpecs, commandInfo.outputs() );
+			if ( output == null )
+				continue;
+			final List< FeatureSpec< ?, ? > > inputs = new ArrayList<>();
+			for ( final ModuleItem< ? > item : commandInfo.inputs() )
+			{
+				final FeatureSpec< ?, ? > input = featureSpec( featureSpecs, item );
+				if ( input != null )
+					inputs.add( input );
+			}
+			dependencies.put( output, inputs );
+		}
+		return dependencies;
+	}
+
+	/**
+	 * Returns whether any of the specified features, or of the features they
+	 * depend on, is computed from the image data.
+	 *
+	 * @param context
+	 *            the context, used to find the feature computers.
+	 * @param featureSpecs
+	 *            the specs of the features.
+	 * @return <code>true</code> if a computer takes the image data as input.
+	 */
+	static boolean readsImageData( final Context context, final Collection< FeatureSpec< ?, ? > > featureSpecs )
+	{
+		final Set< FeatureSpec< ?, ? > > closure = withDependencies( context, featureSpecs );
+		final List< CommandInfo > commandInfos = context.getService( CommandService.class ).getCommandsOfType( MamutFeatureComputer.class );
+		final FeatureSpecsService specs = context.getService( FeatureSpecsService.class );
+		for ( final CommandInfo commandInfo : commandInfos )
+		{
+			if ( !closure.contains( featureSpec( specs, commandInfo.outputs() ) ) )
+				continue;
+			for ( final ModuleItem< ? > item : commandInfo.inputs() )
+				if ( SharedBigDataViewerData.class.isAssignableFrom( item.getType() ) )
+					return true;
+		}
+		return false;
+	}
+
+	private static FeatureSpec< ?, ? > featureSpec( final FeatureSpecsService featureSpecs, final Iterable< ModuleItem< ? > > items )
+	{
+		for ( final ModuleItem< ? > item : items )
+		{
+			final FeatureSpec< ?, ? > spec = featureSpec( featureSpecs, item );
+			if ( spec != null )
+				return spec;
+		}
+		return null;
+	}
+
+	@SuppressWarnings( "unchecked" )
+	private static FeatureSpec< ?, ? > featureSpec( final FeatureSpecsService featureSpecs, final ModuleItem< ? > item )
+	{
+		if ( !Feature.class.isAssignableFrom( item.getType() ) )
+			return null;
+		return featureSpecs.getSpec( ( Class< ? extends Feature< ? > > ) item.getType() );
+	}
+}
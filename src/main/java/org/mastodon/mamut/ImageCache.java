@@ -0,0 +1,464 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.mastodon.views.bdv.SharedBigDataViewerData;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import gnu.trove.set.hash.TLongHashSet;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.util.Util;
+
+/**
+ * Controls how image cells of the full-resolution sources are kept in memory,
+ * and loads the cells of upcoming timepoints ahead of time.
+ * <p>
+ * The image data of a project is read through the BDV cell cache, which keeps
+ * cells in soft references: they are dropped whenever the JVM needs memory,
+ * and loaded and decompressed again on next read. This class keeps strong
+ * references to cells, up to a memory budget, so that they stay in the BDV
+ * cache. When the budget is exceeded, cells are evicted in least recently
+ * used or in first-in first-out order. With a budget of 0, cells are loaded
+ * but not held.
+ * <p>
+ * Cells are added by prefetching whole timepoints in the background, which
+ * {@link TrackMateProxy} does during detection, and by loading the cells of
+ * spots before computing features (see
+ * {@link Mamut#setBlockOrderedFeatures(boolean)}). Prefetching is skipped
+ * with a budget of 0, as the prefetched cells would be dropped before they
+ * are read. The statistics count only the cells requested in these two
+ * ways: a hit is a cell that was already held, a miss a cell that had to be
+ * loaded. Reads of the BDV cache by viewers, detectors and feature computers
+ * are not counted.
+ * <p>
+ * {@link #close()} stops the prefetching threads.
+ */
+public class ImageCache
+{
+
+	/**
+	 * The order in which cells are evicted when the memory budget is
+	 * exceeded.
+	 */
+	public enum EvictionPolicy
+	{
+		/** Evict the cells that were requested the longest time ago. */
+		LRU,
+		/** Evict the cells that were loaded first. */
+		FIFO
+	}
+
+	private static final class Key
+	{
+
+		private final int setup;
+
+		private final int timepoint;
+
+		private final long cell;
+
+		private Key( final int setup, final int timepoint, final long cell )
+		{
+			this.setup = setup;
+			this.timepoint = timepoint;
+			this.cell = cell;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+			final Key k = ( Key ) o;
+			return setup == k.setup && timepoint == k.timepoint && cell == k.cell;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return Objects.hash( setup, timepoint, cell );
+		}
+	}
+
+	private static final class Entry
+	{
+
+		@SuppressWarnings( "unused" )
+		private final Object cell;
+
+		private final long bytes;
+
+		private Entry( final Object cell, final long bytes )
+		{
+			this.cell = cell;
+			this.bytes = bytes;
+		}
+	}
+
+	private final SharedBigDataViewerData imageData;
+
+	private LinkedHashMap< Key, Entry > cells = new LinkedHashMap<>( 16, 0.75f, true );
+
+	private EvictionPolicy policy = EvictionPolicy.LRU;
+
+	private long budget = 0;
+
+	private long bytes = 0;
+
+	private int prefetchTimepoints = 0;
+
+	private int numThreads = 2;
+
+	private ExecutorService prefetcher;
+
+	/** Setup and timepoint pairs being prefetched. */
+	private final TLongHashSet prefetching = new TLongHashSet();
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private long evictions = 0;
+
+	private long prefetched = 0;
+
+	private final int id;
+
+	private static final AtomicInteger IDS = new AtomicInteger();
+
+	/**
+	 * Creates a cache control for the specified image data, with a memory
+	 * budget of 0 and no prefetching.
+	 *
+	 * @param imageData
+	 *            the image data.
+	 */
+	public ImageCache( final SharedBigDataViewerData imageData )
+	{
+		this.imageData = imageData;
+		this.id = IDS.incrementAndGet();
+	}
+
+	/**
+	 * Sets the memory budget of the cells held by this cache. Cells are
+	 * evicted right away if it is exceeded.
+	 *
+	 * @param bytes
+	 *            the budget, in bytes.
+	 */
+	public synchronized void setMemoryBudget( final long bytes )
+	{
+		this.budget = Math.max( 0, bytes );
+		evict();
+	}
+
+	public synchronized long getMemoryBudget()
+	{
+		return budget;
+	}
+
+	/**
+	 * Sets the order in which cells are evicted when the budget is exceeded.
+	 *
+	 * @param policy
+	 *            the eviction policy.
+	 */
+	public synchronized void setEvictionPolicy( final EvictionPolicy policy )
+	{
+		if ( policy == this.policy )
+			return;
+		this.policy = policy;
+		final LinkedHashMap< Key, Entry > reordered = new LinkedHashMap<>( 16, 0.75f, policy == EvictionPolicy.LRU );
+		reordered.putAll( cells );
+		cells = reordered;
+	}
+
+	public synchronized EvictionPolicy getEvictionPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Sets how many timepoints ahead of the timepoint being processed are
+	 * prefetched during detection. Prefetching is off with 0.
+	 *
+	 * @param timepoints
+	 *            the number of timepoints to prefetch.
+	 */
+	public synchronized void setPrefetchTimepoints( final int timepoints )
+	{
+		this.prefetchTimepoints = Math.max( 0, timepoints );
+	}
+
+	public synchronized int getPrefetchTimepoints()
+	{
+		return prefetchTimepoints;
+	}
+
+	/**
+	 * Sets the number of threads that load prefetched timepoints. Takes effect
+	 * for the next prefetch if none is running.
+	 *
+	 * @param numThreads
+	 *            the number of threads.
+	 */
+	public synchronized void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+		if ( prefetcher != null && prefetching.isEmpty() )
+		{
+			prefetcher.shutdown();
+			prefetcher = null;
+		}
+	}
+
+	/**
+	 * Loads all the cells of the specified source at full resolution, for the
+	 * specified timepoints, in the background. Timepoints already being
+	 * prefetched are skipped. Does nothing if the memory budget is 0.
+	 *
+	 * @param setupId
+	 *            the index of the source.
+	 * @param from
+	 *            the first timepoint, inclusive.
+	 * @param to
+	 *            the last timepoint, inclusive.
+	 */
+	public synchronized void prefetch( final int setupId, final int from, final int to )
+	{
+		final List< SourceAndConverter< ? > > sources = imageData.getSources();
+		if ( budget == 0 || setupId < 0 || setupId >= sources.size() )
+			return;
+		if ( prefetcher == null )
+			prefetcher = Executors.newFixedThreadPool( numThreads, r -> {
+				final Thread thread = new Thread( r, "ImageCache-" + id + "-prefetch" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		final Source< ? > source = sources.get( setupId ).getSpimSource();
+		for ( int t = Math.max( 0, from ); t <= Math.min( to, imageData.getNumTimepoints() - 1 ); t++ )
+		{
+			final long key = ( ( long ) setupId << 32 ) | t;
+			if ( !source.isPresent( t ) || !prefetching.add( key ) )
+				continue;
+			final int tp = t;
+			prefetcher.submit( () -> {
+				try
+				{
+					loadAll( setupId, tp, source.getSource( tp, 0 ) );
+				}
+				finally
+				{
+					synchronized ( ImageCache.this )
+					{
+						prefetching.remove( key );
+						prefetched++;
+					}
+				}
+			} );
+		}
+	}
+
+	/**
+	 * Stops the prefetching threads, interrupting the timepoints being
+	 * prefetched, and releases all the cells held by this cache. The cache
+	 * can still be used afterwards, and starts new threads when prefetching
+	 * again.
+	 */
+	public synchronized void close()
+	{
+		if ( prefetcher != null )
+		{
+			prefetcher.shutdownNow();
+			prefetcher = null;
+		}
+		prefetching.clear();
+		clear();
+	}
+
+	/**
+	 * Releases all the cells held by this cache and resets the statistics.
+	 */
+	public synchronized void clear()
+	{
+		cells.clear();
+		bytes = 0;
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+		prefetched = 0;
+	}
+
+	/**
+	 * Returns the statistics of this cache.
+	 * <p>
+	 * They count the cells requested through this cache only, by prefetching
+	 * and by block-ordered feature computation, not the reads of the BDV
+	 * cache. The returned map has the following keys: <code>hits</code>,
+	 * <code>misses</code> and <code>evictions</code>, the number of cells
+	 * requested that were held, that were loaded, and that were evicted;
+	 * <code>cells</code> and <code>bytes</code>, the number and size of the
+	 * cells held; <code>budget</code>; <code>prefetchedTimepoints</code> and
+	 * <code>pendingTimepoints</code>, the number of timepoints prefetched and
+	 * being prefetched; <code>hitRate</code>, from 0 to 1.
+	 *
+	 * @return a new map.
+	 */
+	public synchronized Map< String, Object > stats()
+	{
+		final Map< String, Object > map = new LinkedHashMap<>();
+		map.put( "hits", hits );
+		map.put( "misses", misses );
+		map.put( "evictions", evictions );
+		map.put( "cells", cells.size() );
+		map.put( "bytes", bytes );
+		map.put( "budget", budget );
+		map.put( "prefetchedTimepoints", prefetched );
+		map.put( "pendingTimepoints", prefetching.size() );
+		map.put( "hitRate", hits + misses == 0 ? 0. : ( double ) hits / ( hits + misses ) );
+		return map;
+	}
+
+	@Override
+	public synchronized String toString()
+	{
+		return String.format( "Image cache: %d cells, %d / %d bytes, %s eviction, %d hits, %d misses, %d evictions, %d timepoints prefetched.",
+				cells.size(), bytes, budget, policy, hits, misses, evictions, prefetched );
+	}
+
+	/**
+	 * Loads all the cells of an image.
+	 */
+	private void loadAll( final int setupId, final int timepoint, final RandomAccessibleInterval< ? > rai )
+	{
+		if ( !( rai instanceof AbstractCellImg ) )
+			return;
+		final AbstractCellImg< ?, ?, ?, ? > img = ( AbstractCellImg< ?, ?, ?, ? > ) rai;
+		final long[] gridDims = new long[ img.getCellGrid().numDimensions() ];
+		img.getCellGrid().getGridDimensions( gridDims );
+		long n = 1;
+		for ( final long d : gridDims )
+			n *= d;
+		final RandomAccess< ? > ra = img.getCells().randomAccess();
+		final long[] cell = new long[ gridDims.length ];
+		final long cellBytes = cellBytes( img );
+		for ( long i = 0; i < n; i++ )
+		{
+			if ( Thread.currentThread().isInterrupted() )
+				return;
+			IntervalIndexer.indexToPosition( i, gridDims, cell );
+			ra.setPosition( cell );
+			hold( setupId, timepoint, i, ra.get(), cellBytes );
+		}
+	}
+
+	/**
+	 * Returns whether a cell is held, counting a hit if it is. A cell that is
+	 * not held must then be loaded and passed to
+	 * {@link #hold(int, int, long, Object, long)}.
+	 */
+	synchronized boolean contains( final int setupId, final int timepoint, final long cell )
+	{
+		if ( cells.get( new Key( setupId, timepoint, cell ) ) == null )
+			return false;
+		hits++;
+		return true;
+	}
+
+	/**
+	 * Returns whether a cell is held, without counting a hit nor changing the
+	 * eviction order.
+	 */
+	synchronized boolean holds( final int setupId, final int timepoint, final long cell )
+	{
+		return cells.containsKey( new Key( setupId, timepoint, cell ) );
+	}
+
+	/**
+	 * Holds a loaded cell, counting a hit if it already was held and a miss
+	 * otherwise.
+	 */
+	synchronized void hold( final int setupId, final int timepoint, final long index, final Object cell, final long cellBytes )
+	{
+		final Key key = new Key( setupId, timepoint, index );
+		if ( cells.get( key ) != null )
+		{
+			hits++;
+			return;
+		}
+		misses++;
+		if ( budget == 0 )
+			return;
+		cells.put( key, new Entry( cell, cellBytes ) );
+		bytes += cellBytes;
+		evict();
+	}
+
+	private void evict()
+	{
+		final Iterator< Entry > it = cells.values().iterator();
+		while ( bytes > budget && it.hasNext() )
+		{
+			bytes -= it.next().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Returns the size of the cells of an image, in bytes.
+	 */
+	static long cellBytes( final AbstractCellImg< ?, ?, ?, ? > img )
+	{
+		final CellGrid grid = img.getCellGrid();
+		final int[] cellDims = new int[ grid.numDimensions() ];
+		grid.getCellDimensions( cellDims );
+		long voxels = 1;
+		for ( final int d : cellDims )
+			voxels *= d;
+		final Object type = Util.getTypeFromInterval( img );
+		final int bytesPerVoxel = type instanceof RealType ? Math.max( 1, ( ( RealType< ? > ) type ).getBitsPerPixel() / 8 ) : 8;
+		return voxels * bytesPerVoxel;
+	}
+}
@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.Writer;
+
+import org.scijava.log.Logger;
+
+/**
+ * A {@link Writer} that sends what is written to it to a {@link Logger} at the
+ * info level, in chunks of whole lines of bounded size.
+ */
+final class LoggerWriter extends Writer
+{
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final Logger logger;
+
+	private final StringBuilder buffer = new StringBuilder();
+
+	LoggerWriter( final Logger logger )
+	{
+		this.logger = logger;
+	}
+
+	@Override
+	public void write( final char[] cbuf, final int off, final int len )
+	{
+		buffer.append( cbuf, off, len );
+		if ( buffer.length() >= CHUNK_SIZE )
+		{
+			final int end = buffer.lastIndexOf( "\n" ) + 1;
+			if ( end > 0 )
+			{
+				logger.info( buffer.substring( 0, end ) );
+				buffer.delete( 0, end );
+			}
+		}
+	}
+
+	@Override
+	public void flush()
+	{
+		if ( buffer.length() == 0 )
+			return;
+		logger.info( buffer.toString() );
+		buffer.setLength( 0 );
+	}
+
+	@Override
+	public void close()
+	{
+		flush();
+	}
+}
@@ -31,13 +31,24 @@ package org.mastodon.mamut;
 import java.awt.Color;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -47,7 +58,6 @@ import org.mastodon.feature.FeatureModel;
 import org.mastodon.feature.FeatureSpec;
 import org.mastodon.feature.FeatureSpecsService;
 import org.mastodon.graph.GraphIdBimap;
-import org.mastodon.graph.algorithm.RootFinder;
 import org.mastodon.mamut.feature.MamutFeatureComputer;
 import org.mastodon.mamut.feature.MamutFeatureComputerService;
 import org.mastodon.mamut.io.ProjectCreator;
@@ -58,11 +68,10 @@ import org.mastodon.mamut.io.project.MamutProjectIO;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
-import org.mastodon.mamut.model.ModelUtils;
 import org.mastodon.mamut.model.Spot;
 import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
 import org.mastodon.model.SelectionModel;
-import org.mastodon.model.tag.ObjTagMap;
 import org.mastodon.model.tag.TagSetModel;
 import org.mastodon.model.tag.TagSetStructure;
 import org.mastodon.model.tag.TagSetStructure.Tag;
@@ -85,6 +94,8 @@ import org.scijava.log.LogMessage;
 import org.scijava.log.Logger;
 import org.scijava.module.ModuleItem;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
 import loci.formats.FormatException;
 import mpicbg.spim.data.SpimDataException;
 
@@ -127,14 +138,66 @@ public class Mamut
 
 	private final int ID;
 
+	private int numThreads = 1;
+
+	private boolean featureTimings = false;
+
+	private boolean blockOrderedFeatures = false;
+
+	private FeatureTimer featureTimer;
+
+	private long startupTime;
+
+	private boolean incrementalSave = false;
+
+	private long journalCompactionThreshold = 64l * 1024 * 1024;
+
+	private ProjectJournal journal;
+
+	/**
+	 * Journal of the edits made while a background save is being written.
+	 */
+	private ProjectJournal pendingJournal;
+
+	private ExecutorService saveExecutor;
+
+	private Future< Boolean > pendingSave;
+
+	private ModelStatistics statistics;
+
+	private NamedSelections namedSelections;
+
+	private TagIndex tagIndex;
+
+	private FeatureDirtySet featureDirtySet;
+
+	private OffHeapFeatures offHeapFeatures;
+
+	private ImageCache imageCache;
+
+	private final Metrics metrics = new Metrics();
+
+	private Map< String, Object > lastFeatureStats = new LinkedHashMap<>();
 
 	private Mamut( final ProjectModel projectModel )
+	{
+		this( projectModel, null );
+	}
+
+	/**
+	 * Wraps a project, sending messages to the specified logger, or to the
+	 * default logger if it is <code>null</code>.
+	 */
+	private Mamut( final ProjectModel projectModel, final Logger logger )
 	{
 		this.projectModel = projectModel;
+		if ( logger != null )
+			this.logger = logger;
 		this.featureComputerService = MamutFeatureComputerService.newInstance( projectModel.getContext() );
 		featureComputerService.setModel( projectModel.getModel() );
 		featureComputerService.setSharedBdvData( projectModel.getSharedBdvData() );
 		this.ID = IDGENERATOR.getAndIncrement();
+		metrics.setEnabled( Boolean.getBoolean( "mamut.metrics" ) );
 	}
 
 	/**
@@ -178,9 +241,150 @@ public class Mamut
 	public static final Mamut open( final String mamutProject, final Context context ) throws IOException, SpimDataException, FormatException
 	{
 		System.setProperty( "apple.laf.useScreenMenuBar", "true" );
+		final long start = System.currentTimeMillis();
+		final MamutProject project = MamutProjectIO.load( mamutProject );
+		return opened( ProjectLoader.open( project, context ), start, "Project opened", null );
+	}
+
+	/**
+	 * Opens an existing Mastodon project and returns a {@link Mamut} instance
+	 * that can manipulate it, possibly keeping feature values off the Java
+	 * heap.
+	 * <p>
+	 * With off-heap features, the values of the spot and link features are
+	 * copied to a memory-mapped scratch file in the temporary folder, and the
+	 * feature model reads them from there. This reduces the heap used by
+	 * large models with many features, and the garbage collection pauses that
+	 * come with it. Selections, tables, exports and saving work as with
+	 * features on the heap. Features are read from the Mastodon file and
+	 * written to it one at a time, and are brought back on the heap only when
+	 * they are recomputed. Saving with {@link #saveAs(String)} then writes a
+	 * snapshot as {@link #saveAsync(String)} does, so the GUI state saved is
+	 * the one of the previous Mastodon file.
+	 * 
+	 * @param mamutProject
+	 *            the path to the Mastodon file.
+	 * @param context
+	 *            an existing, non-<tt>null</tt> {@link Context} instance to use
+	 *            to open the project.
+	 * @param offHeapFeatures
+	 *            whether to keep feature values off the Java heap.
+	 * @return a new {@link Mamut} instance.
+	 * @throws IOException
+	 *             when an error occurs trying to locate and open the file, or
+	 *             to create the scratch file.
+	 * @throws SpimDataException
+	 *             when an error occurs trying to open the image data.
+	 * @throws FormatException
+	 *             when an error occurs with the image file format.
+	 */
+	public static final Mamut open( final String mamutProject, final Context context, final boolean offHeapFeatures ) throws IOException, SpimDataException, FormatException
+	{
+		if ( !offHeapFeatures )
+			return open( mamutProject, context );
+		System.setProperty( "apple.laf.useScreenMenuBar", "true" );
+		final long start = System.currentTimeMillis();
+		final MamutProject project = OffHeapFeatures.withoutFeatures( MamutProjectIO.load( mamutProject ) );
+		return openedOffHeap( ProjectLoader.open( project, context ), start, "Project opened", null );
+	}
+
+	/**
+	 * Opens an existing Mastodon project for headless use, and returns a
+	 * {@link Mamut} instance that can manipulate it.
+	 * <p>
+	 * Contrary to {@link #open(String, Context)}, this method does not touch
+	 * the look-and-feel system properties and does not restore the GUI state
+	 * saved in the project (window positions, display settings). It is meant
+	 * for scripts running without display, for instance on cluster nodes.
+	 * Views can still be created afterwards with {@link #getWindowManager()}
+	 * if a display is available.
+	 * <p>
+	 * The {@link WindowManager} itself is still created with the project, by
+	 * the Mastodon project loader, so this path does not avoid the loading of
+	 * the view classes and keymaps. Creating it lazily requires changes to
+	 * Mastodon's {@link ProjectModel} and is deferred.
+	 * 
+	 * @param mamutProject
+	 *            the path to the Mastodon file.
+	 * @param context
+	 *            an existing, non-<tt>null</tt> {@link Context} instance to use
+	 *            to open the project.
+	 * @return a new {@link Mamut} instance.
+	 * @throws IOException
+	 *             when an error occurs trying to locate and open the file.
+	 * @throws SpimDataException
+	 *             when an error occurs trying to open the image data.
+	 * @throws FormatException
+	 *             when an error occurs with the image file format.
+	 */
+	public static final Mamut openHeadless( final String mamutProject, final Context context ) throws IOException, SpimDataException, FormatException
+	{
+		return openHeadless( mamutProject, context, null );
+	}
+
+	/**
+	 * Opens an existing Mastodon project for headless use, sending the
+	 * messages of the opening and of the journal replay to the specified
+	 * logger, which stays the logger of the returned instance.
+	 */
+	static Mamut openHeadless( final String mamutProject, final Context context, final Logger logger ) throws IOException, SpimDataException, FormatException
+	{
+		final long start = System.currentTimeMillis();
 		final MamutProject project = MamutProjectIO.load( mamutProject );
-		final ProjectModel projectModel = ProjectLoader.open( project, context );
-		return new Mamut( projectModel );
+		return opened( ProjectLoader.open( project, context, false, false ), start, "Project opened headless", logger );
+	}
+
+	/**
+	 * Opens an existing Mastodon project for headless use, possibly keeping
+	 * feature values off the Java heap, as explained in
+	 * {@link #open(String, Context, boolean)}.
+	 * 
+	 * @param mamutProject
+	 *            the path to the Mastodon file.
+	 * @param context
+	 *            an existing, non-<tt>null</tt> {@link Context} instance to use
+	 *            to open the project.
+	 * @param offHeapFeatures
+	 *            whether to keep feature values off the Java heap.
+	 * @return a new {@link Mamut} instance.
+	 * @throws IOException
+	 *             when an error occurs trying to locate and open the file, or
+	 *             to create the scratch file.
+	 * @throws SpimDataException
+	 *             when an error occurs trying to open the image data.
+	 * @throws FormatException
+	 *             when an error occurs with the image file format.
+	 */
+	public static final Mamut openHeadless( final String mamutProject, final Context context, final boolean offHeapFeatures ) throws IOException, SpimDataException, FormatException
+	{
+		if ( !offHeapFeatures )
+			return openHeadless( mamutProject, context );
+		final long start = System.currentTimeMillis();
+		final MamutProject project = OffHeapFeatures.withoutFeatures( MamutProjectIO.load( mamutProject ) );
+		return openedOffHeap( ProjectLoader.open( project, context, false, false ), start, "Project opened headless", null );
+	}
+
+	/**
+	 * Reads the features of a project opened without them one at a time,
+	 * keeping them off the heap, before the journal is replayed.
+	 */
+	private static Mamut openedOffHeap( final ProjectModel projectModel, final long start, final String what, final Logger logger ) throws IOException
+	{
+		final OffHeapFeatures features;
+		try
+		{
+			features = OffHeapFeatures.load( projectModel.getProject(), projectModel.getModel(), projectModel.getContext(), null );
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			projectModel.close();
+			throw e;
+		}
+		final Mamut mamut = new Mamut( projectModel, logger );
+		mamut.offHeapFeatures = features;
+		mamut.replayJournal();
+		mamut.logger.info( String.format( "Read features off the heap to %d bytes of scratch file.\n", features.size() ) );
+		return started( mamut, start, what );
 	}
 
 	/**
@@ -203,8 +407,78 @@ public class Mamut
 	public static final Mamut newProject( final String bdvFile, final Context context ) throws IOException, SpimDataException, FormatException
 	{
 		System.setProperty( "apple.laf.useScreenMenuBar", "true" );
+		return create( bdvFile, context, "Project created", null );
+	}
+
+	/**
+	 * Creates a new Mastodon project analyzing the specified image data, for
+	 * headless use.
+	 * <p>
+	 * Contrary to {@link #newProject(String, Context)}, this method does not
+	 * touch the look-and-feel system properties. It is meant for scripts
+	 * running without display. As for
+	 * {@link #openHeadless(String, Context)}, the {@link WindowManager} is
+	 * still created with the project.
+	 * 
+	 * @param bdvFile
+	 *            a path to a BDV XML file. It matters not whether the image
+	 *            data is stored locally or remotely.
+	 * @param context
+	 *            an existing, non-<tt>null</tt> {@link Context} instance to use
+	 *            to open the project.
+	 * @return a new {@link Mamut} instance.
+	 * @throws IOException
+	 *             when an error occurs trying to locate and open the file.
+	 * @throws SpimDataException
+	 *             when an error occurs trying to open the image data.
+	 * @throws FormatException
+	 *             when an error occurs with the image file format.
+	 */
+	public static final Mamut newProjectHeadless( final String bdvFile, final Context context ) throws IOException, SpimDataException, FormatException
+	{
+		return newProjectHeadless( bdvFile, context, null );
+	}
+
+	/**
+	 * Creates a new Mastodon project for headless use, sending the messages of
+	 * the creation to the specified logger, which stays the logger of the
+	 * returned instance.
+	 */
+	static Mamut newProjectHeadless( final String bdvFile, final Context context, final Logger logger ) throws IOException, SpimDataException, FormatException
+	{
+		return create( bdvFile, context, "Project created headless", logger );
+	}
+
+	/**
+	 * Creates a new project on the specified image data, for both
+	 * {@link #newProject(String, Context)} and
+	 * {@link #newProjectHeadless(String, Context)}.
+	 */
+	private static Mamut create( final String bdvFile, final Context context, final String what, final Logger logger ) throws IOException, SpimDataException, FormatException
+	{
+		final long start = System.currentTimeMillis();
 		final ProjectModel projectModel = ProjectCreator.createProjectFromBdvFile( new File( bdvFile ), context );
-		return new Mamut( projectModel );
+		return started( new Mamut( projectModel, logger ), start, what );
+	}
+
+	/**
+	 * Wraps a project loaded from a Mastodon file and replays its journal, for
+	 * both {@link #open(String, Context)} and
+	 * {@link #openHeadless(String, Context)}.
+	 */
+	private static Mamut opened( final ProjectModel projectModel, final long start, final String what, final Logger logger )
+	{
+		final Mamut mamut = new Mamut( projectModel, logger );
+		mamut.replayJournal();
+		return started( mamut, start, what );
+	}
+
+	private static Mamut started( final Mamut mamut, final long start, final String what )
+	{
+		mamut.startupTime = System.currentTimeMillis() - start;
+		mamut.metrics.recordOnEnable( "open", "ms", mamut.startupTime );
+		mamut.logger.info( String.format( "%s in %d ms.\n", what, mamut.startupTime ) );
+		return mamut;
 	}
 
 	/**
@@ -243,6 +517,71 @@ public class Mamut
 		this.logger = logger;
 	}
 
+	/**
+	 * Sets the number of threads used to run detection in {@link #detect(double, double)}
+	 * and in the {@link TrackMateProxy} instances created by
+	 * {@link #createTrackMate()}, and to evaluate selection expressions in
+	 * {@link #select(String)}. With more than one thread, timepoints are
+	 * detected in parallel and spots and links are tested in parallel chunks.
+	 * 
+	 * @param numThreads
+	 *            the number of threads to use.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Sets whether {@link #computeFeatures(String...)} reports the time spent
+	 * in each feature computer in the logger and in {@link #featureStats()}.
+	 * The features are computed in a single pass either way, so that a
+	 * computer shared by several requested features runs once.
+	 * <p>
+	 * This is a timing option only: computers never run concurrently, because
+	 * the feature computer services of a model share its feature model and
+	 * update stacks, which are not thread-safe. Computers that run without
+	 * publishing module execution events are only counted in the total.
+	 * 
+	 * @param featureTimings
+	 *            whether to time each feature computer.
+	 */
+	public void setFeatureTimings( final boolean featureTimings )
+	{
+		this.featureTimings = featureTimings;
+	}
+
+	/**
+	 * Sets whether {@link #computeFeatures(String...)} loads the image data
+	 * read by feature computers in block order before running them.
+	 * <p>
+	 * Computers such as "Spot intensity" read the image around each spot in
+	 * their own order, which on compressed or remote data makes the image
+	 * cache load and decompress the same cells many times. In block order, the
+	 * spots of each timepoint are grouped by source and by image cell, and
+	 * each cell is loaded once, in parallel over cells with the number of
+	 * threads set by {@link #setNumThreads(int)}. The loaded cells are held
+	 * by the image cache returned by {@link #getImageCache()}, as the BDV
+	 * cache would drop them before the computers read them. If the image
+	 * cache has no memory budget, it is given a quarter of the maximum heap
+	 * size while computing features, and its budget is set back to 0
+	 * afterwards. Loading stops at the first timepoint whose cells do not fit
+	 * in the budget. The number of cell reads and cell loads, and the number
+	 * of reads of the cells still held once the computers are done, are
+	 * reported in the logger and in {@link #featureStats()}.
+	 * <p>
+	 * The computers are plugins that visit the spots in their own order, and
+	 * this does not change: the cells are loaded in block order ahead of
+	 * them, rather than the spots being processed cell by cell.
+	 * 
+	 * @param blockOrderedFeatures
+	 *            whether to load image cells in block order.
+	 */
+	public void setBlockOrderedFeatures( final boolean blockOrderedFeatures )
+	{
+		this.blockOrderedFeatures = blockOrderedFeatures;
+	}
+
 	/*
 	 * Getters.
 	 */
@@ -270,6 +609,9 @@ public class Mamut
 	/**
 	 * Returns the {@link WindowManager} gateway used to create views of the
 	 * data used in this {@link Mamut} instance.
+	 * <p>
+	 * The window manager is created along with the project, also for projects
+	 * opened or created for headless use.
 	 * 
 	 * @return the {@link WindowManager} gateway.
 	 */
@@ -288,6 +630,41 @@ public class Mamut
 		return logger;
 	}
 
+	/**
+	 * Returns the time it took to open or create the project manipulated by
+	 * this {@link Mamut} instance, including the image data and the feature
+	 * services.
+	 * 
+	 * @return the startup time, in ms.
+	 */
+	public long getStartupTime()
+	{
+		return startupTime;
+	}
+
+	/**
+	 * Returns the Mastodon file of the project manipulated by this
+	 * {@link Mamut} instance.
+	 * 
+	 * @return the Mastodon file, or <code>null</code> if it has not been set
+	 *         yet with {@link #saveAs(String)}.
+	 */
+	public File getProjectFile()
+	{
+		return projectModel.getProject().getProjectRoot();
+	}
+
+	/**
+	 * Returns the BDV file of the image data analyzed in the project
+	 * manipulated by this {@link Mamut} instance.
+	 * 
+	 * @return the BDV file.
+	 */
+	public File getDatasetFile()
+	{
+		return projectModel.getProject().getDatasetXmlFile();
+	}
+
 	/*
 	 * Output.
 	 */
@@ -297,6 +674,18 @@ public class Mamut
 	 * <p>
 	 * This method will return an error if a Mastodon file for the project has
 	 * not been specified a first time with the {@link #saveAs(String)} method.
+	 * <p>
+	 * If incremental saving is enabled (see {@link #setIncrementalSave(boolean)}),
+	 * only the changes made since the last save are appended to a journal file
+	 * next to the Mastodon file. The project is fully rewritten when the
+	 * journal grows beyond the compaction threshold, and when the changes
+	 * cannot be journaled: tag-set structure changes, feature values written
+	 * by {@link #computeFeatures(String...)}, {@link #detect(double, double)},
+	 * {@link #link(double, int)} or a {@link TrackMateProxy}, and tags written
+	 * outside of the tag methods of this class with paused tag-set listeners.
+	 * Feature values and tags written by other code without any model
+	 * notification are not seen: use {@link #saveAs(String)} after such
+	 * changes.
 	 * 
 	 * @return <code>true</code> if saving happened without errors. Otherwise an
 	 *         error message is sent to the {@link Logger} instance.
@@ -309,6 +698,26 @@ public class Mamut
 			logger.warn( "Mastodon file not set. Please use #saveAs() first.\n" );
 			return false;
 		}
+		awaitPendingSave();
+
+		if ( incrementalSave && journal != null && journal.canAppend() )
+		{
+			try
+			{
+				final long t0 = metrics.start();
+				final long written = journal.append();
+				metrics.stop( "save.journal", t0 );
+				metrics.record( "save.journalBytes", "bytes", written );
+				logger.info( String.format( "Appended %d bytes to the journal of %s\n", written, projectFile ) );
+				if ( journal.size() <= journalCompactionThreshold )
+					return true;
+				logger.info( "Journal size exceeds " + journalCompactionThreshold + " bytes, compacting.\n" );
+			}
+			catch ( final IOException e )
+			{
+				logger.warn( "Could not write to the journal, performing a full save instead:\n" + e.getMessage() + '\n' );
+			}
+		}
 		return saveAs( projectFile.getAbsolutePath() );
 	}
 
@@ -326,10 +735,23 @@ public class Mamut
 	 */
 	public boolean saveAs( final String mastodonFile )
 	{
+		awaitPendingSave();
 		logger.info( "Saving to " + mastodonFile + '\n' );
+		final File file = new File( mastodonFile );
+		final ReentrantReadWriteLock lock = getModel().getGraph().getLock();
+		final long t0 = metrics.start();
+		// Prevent edits between the full save and the start of the journal.
+		lock.readLock().lock();
+		metrics.stop( "saveAs.lockWait", t0 );
 		try
 		{
-			ProjectSaver.saveProject( new File( mastodonFile ), projectModel );
+			if ( offHeapFeatures == null )
+				ProjectSaver.saveProject( file, projectModel );
+			else
+				saveSnapshot( file );
+			metrics.stop( "saveAs", t0 );
+			metrics.record( "saveAs.bytes", "bytes", file.length() );
+			resetJournal( file );
 			return true;
 		}
 		catch ( final IOException e )
@@ -337,80 +759,585 @@ public class Mamut
 			logger.error( "Problem writing project to file " + mastodonFile + ":\n" + e.getMessage() );
 			return false;
 		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
 	}
 
-	/*
-	 * Selection methods.
-	 */
-
 	/**
-	 * Sets the current selection from a selection creator expression.
-	 * <p>
-	 * Such an expression can be:
-	 * 
-	 * <pre>
-	 * mamut.select( "vertexFeature( 'Track N spots' ) &lt; 10" )
-	 * </pre>
-	 * 
-	 * An error message is sent to the logger is there is a problem with the
-	 * evaluation of the expression.
-	 * 
-	 * @param expression
-	 *            a selection creator expression.
+	 * Saves the project through a snapshot, which serializes the off-heap
+	 * features one at a time. The caller must hold the graph read lock.
 	 */
-	public void select( final String expression )
+	private void saveSnapshot( final File file ) throws IOException
 	{
-		final Model model = getModel();
-		final ModelGraph graph = model.getGraph();
-		final GraphIdBimap< Spot, Link > graphIdBimap = model.getGraphIdBimap();
-		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
-		final FeatureModel featureModel = model.getFeatureModel();
-		final SelectionModel< Spot, Link > selectionModel = getSelectionModel();
+		final MamutProject project = projectModel.getProject();
+		final File previousRoot = project.getProjectRoot();
+		final ProjectSnapshot snapshot = ProjectSnapshot.take( project, file, getModel(), projectModel.getContext(), offHeapFeatures );
 		try
 		{
-			final SelectionParser< Spot, Link > selectionParser = new SelectionParser<>( graph, graphIdBimap, tagSetModel, featureModel, selectionModel );
-			final boolean ok = selectionParser.parse( expression );
-			if ( ok )
-				logger.info( "Evaluation successful. Selection has now " + selectionModel.getSelectedVertices().size()
-						+ " spots and " + selectionModel.getSelectedEdges().size() + " edges.\n" );
-			else
-				logger.error( "Evaluation failed:\n" + selectionParser.getErrorMessage() + '\n' );
+			snapshot.writeTo( project );
 		}
-		catch ( final IllegalArgumentException e )
+		catch ( final IOException | RuntimeException e )
 		{
-			logger.error( "Unable to parse the expression: " + expression );
+			project.setProjectRoot( previousRoot );
+			throw e;
+		}
+		finally
+		{
+			snapshot.dispose();
 		}
 	}
 
 	/**
-	 * Clears the current selection.
+	 * Saves the Mastodon project of this instance to its Mastodon file, in the
+	 * background.
+	 * <p>
+	 * Same as {@link #saveAsync(String)} with the file previously specified with
+	 * {@link #saveAs(String)}.
+	 * 
+	 * @return a {@link Future} that returns <code>true</code> if saving
+	 *         happened without errors, or <code>null</code> if the Mastodon file
+	 *         has not been set.
 	 */
-	public void resetSelection()
+	public Future< Boolean > saveAsync()
 	{
-		getSelectionModel().clearSelection();
+		final File projectFile = projectModel.getProject().getProjectRoot();
+		if ( projectFile == null )
+		{
+			logger.warn( "Mastodon file not set. Please use #saveAs() first.\n" );
+			return null;
+		}
+		return saveAsync( projectFile.getAbsolutePath() );
 	}
 
 	/**
-	 * Deletes all the data items (spots and tracks) currently in the selection.
+	 * Saves the Mastodon project of this instance to a Mastodon file, in the
+	 * background.
+	 * <p>
+	 * The model, tags and features are serialized to uncompressed temporary
+	 * files under the graph read lock, which only blocks editing for a short
+	 * time. Writing and compressing this snapshot to the file then happens on
+	 * a background thread, and the model can be edited in the meantime. The
+	 * saved file reflects the model at the time this method was called.
+	 * <p>
+	 * The GUI state (window positions, display settings) and the backup of the
+	 * dataset XML file are copied from the current Mastodon file, as they were
+	 * last saved. The project file of this instance is set to the new file,
+	 * and set back to the previous one if the background save fails.
+	 * With incremental saving, the edits made during the background save are
+	 * journaled against the new file. Calls to {@link #save()} and
+	 * {@link #saveAs(String)} wait for a pending background save to complete.
+	 * 
+	 * @param mastodonFile
+	 *            a path to a writable file.
+	 * @return a {@link Future} that returns <code>true</code> if saving
+	 *         happened without errors. Otherwise an error message is sent to
+	 *         the {@link Logger} instance.
 	 */
-	public void deleteSelection()
+	public synchronized Future< Boolean > saveAsync( final String mastodonFile )
 	{
-		final SelectionModel< Spot, Link > selection = getSelectionModel();
-		final ReentrantReadWriteLock lock = getModel().getGraph().getLock();
-		if ( selection.isEmpty() )
-			return;
-
-		lock.writeLock().lock();
-		final ModelGraph graph = getModel().getGraph();
+		awaitPendingSave();
+		final long start = System.currentTimeMillis();
+		final File file = new File( mastodonFile );
+		final MamutProject project = projectModel.getProject();
+		final File previousRoot = project.getProjectRoot();
+		final Model model = getModel();
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		final ProjectSnapshot snapshot;
+		lock.readLock().lock();
 		try
 		{
-			final RefSet< Link > edges = selection.getSelectedEdges();
-			final RefSet< Spot > vertices = selection.getSelectedVertices();
-
-			int nLinks = 0;
-			int nSpots = 0;
-
-			selection.pauseListeners();
+			snapshot = ProjectSnapshot.take( project, file, model, projectModel.getContext(), offHeapFeatures );
+			// Records the edits made while the snapshot is written.
+			if ( incrementalSave )
+			{
+				pendingJournal = ProjectJournal.createPending( model, file );
+				pendingJournal.setMaxSize( journalCompactionThreshold );
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem serializing the project for " + mastodonFile + ":\n" + e.getMessage() );
+			return CompletableFuture.completedFuture( Boolean.FALSE );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		final long snapshotTime = System.currentTimeMillis() - start;
+		metrics.record( "saveAsync.snapshot", "ms", snapshotTime );
+
+		if ( saveExecutor == null )
+			saveExecutor = Executors.newSingleThreadExecutor( r -> {
+				final Thread thread = new Thread( r, "Mamut-" + ID + "-save" );
+				thread.setDaemon( true );
+				return thread;
+			} );
+		final ProjectJournal newJournal = pendingJournal;
+		pendingSave = saveExecutor.submit( () -> {
+			try
+			{
+				final long size = snapshot.writeTo( project );
+				metrics.record( "saveAsync.bytes", "bytes", size );
+				if ( newJournal != null )
+				{
+					newJournal.writeHeader( file );
+				}
+				else
+				{
+					final File journalFile = ProjectJournal.journalFile( file );
+					if ( journalFile.exists() && !journalFile.delete() )
+						logger.warn( "Could not delete the obsolete journal file " + journalFile + '\n' );
+				}
+				logger.info( String.format( "Saved %d bytes to %s in %d ms (snapshot in %d ms).\n",
+						size, mastodonFile, System.currentTimeMillis() - start, snapshotTime ) );
+				return Boolean.TRUE;
+			}
+			catch ( final IOException | RuntimeException e )
+			{
+				// The project still is the one saved before.
+				project.setProjectRoot( previousRoot );
+				logger.error( "Problem writing project to file " + mastodonFile + ":\n" + e.getMessage() );
+				return Boolean.FALSE;
+			}
+			finally
+			{
+				snapshot.dispose();
+			}
+		} );
+		return pendingSave;
+	}
+
+	/**
+	 * Waits for the background save started by {@link #saveAsync(String)}, if
+	 * any, to complete. If it succeeded, the journal started with the
+	 * snapshot replaces the previous one. Otherwise the previous journal is
+	 * kept, as the project file it belongs to is still the project root.
+	 */
+	private synchronized void awaitPendingSave()
+	{
+		if ( pendingSave == null )
+			return;
+		boolean saved = false;
+		try
+		{
+			saved = Boolean.TRUE.equals( pendingSave.get() );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Background save failed:\n" + e.getCause().getMessage() );
+		}
+		finally
+		{
+			pendingSave = null;
+		}
+		if ( saved )
+		{
+			if ( journal != null )
+				journal.detach();
+			journal = pendingJournal;
+		}
+		else if ( pendingJournal != null )
+		{
+			pendingJournal.detach();
+		}
+		pendingJournal = null;
+	}
+
+	/**
+	 * Exports the spots and links of this instance, with all their feature
+	 * values and tags, to a compact columnar binary file.
+	 * <p>
+	 * Each table is stored as typed columns of primitive values, one column
+	 * per spot or link property, per feature projection and per tag set. Tags
+	 * are stored as indices in a dictionary of tag labels. The file is written
+	 * through a bounded buffer, so the memory used does not depend on the size
+	 * of the model. The graph read lock is held during the export.
+	 * 
+	 * @param file
+	 *            a path to a writable file.
+	 * @return <code>true</code> if the export happened without errors.
+	 *         Otherwise an error message is sent to the {@link Logger}
+	 *         instance.
+	 */
+	public boolean exportColumns( final String file )
+	{
+		final long start = System.currentTimeMillis();
+		try
+		{
+			final long written = ColumnarExport.export( getModel(), new File( file ) );
+			logger.info( String.format( "Exported %d bytes to %s in %d ms.\n", written, file, System.currentTimeMillis() - start ) );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem exporting to file " + file + ":\n" + e.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Sets whether {@link #save()} should only write the changes made since the
+	 * last save, to a journal file next to the Mastodon file. The journal is
+	 * replayed when the project is opened with {@link #open(String, Context)}.
+	 * Incremental saving starts after the next full save.
+	 * 
+	 * @param incrementalSave
+	 *            whether to save incrementally.
+	 */
+	public void setIncrementalSave( final boolean incrementalSave )
+	{
+		this.incrementalSave = incrementalSave;
+	}
+
+	/**
+	 * Sets the size of the journal file above which {@link #save()} performs
+	 * a full save and starts a new journal. Edits are not recorded in memory
+	 * anymore once the journal and the recorded edits exceed this size.
+	 * 
+	 * @param bytes
+	 *            the compaction threshold, in bytes.
+	 */
+	public void setJournalCompactionThreshold( final long bytes )
+	{
+		this.journalCompactionThreshold = bytes;
+		if ( journal != null )
+			journal.setMaxSize( bytes );
+		if ( pendingJournal != null )
+			pendingJournal.setMaxSize( bytes );
+	}
+
+	/**
+	 * Called after a full save. Starts a new journal if incremental saving is
+	 * enabled, otherwise deletes any journal left next to the file.
+	 */
+	private void resetJournal( final File projectFile )
+	{
+		if ( journal != null )
+		{
+			journal.detach();
+			journal = null;
+		}
+		final File journalFile = ProjectJournal.journalFile( projectFile );
+		if ( !incrementalSave )
+		{
+			if ( journalFile.exists() && !journalFile.delete() )
+				logger.warn( "Could not delete the obsolete journal file " + journalFile + '\n' );
+			return;
+		}
+		try
+		{
+			journal = ProjectJournal.create( getModel(), projectFile );
+			journal.setMaxSize( journalCompactionThreshold );
+		}
+		catch ( final IOException e )
+		{
+			logger.warn( "Could not create the journal file, the next save will be a full save:\n" + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Called after opening a project. Replays the journal next to the project
+	 * file, if any, and enables incremental saving.
+	 */
+	private void replayJournal()
+	{
+		final File projectFile = getProjectFile();
+		if ( projectFile == null )
+			return;
+		try
+		{
+			journal = ProjectJournal.replay( getModel(), projectFile );
+			if ( journal != null )
+			{
+				journal.setMaxSize( journalCompactionThreshold );
+				incrementalSave = true;
+				logger.info( "Replayed the journal of " + projectFile + '\n' );
+			}
+		}
+		catch ( final IOException e )
+		{
+			logger.warn( "Could not replay the journal: " + e.getMessage() + '\n' );
+		}
+	}
+
+	/**
+	 * Releases the resources held by this instance and closes its project.
+	 * <p>
+	 * Waits for a pending background save, stops the background threads of
+	 * this instance and of its image cache, detaches its listeners from the
+	 * data model, deletes the scratch file of the off-heap features, disposes
+	 * of its feature computer service and closes the project model. The
+	 * {@link Context} is not disposed, so that it can be shared with other
+	 * projects. This instance must not be used after this call.
+	 */
+	public synchronized void close()
+	{
+		awaitPendingSave();
+		if ( saveExecutor != null )
+		{
+			saveExecutor.shutdown();
+			saveExecutor = null;
+		}
+		if ( journal != null )
+		{
+			journal.detach();
+			journal = null;
+		}
+		if ( statistics != null )
+		{
+			statistics.detach();
+			statistics = null;
+		}
+		if ( namedSelections != null )
+		{
+			namedSelections.detach();
+			namedSelections = null;
+		}
+		if ( featureDirtySet != null )
+		{
+			featureDirtySet.detach();
+			featureDirtySet = null;
+		}
+		if ( tagIndex != null )
+		{
+			tagIndex.detach();
+			tagIndex = null;
+		}
+		if ( offHeapFeatures != null )
+		{
+			try
+			{
+				offHeapFeatures.detach();
+			}
+			catch ( final IOException e )
+			{
+				logger.warn( "Could not delete the off-heap feature scratch file: " + e.getMessage() + '\n' );
+			}
+			offHeapFeatures = null;
+		}
+		if ( imageCache != null )
+		{
+			imageCache.close();
+			imageCache = null;
+		}
+		featureComputerService.dispose();
+		projectModel.close();
+	}
+
+	/*
+	 * Selection methods.
+	 */
+
+	/**
+	 * Sets the current selection from a selection creator expression.
+	 * <p>
+	 * Such an expression can be:
+	 * 
+	 * <pre>
+	 * mamut.select( "vertexFeature( 'Track N spots' ) &lt; 10" )
+	 * </pre>
+	 * 
+	 * An error message is sent to the logger is there is a problem with the
+	 * evaluation of the expression.
+	 * <p>
+	 * Expressions made of feature comparisons and tag tests combined with
+	 * <code>&amp;</code>, <code>|</code> and <code>!</code> are compiled once
+	 * and cached, and evaluated with the number of threads set with
+	 * {@link #setNumThreads(int)}. When they restrict the spot frame, for
+	 * instance <code>vertexFeature( 'Spot frame' ) == 25</code>, only the
+	 * spots of the matching frames are tested, using the spatio-temporal index.
+	 * Other expressions are interpreted by the selection creator parser.
+	 * 
+	 * @param expression
+	 *            a selection creator expression.
+	 */
+	public void select( final String expression )
+	{
+		final long t0 = metrics.start();
+		try
+		{
+			selectExpression( expression );
+		}
+		finally
+		{
+			if ( metrics.stop( "select", t0 ) > 0 )
+			{
+				metrics.count( "select.spots", getSelectionModel().getSelectedVertices().size() );
+				metrics.count( "select.links", getSelectionModel().getSelectedEdges().size() );
+			}
+		}
+	}
+
+	private void selectExpression( final String expression )
+	{
+		final Model model = getModel();
+		final ModelGraph graph = model.getGraph();
+		final SelectionModel< Spot, Link > selection = getSelectionModel();
+		final CompiledSelection compiled = CompiledSelection.compile( expression );
+		final CompiledSelection.Matches matches = compiled == null ? null : compiled.evaluate( model, numThreads,
+				projectModel.getSharedBdvData().getNumTimepoints() - 1 );
+		if ( matches != null )
+		{
+			CompiledSelection.select( matches, graph, selection );
+			logger.info( "Evaluation successful. Selection has now " + matches.vertices.size()
+					+ " spots and " + matches.edges.size() + " edges.\n" );
+			return;
+		}
+
+		final GraphIdBimap< Spot, Link > graphIdBimap = model.getGraphIdBimap();
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+		final FeatureModel featureModel = model.getFeatureModel();
+		final SelectionModel< Spot, Link > selectionModel = getSelectionModel();
+		try
+		{
+			final SelectionParser< Spot, Link > selectionParser = new SelectionParser<>( graph, graphIdBimap, tagSetModel, featureModel, selectionModel );
+			final boolean ok = selectionParser.parse( expression );
+			if ( ok )
+				logger.info( "Evaluation successful. Selection has now " + selectionModel.getSelectedVertices().size()
+						+ " spots and " + selectionModel.getSelectedEdges().size() + " edges.\n" );
+			else
+				logger.error( "Evaluation failed:\n" + selectionParser.getErrorMessage() + '\n' );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			logger.error( "Unable to parse the expression: " + expression );
+		}
+	}
+
+	/**
+	 * Registers a named selection, defined by a selection expression, that is
+	 * kept up to date as the model is edited.
+	 * <p>
+	 * After edits, only the spots and links that were touched are tested again
+	 * when the selection is used, instead of evaluating the expression on the
+	 * whole model. Changes to features cause a full evaluation on next use,
+	 * and so do notifications of the tag-set model for selections that test
+	 * tags, such as tag changes made with the tag-set model listeners paused.
+	 * Tags assigned with this {@link Mamut} instance only retest the tagged
+	 * objects. Only expressions that can be compiled are accepted: feature
+	 * comparisons and tag tests combined with <code>&amp;</code>,
+	 * <code>|</code> and <code>!</code>.
+	 * 
+	 * @param name
+	 *            the name of the selection. An existing selection with the
+	 *            same name is replaced.
+	 * @param expression
+	 *            a selection creator expression.
+	 * @return <code>true</code> if the selection was registered. Otherwise an
+	 *         error message is sent to the {@link Logger} instance.
+	 * @see #useSelection(String)
+	 */
+	public boolean defineSelection( final String name, final String expression )
+	{
+		if ( !getNamedSelections().define( name, expression ) )
+		{
+			logger.error( "Cannot use the expression as a named selection: " + expression + '\n' );
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Removes a named selection.
+	 * 
+	 * @param name
+	 *            the name of the selection.
+	 */
+	public void removeSelection( final String name )
+	{
+		if ( namedSelections == null || !namedSelections.remove( name ) )
+			logger.warn( "No named selection called '" + name + "'.\n" );
+	}
+
+	/**
+	 * Returns the names of the named selections.
+	 * 
+	 * @return a new list of names.
+	 */
+	public List< String > getSelectionNames()
+	{
+		return namedSelections == null ? new ArrayList<>() : namedSelections.names();
+	}
+
+	/**
+	 * Forces a full evaluation of a named selection on next use, for instance
+	 * after tags were assigned without any tag-set model notification.
+	 * 
+	 * @param name
+	 *            the name of the selection.
+	 */
+	public void refreshSelection( final String name )
+	{
+		if ( namedSelections != null )
+			namedSelections.refresh( name );
+	}
+
+	/**
+	 * Sets the current selection to the content of a named selection, so that
+	 * it can be used with {@link #tagSelectionWith(String, String)},
+	 * {@link #deleteSelection()} or in views.
+	 * 
+	 * @param name
+	 *            the name of a selection registered with
+	 *            {@link #defineSelection(String, String)}.
+	 */
+	public void useSelection( final String name )
+	{
+		final CompiledSelection.Matches matches = namedSelections == null ? null
+				: namedSelections.get( name, numThreads, projectModel.getSharedBdvData().getNumTimepoints() - 1 );
+		if ( matches == null )
+		{
+			logger.error( "Could not evaluate the named selection '" + name + "'.\n" );
+			return;
+		}
+		CompiledSelection.select( matches, getModel().getGraph(), getSelectionModel() );
+		logger.info( "Selection '" + name + "' has " + matches.vertices.size()
+				+ " spots and " + matches.edges.size() + " edges.\n" );
+	}
+
+	private synchronized NamedSelections getNamedSelections()
+	{
+		if ( namedSelections == null )
+			namedSelections = NamedSelections.attach( getModel() );
+		return namedSelections;
+	}
+
+	/**
+	 * Clears the current selection.
+	 */
+	public void resetSelection()
+	{
+		getSelectionModel().clearSelection();
+	}
+
+	/**
+	 * Deletes all the data items (spots and tracks) currently in the selection.
+	 */
+	public void deleteSelection()
+	{
+		final SelectionModel< Spot, Link > selection = getSelectionModel();
+		final ReentrantReadWriteLock lock = getModel().getGraph().getLock();
+		if ( selection.isEmpty() )
+			return;
+
+		final long t0 = metrics.start();
+		lock.writeLock().lock();
+		metrics.stop( "deleteSelection.lockWait", t0 );
+		final ModelGraph graph = getModel().getGraph();
+		selection.pauseListeners();
+		try
+		{
+			final RefSet< Link > edges = selection.getSelectedEdges();
+			final RefSet< Spot > vertices = selection.getSelectedVertices();
+
+			int nLinks = 0;
+			int nSpots = 0;
 
 			for ( final Link e : edges )
 			{
@@ -425,14 +1352,68 @@ public class Mamut
 				nSpots++;
 			}
 
+			metrics.count( "deleteSelection.spots", nSpots );
+			metrics.count( "deleteSelection.links", nLinks );
+			logger.info( "Removed " + nSpots + " spots and " + nLinks + " links.\n" );
+		}
+		finally
+		{
 			getModel().setUndoPoint();
 			graph.notifyGraphChanged();
 			selection.resumeListeners();
+			lock.writeLock().unlock();
+			metrics.stop( "deleteSelection", t0 );
+		}
+	}
 
-			logger.info( "Removed " + nSpots + " spots and " + nLinks + " links.\n" );
+	/**
+	 * Deletes the spots and links matching a selection expression, in a single
+	 * pass and without going through the selection.
+	 * <p>
+	 * Only compiled expressions are accepted: feature comparisons and tag
+	 * tests combined with <code>&amp;</code>, <code>|</code> and
+	 * <code>!</code>. Other expressions are rejected with an error message;
+	 * use {@link #select(String)} followed by {@link #deleteSelection()} for
+	 * them.
+	 * <p>
+	 * The current selection is not used. Its listeners are paused during the
+	 * deletion, so that they are notified once even if selected objects are
+	 * removed. The deletion is recorded as one undo point.
+	 * 
+	 * @param expression
+	 *            a selection creator expression.
+	 * @return <code>true</code> if the expression could be evaluated.
+	 *         Otherwise an error message is sent to the {@link Logger}
+	 *         instance.
+	 */
+	public boolean deleteWhere( final String expression )
+	{
+		final ModelGraph graph = getModel().getGraph();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		final SelectionModel< Spot, Link > selection = getSelectionModel();
+		lock.writeLock().lock();
+		selection.pauseListeners();
+		boolean edited = false;
+		try
+		{
+			final CompiledSelection.Matches matches = matches( expression );
+			if ( matches == null )
+				return false;
+			if ( matches.vertices.isEmpty() && matches.edges.isEmpty() )
+				return true;
+			edited = true;
+			final int[] removed = BulkModelEdits.removeIds( getModel(), matches.vertices, matches.edges );
+			logger.info( "Removed " + removed[ 0 ] + " spots and " + removed[ 1 ] + " links.\n" );
+			return true;
 		}
 		finally
 		{
+			if ( edited )
+			{
+				getModel().setUndoPoint();
+				graph.notifyGraphChanged();
+			}
+			selection.resumeListeners();
 			lock.writeLock().unlock();
 		}
 	}
@@ -444,10 +1425,13 @@ public class Mamut
 	/**
 	 * Prints the content of the data model as two tables as text in the logger
 	 * output.
+	 * <p>
+	 * The tables are streamed to the logger in chunks as the model is
+	 * iterated, so the memory used does not depend on the size of the model.
 	 */
 	public void echo()
 	{
-		logger.info( ModelUtils.dump( getModel() ) );
+		echoTables( Long.MAX_VALUE );
 	}
 
 	/**
@@ -459,7 +1443,225 @@ public class Mamut
 	 */
 	public void echo( final int nLines )
 	{
-		logger.info( ModelUtils.dump( getModel(), nLines ) );
+		echoTables( nLines );
+	}
+
+	private void echoTables( final long nLines )
+	{
+		try (final LoggerWriter out = new LoggerWriter( logger ))
+		{
+			new TableWriter( getModel() ).maxLines( nLines ).write( out );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem printing the data model:\n" + e.getMessage() );
+		}
+	}
+
+	/**
+	 * Writes the content of the data model as two text tables to a file.
+	 * <p>
+	 * Rows are written as the model is iterated, so the memory used does not
+	 * depend on the size of the model.
+	 * 
+	 * @param file
+	 *            a path to a writable file.
+	 * @param columns
+	 *            the names of the feature columns to write (feature projection
+	 *            keys), or <code>null</code> to write all of them.
+	 * @param expression
+	 *            a selection expression; only the spots and links it selects
+	 *            are written. If <code>null</code>, all of them are written.
+	 * @return <code>true</code> if writing happened without errors. Otherwise
+	 *         an error message is sent to the {@link Logger} instance.
+	 */
+	public boolean writeTable( final String file, final Collection< String > columns, final String expression )
+	{
+		try (final Writer out = Files.newBufferedWriter( Paths.get( file ), StandardCharsets.UTF_8 ))
+		{
+			return writeTable( out, columns, expression );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem writing the table to file " + file + ":\n" + e.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the content of the data model as two text tables to a writer.
+	 * The writer is flushed but not closed.
+	 * 
+	 * @param out
+	 *            the writer.
+	 * @param columns
+	 *            the names of the feature columns to write (feature projection
+	 *            keys), or <code>null</code> to write all of them.
+	 * @param expression
+	 *            a selection expression; only the spots and links it selects
+	 *            are written. If <code>null</code>, all of them are written.
+	 *            It does not change the current selection.
+	 * @return <code>true</code> if writing happened without errors. Otherwise
+	 *         an error message is sent to the {@link Logger} instance.
+	 */
+	public boolean writeTable( final Writer out, final Collection< String > columns, final String expression )
+	{
+		final TableWriter writer = new TableWriter( getModel() ).columns( columns );
+		DefaultSelectionModel< Spot, Link > parsed = null;
+		if ( expression != null )
+		{
+			// Test objects while writing when the expression compiles.
+			final CompiledSelection compiled = CompiledSelection.compile( expression );
+			final CompiledSelection.Bound bound = compiled == null ? null : compiled.bind( getModel() );
+			if ( bound != null )
+			{
+				writer.spots( bound::vertex ).links( bound::edge );
+			}
+			else
+			{
+				parsed = parseSelection( expression );
+				if ( parsed == null )
+					return false;
+				writer.spots( parsed::isSelected ).links( parsed::isSelected );
+			}
+		}
+		try
+		{
+			writer.write( out );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem writing the table:\n" + e.getMessage() );
+			return false;
+		}
+		finally
+		{
+			if ( parsed != null )
+				releaseSelection( parsed );
+		}
+	}
+
+	/**
+	 * Writes the spots and links matching a selection expression as two text
+	 * tables to a file, testing each object as it is written.
+	 * <p>
+	 * Only compiled expressions are accepted: feature comparisons and tag
+	 * tests combined with <code>&amp;</code>, <code>|</code> and
+	 * <code>!</code>. Other expressions are rejected with an error message;
+	 * use {@link #writeTable(String, Collection, String)} for them. The
+	 * current selection is not used nor modified.
+	 * 
+	 * @param expression
+	 *            a selection creator expression.
+	 * @param file
+	 *            a path to a writable file.
+	 * @param columns
+	 *            the names of the feature columns to write (feature projection
+	 *            keys), or <code>null</code> to write all of them.
+	 * @return <code>true</code> if writing happened without errors. Otherwise
+	 *         an error message is sent to the {@link Logger} instance.
+	 */
+	public boolean exportWhere( final String expression, final String file, final Collection< String > columns )
+	{
+		final CompiledSelection compiled = compiled( expression );
+		if ( compiled == null )
+			return false;
+		final CompiledSelection.Bound bound = compiled.bind( getModel() );
+		if ( bound == null )
+		{
+			logger.error( "Could not find a feature or a tag used in the expression: " + expression + '\n' );
+			return false;
+		}
+		try (final Writer out = Files.newBufferedWriter( Paths.get( file ), StandardCharsets.UTF_8 ))
+		{
+			new TableWriter( getModel() )
+					.columns( columns )
+					.spots( bound::vertex )
+					.links( bound::edge )
+					.write( out );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem writing the table to file " + file + ":\n" + e.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluates a selection expression into a private selection model, with
+	 * the selection creator parser. The selection model listens to the graph:
+	 * it must be released with {@link #releaseSelection(DefaultSelectionModel)}
+	 * after use.
+	 * 
+	 * @return the selection model, or <code>null</code> if the evaluation
+	 *         failed.
+	 */
+	private DefaultSelectionModel< Spot, Link > parseSelection( final String expression )
+	{
+		final Model model = getModel();
+		final ModelGraph graph = model.getGraph();
+		final DefaultSelectionModel< Spot, Link > selection = new DefaultSelectionModel<>( graph, graph.getGraphIdBimap() );
+		try
+		{
+			final SelectionParser< Spot, Link > parser = new SelectionParser<>( graph, graph.getGraphIdBimap(), model.getTagSetModel(), model.getFeatureModel(), selection );
+			if ( !parser.parse( expression ) )
+			{
+				logger.error( "Evaluation failed:\n" + parser.getErrorMessage() + '\n' );
+				releaseSelection( selection );
+				return null;
+			}
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			logger.error( "Unable to parse the expression: " + expression );
+			releaseSelection( selection );
+			return null;
+		}
+		return selection;
+	}
+
+	/**
+	 * Stops a private selection model from listening to the graph.
+	 */
+	private void releaseSelection( final DefaultSelectionModel< Spot, Link > selection )
+	{
+		getModel().getGraph().removeGraphListener( selection );
+	}
+
+	/**
+	 * Returns the compiled form of an expression used by the fused
+	 * operations, or <code>null</code> if it cannot be compiled, in which
+	 * case an error message is sent to the logger.
+	 */
+	private CompiledSelection compiled( final String expression )
+	{
+		final CompiledSelection compiled = CompiledSelection.compile( expression );
+		if ( compiled == null )
+			logger.error( "Only feature comparisons and tag tests combined with &, | and ! "
+					+ "can be used here; use select() for other expressions: " + expression + '\n' );
+		return compiled;
+	}
+
+	/**
+	 * Returns the ids of the spots and links matching a compiled selection
+	 * expression, evaluated in parallel, without modifying the current
+	 * selection.
+	 * 
+	 * @return the matches, or <code>null</code> if the expression cannot be
+	 *         compiled or evaluated.
+	 */
+	private CompiledSelection.Matches matches( final String expression )
+	{
+		final CompiledSelection compiled = compiled( expression );
+		if ( compiled == null )
+			return null;
+		final CompiledSelection.Matches matches = compiled.evaluate( getModel(), numThreads,
+				projectModel.getSharedBdvData().getNumTimepoints() - 1 );
+		if ( matches == null )
+			logger.error( "Could not find a feature or a tag used in the expression: " + expression + '\n' );
+		return matches;
 	}
 
 	/**
@@ -476,15 +1678,58 @@ public class Mamut
 		else
 			str.append( mastodonFile.getAbsolutePath() + '\n' );
 		str.append( " - dataset: " + projectModel.getProject().getDatasetXmlFile() + '\n' );
+		final ModelStatistics stats = getStatistics();
 		str.append( String.format( " - objects: %d spots, %d links and %d tracks.\n",
-				getModel().getGraph().vertices().size(),
-				getModel().getGraph().edges().size(),
-				RootFinder.getRoots( getModel().getGraph() ).size() ) );
+				stats.nSpots(),
+				stats.nLinks(),
+				stats.nTracks() ) );
 		str.append( " - units: " + getModel().getSpaceUnits() + " and " + getModel().getTimeUnits() + '\n' );
 
 		logger.info( str.toString() );
 	}
 
+	/**
+	 * Returns statistics on the content of the data model, in a form suitable
+	 * for further processing.
+	 * <p>
+	 * The returned map has the following keys:
+	 * <ul>
+	 * <li><code>spots</code>, <code>links</code> and <code>tracks</code>: the
+	 * number of spots, links and tracks (an <code>Integer</code>).
+	 * <li><code>spotsPerTimepoint</code>: a sorted map from timepoint to the
+	 * number of spots in this timepoint, for timepoints that have spots.
+	 * <li><code>spotTags</code> and <code>linkTags</code>: a map from tag-set
+	 * name to a map from tag label to the number of spots or links tagged with
+	 * this tag.
+	 * </ul>
+	 * The counts are maintained incrementally as the model is edited, so this
+	 * method does not iterate over the model.
+	 * 
+	 * @return a new map.
+	 */
+	public Map< String, Object > stats()
+	{
+		final ModelStatistics stats = getStatistics();
+		final Map< String, Object > map = new LinkedHashMap<>();
+		map.put( "spots", stats.nSpots() );
+		map.put( "links", stats.nLinks() );
+		map.put( "tracks", stats.nTracks() );
+		map.put( "spotsPerTimepoint", stats.spotsPerTimepoint() );
+		map.put( "spotTags", stats.tagCounts( true ) );
+		map.put( "linkTags", stats.tagCounts( false ) );
+		return map;
+	}
+
+	/**
+	 * Returns the model statistics, starting to maintain them on first call.
+	 */
+	private synchronized ModelStatistics getStatistics()
+	{
+		if ( statistics == null )
+			statistics = ModelStatistics.attach( getModel() );
+		return statistics;
+	}
+
 	/**
 	 * Prints summary information on the feature computers known to Mastodon to
 	 * the logger output.
@@ -609,15 +1854,46 @@ public class Mamut
 
 	/**
 	 * Clears the content of the data model. Can be undone.
+	 * <p>
+	 * The spots are removed one by one, along with their links, while holding
+	 * the graph write lock. This is not a truncation of the graph: the graph
+	 * listeners stay active so that each removal is recorded by the undo
+	 * recorder. The selection is cleared at once, and the whole operation is
+	 * recorded as a single undo point, even if it fails halfway.
+	 * <p>
+	 * The time taken is proportional to the number of spots and links. There
+	 * is no constant-time reset: the model API offers no way to empty the
+	 * object pools, the spatio-temporal index and the tag maps together while
+	 * recording a single undo entry, and a reset that skips the undo recorder
+	 * would leave the undo history pointing to objects that no longer exist.
 	 */
 	public void clear()
 	{
 		logger.info( "Clearing model.\n" );
-		final ModelGraph graph = getModel().getGraph();
-		for ( final Spot spot : graph.vertices() )
-			graph.remove( spot );
-
-		getModel().setUndoPoint();
+		final long t0 = metrics.start();
+		final Model model = getModel();
+		final ModelGraph graph = model.getGraph();
+		final SelectionModel< Spot, Link > selection = getSelectionModel();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.writeLock().lock();
+		metrics.stop( "clear.lockWait", t0 );
+		selection.pauseListeners();
+		try
+		{
+			selection.clearSelection();
+			final int[] removed = BulkModelEdits.clear( model );
+			metrics.count( "clear.spots", removed[ 0 ] );
+			metrics.count( "clear.links", removed[ 1 ] );
+			logger.info( "Removed " + removed[ 0 ] + " spots and " + removed[ 1 ] + " links.\n" );
+		}
+		finally
+		{
+			model.setUndoPoint();
+			graph.notifyGraphChanged();
+			selection.resumeListeners();
+			lock.writeLock().unlock();
+			metrics.stop( "clear", t0 );
+		}
 	}
 
 	/*
@@ -656,7 +1932,83 @@ public class Mamut
 		final TrackMate trackmate = new TrackMate( settings, getModel(), getSelectionModel() );
 		trackmate.setContext( projectModel.getContext() );
 		trackmate.setLogger( logger );
-		return new TrackMateProxy( trackmate, logger );
+		final TrackMateProxy proxy = new TrackMateProxy( trackmate, logger );
+		proxy.setFeatureValuesListener( this::featureValuesChanged );
+		proxy.setNumThreads( numThreads );
+		proxy.setImageCache( imageCache );
+		proxy.setMetrics( metrics );
+		return proxy;
+	}
+
+	/**
+	 * Returns the metrics registry of this instance.
+	 * <p>
+	 * When enabled, the registry records the time spent in
+	 * {@link #detect(double, double)} (in total and per timepoint), linking,
+	 * {@link #computeFeatures(String...)}, {@link #select(String)},
+	 * {@link #deleteSelection()}, {@link #clear()}, saving and opening, along
+	 * with the time spent waiting for the graph lock, the number of objects
+	 * touched and the number of bytes written. The registry is disabled by
+	 * default, unless the <code>mamut.metrics</code> system property is set to
+	 * <code>true</code>. The time spent opening the project is recorded when
+	 * the registry is enabled, if it was not enabled already.
+	 * 
+	 * @return the metrics registry.
+	 */
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	/**
+	 * Writes the content of the metrics registry to a file, as JSON if its
+	 * name ends with <code>.json</code> and as CSV otherwise.
+	 * 
+	 * @param file
+	 *            a path to a writable file.
+	 * @return <code>true</code> if writing happened without errors. Otherwise
+	 *         an error message is sent to the {@link Logger} instance.
+	 */
+	public boolean dumpMetrics( final String file )
+	{
+		try
+		{
+			metrics.write( new File( file ) );
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem writing metrics to file " + file + ":\n" + e.getMessage() );
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the control of the image cache of this instance, creating it on
+	 * first call.
+	 * <p>
+	 * The image cache can keep image cells in memory up to a budget, with a
+	 * choice of eviction policy, and prefetch timepoints ahead of detection in
+	 * {@link #detect(double, double)} and in the {@link TrackMateProxy}
+	 * instances created afterwards by {@link #createTrackMate()}. Its
+	 * statistics can be polled with {@link ImageCache#stats()} or printed with
+	 * {@link #echoImageCache()}.
+	 * 
+	 * @return the image cache control.
+	 */
+	public synchronized ImageCache getImageCache()
+	{
+		if ( imageCache == null )
+			imageCache = new ImageCache( projectModel.getSharedBdvData() );
+		return imageCache;
+	}
+
+	/**
+	 * Prints the statistics of the image cache.
+	 */
+	public void echoImageCache()
+	{
+		logger.info( getImageCache().toString() + '\n' );
 	}
 
 	/**
@@ -672,10 +2024,11 @@ public class Mamut
 	 */
 	public void detect( final double radius, final double threshold )
 	{
-		final TrackMate trackmate = createTrackMate().trackmate;
+		final TrackMateProxy proxy = createTrackMate();
+		final TrackMate trackmate = proxy.trackmate;
 		trackmate.getSettings().values.getDetectorSettings().put( DetectorKeys.KEY_RADIUS, Double.valueOf( radius ) );
 		trackmate.getSettings().values.getDetectorSettings().put( DetectorKeys.KEY_THRESHOLD, Double.valueOf( threshold ) );
-		trackmate.execDetection();
+		proxy.execDetection();
 	}
 
 	/**
@@ -695,7 +2048,12 @@ public class Mamut
 		trackmate.getSettings().values.getLinkerSettings().put( LinkerKeys.KEY_LINKING_MAX_DISTANCE, Double.valueOf( maxLinkingDistance ) );
 		trackmate.getSettings().values.getLinkerSettings().put( LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE, Double.valueOf( maxLinkingDistance ) );
 		trackmate.getSettings().values.getLinkerSettings().put( LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP, Integer.valueOf( maxFrameGap ) );
-		trackmate.execParticleLinking();
+		final long t0 = metrics.start();
+		final boolean ok = trackmate.execParticleLinking();
+		metrics.stop( "link", t0 );
+		if ( !ok )
+			logger.error( trackmate.getErrorMessage() );
+		featureValuesChanged();
 	}
 
 	/*
@@ -722,11 +2080,32 @@ public class Mamut
 	 *            if <code>true</code>, will force recomputation for all data
 	 *            items. If <code>false</code>, feature values that are in sync
 	 *            won't be recomputed.
+	 *            Features that are declared and whose spots and links did not
+	 *            change since they were last computed are skipped and kept
+	 *            as they are. See {@link #featureStats()}.
+	 *            <p>
+	 *            Features that are updated in place, in the objects already
+	 *            declared in the feature model, do not emit feature model
+	 *            events. The project journal and the named selections are
+	 *            told about these changes directly.
 	 * @param featureKeys
 	 *            the names of the feature computer to use for computation. It
 	 *            matters not whether the feature is for spots, links, ...
 	 */
 	public void computeFeatures( final boolean forceComputeAll, final String... featureKeys )
+	{
+		final long t0 = metrics.start();
+		try
+		{
+			computeFeatureKeys( forceComputeAll, featureKeys );
+		}
+		finally
+		{
+			metrics.stop( "computeFeatures", t0 );
+		}
+	}
+
+	private void computeFeatureKeys( final boolean forceComputeAll, final String... featureKeys )
 	{
 		logger.info( "Feature computation started.\n" );
 		final Collection< FeatureSpec< ?, ? > > featureSpecs = new ArrayList<>();
@@ -747,30 +2126,277 @@ public class Mamut
 				logger.warn( "The feature " + key + " is defined for " + spec.getTargetClass() + " objects, not for spots or links. Skipping.\n" );
 		}
 
-		final Map< FeatureSpec< ?, ? >, Feature< ? > > map = featureComputerService.compute( forceComputeAll, featureSpecs );
-		if ( featureComputerService.isCanceled() )
+		if ( offHeapFeatures == null )
 		{
-			logger.warn( "Feature computation canceled. Reason: " + featureComputerService.getCancelReason() + '\n' );
+			if ( !computeFeatures( forceComputeAll, featureSpecs ).isEmpty() )
+				featureValuesChanged();
 			return;
 		}
 
+		// Computers expect features in their own classes.
+		Collection< FeatureSpec< ?, ? > > changed = Collections.emptyList();
+		try
+		{
+			offHeapFeatures.restore( FeatureTimer.withDependencies( projectModel.getContext(), featureSpecs ) );
+			changed = computeFeatures( forceComputeAll, featureSpecs );
+		}
+		catch ( final IOException e )
+		{
+			logger.error( "Problem reading off-heap features:\n" + e.getMessage() );
+		}
+		finally
+		{
+			if ( !changed.isEmpty() )
+				featureValuesChanged();
+			try
+			{
+				offHeapFeatures.offload( changed );
+			}
+			catch ( final IOException e )
+			{
+				logger.error( "Problem writing off-heap features:\n" + e.getMessage() );
+			}
+		}
+	}
+
+	/**
+	 * Called after feature values were written, possibly into features that
+	 * were already declared. Such writes do not emit feature model events, and
+	 * cannot be journaled.
+	 */
+	private void featureValuesChanged()
+	{
+		if ( journal != null )
+			journal.featureValuesChanged();
+	}
+
+	/**
+	 * Computes the specified features on the heap.
+	 * 
+	 * @return the specs of the features whose values may have changed.
+	 */
+	private Collection< FeatureSpec< ?, ? > > computeFeatures( final boolean forceComputeAll, final Collection< FeatureSpec< ?, ? > > featureSpecs )
+	{
+		// Skip the features that are declared and whose objects did not change.
 		final FeatureModel featureModel = getModel().getFeatureModel();
-		featureModel.pauseListeners();
-		// Clear feature we can compute
-		final Collection< FeatureSpec< ?, ? > > featureSpecsIn = featureModel.getFeatureSpecs();
-		final Collection< FeatureSpec< ?, ? > > toClear = new ArrayList<>();
-		for ( final FeatureSpec< ?, ? > featureSpec : featureSpecsIn )
-			if ( null != featureComputerService.getFeatureComputerFor( featureSpec ) )
-				toClear.add( featureSpec );
+		final FeatureDirtySet dirtySet = getFeatureDirtySet();
+		final Collection< FeatureSpec< ?, ? > > toCompute = new ArrayList<>();
+		final TIntHashSet dirtyVertices = new TIntHashSet();
+		final TIntHashSet dirtyEdges = new TIntHashSet();
+		final Map< String, Object > stats = new LinkedHashMap<>();
+		boolean all = false;
+		long recomputed = 0;
+		long skipped = 0;
+		final ReentrantReadWriteLock lock = getModel().getGraph().getLock();
+		lock.readLock().lock();
+		try
+		{
+			for ( final FeatureSpec< ?, ? > spec : featureSpecs )
+			{
+				final FeatureDirtySet.Count count = dirtySet.count( spec, forceComputeAll, dirtyVertices, dirtyEdges );
+				final boolean skip = count.recomputed == 0 && featureModel.getFeature( spec ) != null;
+				if ( !skip )
+				{
+					toCompute.add( spec );
+					all |= count.all;
+				}
+				final Map< String, Integer > counts = new LinkedHashMap<>();
+				counts.put( "estimatedRecomputed", skip ? 0 : count.recomputed );
+				counts.put( "estimatedSkipped", skip ? count.recomputed + count.skipped : count.skipped );
+				stats.put( spec.getKey(), counts );
+				recomputed += counts.get( "estimatedRecomputed" );
+				skipped += counts.get( "estimatedSkipped" );
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		stats.put( "estimatedRecomputed", recomputed );
+		stats.put( "estimatedSkipped", skipped );
+		lastFeatureStats = stats;
+
+		final boolean warm = blockOrderedFeatures && !toCompute.isEmpty() && FeatureTimer.readsImageData( projectModel.getContext(), toCompute );
+		final long budget = warm ? getImageCache().getMemoryBudget() : 0;
+		final CellCacheWarmer.Result warmed = warm ? warmCellCache( stats ) : null;
 
-		for ( final FeatureSpec< ?, ? > featureSpec : toClear )
-			featureModel.clear( featureSpec );
+		final Map< FeatureSpec< ?, ? >, Feature< ? > > map;
+		try
+		{
+			if ( toCompute.isEmpty() )
+			{
+				map = new LinkedHashMap<>();
+			}
+			else if ( featureTimings )
+			{
+				if ( featureTimer == null )
+					featureTimer = new FeatureTimer( projectModel.getContext(), featureComputerService );
+				map = featureTimer.compute( forceComputeAll, toCompute, logger );
+				if ( map == null )
+				{
+					logger.warn( "Feature computation canceled. Reason: " + featureTimer.getCancelReason() + '\n' );
+					return toCompute;
+				}
+				stats.put( "timings", featureTimer.getTimings() );
+			}
+			else
+			{
+				map = featureComputerService.compute( forceComputeAll, toCompute );
+				if ( featureComputerService.isCanceled() )
+				{
+					logger.warn( "Feature computation canceled. Reason: " + featureComputerService.getCancelReason() + '\n' );
+					return toCompute;
+				}
+			}
+		}
+		finally
+		{
+			if ( warm )
+				releaseCellCache( warmed, budget, stats );
+		}
+		dirtySet.computed( map.keySet() );
 
-		// Pass the feature map to the feature model.
-		map.values().forEach( featureModel::declareFeature );
+		// Replace the features that were computed in new objects, keep the others.
+		boolean updatedInPlace = false;
+		featureModel.pauseListeners();
+		try
+		{
+			for ( final Map.Entry< FeatureSpec< ?, ? >, Feature< ? > > entry : map.entrySet() )
+			{
+				final Feature< ? > previous = featureModel.getFeature( entry.getKey() );
+				if ( previous == entry.getValue() )
+				{
+					updatedInPlace = true;
+					continue;
+				}
+				if ( previous != null )
+					featureModel.clear( entry.getKey() );
+				featureModel.declareFeature( entry.getValue() );
+			}
+		}
+		finally
+		{
+			featureModel.resumeListeners();
+		}
 
-		featureModel.resumeListeners();
+		/*
+		 * Values changed without a feature model event. The journal is told by
+		 * featureValuesChanged(), called by the caller when features changed.
+		 */
+		if ( updatedInPlace && namedSelections != null )
+		{
+			if ( all )
+				namedSelections.refreshAll();
+			else
+				namedSelections.touch( dirtyVertices, dirtyEdges );
+		}
+		metrics.count( "computeFeatures.estimatedRecomputed", recomputed );
+		metrics.count( "computeFeatures.estimatedSkipped", skipped );
+		logger.info( String.format( "Estimated %d objects to recompute, %d to skip.\n", recomputed, skipped ) );
 		logger.info( "Feature computation finished.\n" );
+		return map.keySet();
+	}
+
+	/**
+	 * Loads the image cells read by feature computers in block order, and
+	 * adds what was loaded to the specified statistics.
+	 */
+	private CellCacheWarmer.Result warmCellCache( final Map< String, Object > stats )
+	{
+		final ImageCache cache = getImageCache();
+		if ( cache.getMemoryBudget() == 0 )
+		{
+			final long budget = Runtime.getRuntime().maxMemory() / 4;
+			cache.setMemoryBudget( budget );
+			logger.info( String.format( "The image cache has no memory budget: using %d MB while computing features.\n", budget >> 20 ) );
+		}
+		final long start = System.currentTimeMillis();
+		try
+		{
+			final CellCacheWarmer.Result result = CellCacheWarmer.warm( getModel(), projectModel.getSharedBdvData(), numThreads, cache );
+			logger.info( String.format( "Loaded %d image cells for %d cell reads of %d spots in %d ms (cell reuse ratio %.1f%%).\n",
+					result.cells, result.reads, result.spots, System.currentTimeMillis() - start, 100. * result.cellReuseRatio() ) );
+			if ( result.stoppedAt >= 0 )
+				logger.warn( "Image cells not loaded from timepoint " + result.stoppedAt + " on: the image cache memory budget was reached.\n" );
+			stats.put( "cellReads", result.reads );
+			stats.put( "cellLoads", result.cells );
+			return result;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.warn( "Image cell loading interrupted.\n" );
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.warn( "Could not load image cells: " + e.getCause().getMessage() + '\n' );
+		}
+		return null;
+	}
+
+	/**
+	 * Counts the cell reads of the spots whose cell is still held, then
+	 * restores the memory budget the image cache had before warming.
+	 */
+	private void releaseCellCache( final CellCacheWarmer.Result result, final long budget, final Map< String, Object > stats )
+	{
+		if ( result != null )
+		{
+			final long held = result.heldReads( imageCache );
+			stats.put( "cellHeldReads", held );
+			logger.info( String.format( "At least %d of %d cell reads found their cell in the image cache (%.1f%%), for a cell reuse ratio of %.1f%%.\n",
+					held, result.reads, result.reads == 0 ? 0. : 100. * held / result.reads, 100. * result.cellReuseRatio() ) );
+		}
+		imageCache.setMemoryBudget( budget );
+	}
+
+	/**
+	 * Returns how many objects the last call to
+	 * {@link #computeFeatures(boolean, String...)} estimated it had to
+	 * recompute and could skip.
+	 * <p>
+	 * The returned map has one entry per feature key, mapping to a map with
+	 * the <code>estimatedRecomputed</code> and <code>estimatedSkipped</code>
+	 * counts of this feature (an <code>Integer</code>), and the
+	 * <code>estimatedRecomputed</code> and <code>estimatedSkipped</code>
+	 * totals (a <code>Long</code>). A spot or a link is estimated to be
+	 * recomputed if it changed since the feature was last computed, or if it
+	 * belongs to a track whose links changed. These are estimates from the
+	 * changes seen by this instance: the feature computers decide on their own
+	 * which values they actually recompute, and features that are not skipped
+	 * may be recomputed for more objects.
+	 * <p>
+	 * When image cells are loaded in block order (see
+	 * {@link #setBlockOrderedFeatures(boolean)}), the map also has the
+	 * <code>cellReads</code>, <code>cellLoads</code> and
+	 * <code>cellHeldReads</code> keys: the number of image cells overlapped
+	 * by the spots, counting each spot separately, the number of distinct
+	 * cells loaded, and the number of these reads whose cell the image cache
+	 * still held after the computers ran (a <code>Long</code>). The latter is
+	 * measured, and is a lower bound of the reads that hit the cache.
+	 * <p>
+	 * When feature computers are timed (see
+	 * {@link #setFeatureTimings(boolean)}), the <code>timings</code> key maps
+	 * to the time spent in the computer of each feature, in milliseconds,
+	 * keyed by feature key, and the time of the whole pass under the
+	 * <code>total</code> key.
+	 * 
+	 * @return a new map.
+	 */
+	public Map< String, Object > featureStats()
+	{
+		return new LinkedHashMap<>( lastFeatureStats );
+	}
+
+	/**
+	 * Returns the dirty set of features, starting to maintain it on first
+	 * call.
+	 */
+	private synchronized FeatureDirtySet getFeatureDirtySet()
+	{
+		if ( featureDirtySet == null )
+			featureDirtySet = FeatureDirtySet.attach( getModel() );
+		return featureDirtySet;
 	}
 
 	/*
@@ -851,30 +2477,200 @@ public class Mamut
 	 */
 	public void tagSelectionWith( final String tagSetName, final String label )
 	{
-		final TagSetModel< Spot, Link > tagModel = getModel().getTagSetModel();
-		tagModel.getTagSetStructure().getTagSets();
-		final Optional< TagSet > optionalTagSet = tagModel.getTagSetStructure().getTagSets().stream().filter( ts -> ts.getName().equals( tagSetName ) ).findFirst();
-		if ( !optionalTagSet.isPresent() )
+		final GraphIdBimap< Spot, Link > idmap = getModel().getGraphIdBimap();
+		final SelectionModel< Spot, Link > selection = getSelectionModel();
+		final TIntArrayList vertexIds = new TIntArrayList( selection.getSelectedVertices().size() );
+		for ( final Spot spot : selection.getSelectedVertices() )
+			vertexIds.add( idmap.getVertexId( spot ) );
+		final TIntArrayList edgeIds = new TIntArrayList( selection.getSelectedEdges().size() );
+		for ( final Link link : selection.getSelectedEdges() )
+			edgeIds.add( idmap.getEdgeId( link ) );
+		tag( tagSetName, label, vertexIds, edgeIds );
+	}
+
+	/**
+	 * Assigns the specified tag to the spots and links with the specified ids.
+	 * <p>
+	 * The ids are the ids of the objects in the model graph, as reported in
+	 * the <code>Id</code> column of the tables written by {@link #echo()} and
+	 * {@link #writeTable(String, Collection, String)}. They are checked against
+	 * the graph first: if one of them is not the id of a spot or link of the
+	 * model, nothing is tagged.
+	 * <p>
+	 * The tags are still written one object at a time, but with the tag-set
+	 * model listeners paused: the only notification they receive is the one
+	 * sent by {@link TagSetModel#resumeListeners()} when the assignment is
+	 * done. One undo point is recorded.
+	 * 
+	 * @param tagSetName
+	 *            the name of the tag-set to use.
+	 * @param label
+	 *            the name of the tag in the tag-set to use.
+	 * @param spotIds
+	 *            the ids of the spots to tag.
+	 * @param linkIds
+	 *            the ids of the links to tag.
+	 * @return <code>true</code> if the tag was found and all the ids are ids
+	 *         of objects of the model. Otherwise an error message is sent to
+	 *         the {@link Logger} instance.
+	 */
+	public boolean tag( final String tagSetName, final String label, final int[] spotIds, final int[] linkIds )
+	{
+		return tagIds( tagSetName, label, TIntArrayList.wrap( spotIds ), TIntArrayList.wrap( linkIds ) );
+	}
+
+	/**
+	 * Assigns the specified tag to the spots and links with the specified ids.
+	 * 
+	 * @param tagSetName
+	 *            the name of the tag-set to use.
+	 * @param label
+	 *            the name of the tag in the tag-set to use.
+	 * @param spotIds
+	 *            the ids of the spots to tag.
+	 * @param linkIds
+	 *            the ids of the links to tag.
+	 * @return <code>true</code> if the tag was found and all the ids are ids
+	 *         of objects of the model. Otherwise an error message is sent to
+	 *         the {@link Logger} instance.
+	 * @see #tag(String, String, int[], int[])
+	 */
+	public boolean tag( final String tagSetName, final String label, final Collection< Integer > spotIds, final Collection< Integer > linkIds )
+	{
+		final TIntArrayList vertexIds = new TIntArrayList( spotIds.size() );
+		spotIds.forEach( vertexIds::add );
+		final TIntArrayList edgeIds = new TIntArrayList( linkIds.size() );
+		linkIds.forEach( edgeIds::add );
+		return tagIds( tagSetName, label, vertexIds, edgeIds );
+	}
+
+	/**
+	 * Tags the objects with ids given by the caller, after checking that they
+	 * are in the graph.
+	 */
+	private boolean tagIds( final String tagSetName, final String label, final TIntArrayList vertexIds, final TIntArrayList edgeIds )
+	{
+		final ModelGraph graph = getModel().getGraph();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		lock.readLock().lock();
+		try
 		{
-			logger.error( "Could not find a tag-set with the name: '" + tagSetName + "'\n" );
-			return;
+			final TIntArrayList missingVertices = BulkModelEdits.missingVertices( graph, vertexIds );
+			final TIntArrayList missingEdges = BulkModelEdits.missingEdges( graph, edgeIds );
+			if ( !missingVertices.isEmpty() || !missingEdges.isEmpty() )
+			{
+				logger.error( "Nothing was tagged. Unknown spot ids: " + missingVertices
+						+ ", unknown link ids: " + missingEdges + '\n' );
+				return false;
+			}
+			return tag( tagSetName, label, vertexIds, edgeIds );
 		}
-		final TagSet tagSet = optionalTagSet.get();
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
 
-		final Optional< Tag > optionalTag = tagSet.getTags().stream().filter( t -> t.label().equals( label ) ).findFirst();
-		if ( !optionalTag.isPresent() )
+	private boolean tag( final String tagSetName, final String label, final TIntArrayList vertexIds, final TIntArrayList edgeIds )
+	{
+		final TagSet tagSet = findTagSet( tagSetName );
+		if ( tagSet == null )
+			return false;
+		final Tag tag = findTag( tagSet, label );
+		if ( tag == null )
+			return false;
+		tag( tagSet, tag, vertexIds, edgeIds );
+		return true;
+	}
+
+	private void tag( final TagSet tagSet, final Tag tag, final TIntArrayList vertexIds, final TIntArrayList edgeIds )
+	{
+		final ReentrantReadWriteLock lock = getModel().getGraph().getLock();
+		lock.readLock().lock();
+		try
 		{
-			logger.error( "Could not find a tag with label: '" + tagSetName + "' in the tag-set '" + tagSetName + "'\n" );
-			return;
+			final Runnable edit = () -> BulkModelEdits.tag( getModel(), tagSet, tag, vertexIds, edgeIds );
+			final Runnable journaled = journal == null ? edit : () -> journal.recordTags( tagSet, vertexIds, edgeIds, edit );
+			if ( namedSelections == null )
+				journaled.run();
+			else
+				namedSelections.recordTags( vertexIds, edgeIds, journaled );
+			getModel().setUndoPoint();
 		}
-		final Tag tag = optionalTag.get();
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Assigns the specified tag to the spots and links matching a selection
+	 * expression, in a single pass and without going through the selection.
+	 * <p>
+	 * Only compiled expressions are accepted: feature comparisons and tag
+	 * tests combined with <code>&amp;</code>, <code>|</code> and
+	 * <code>!</code>. Other expressions are rejected with an error message;
+	 * use {@link #select(String)} followed by
+	 * {@link #tagSelectionWith(String, String)} for them. The current
+	 * selection is not used nor modified.
+	 * 
+	 * @param expression
+	 *            a selection creator expression.
+	 * @param tagSetName
+	 *            the name of the tag-set to use.
+	 * @param label
+	 *            the name of the tag in the tag-set to use.
+	 * @return <code>true</code> if the expression could be evaluated and the
+	 *         tag was found. Otherwise an error message is sent to the
+	 *         {@link Logger} instance.
+	 */
+	public boolean tagWhere( final String expression, final String tagSetName, final String label )
+	{
+		final TagSet tagSet = findTagSet( tagSetName );
+		if ( tagSet == null )
+			return false;
+		final Tag tag = findTag( tagSet, label );
+		if ( tag == null )
+			return false;
+		final CompiledSelection.Matches matches = matches( expression );
+		if ( matches == null )
+			return false;
 
-		final ObjTagMap< Spot, Tag > vertexTags = tagModel.getVertexTags().tags( tagSet );
-		final ObjTagMap< Link, Tag > edgeTags = tagModel.getEdgeTags().tags( tagSet );
+		tag( tagSet, tag, matches.vertices, matches.edges );
+		logger.info( "Tagged " + matches.vertices.size() + " spots and " + matches.edges.size() + " links with '" + label + "'.\n" );
+		return true;
+	}
 
-		final SelectionModel< Spot, Link > selection = getSelectionModel();
-		selection.getSelectedVertices().forEach( v -> vertexTags.set( v, tag ) );
-		selection.getSelectedEdges().forEach( e -> edgeTags.set( e, tag ) );
+	/**
+	 * Returns the tag-set with the specified name, or <code>null</code> if it
+	 * cannot be found, in which case an error message is sent to the logger.
+	 */
+	private TagSet findTagSet( final String tagSetName )
+	{
+		final TagSet tagSet = getTagIndex().tagSet( tagSetName );
+		if ( tagSet == null )
+			logger.error( "Could not find a tag-set with the name: '" + tagSetName + "'\n" );
+		return tagSet;
+	}
+
+	/**
+	 * Returns the tag with the specified label in a tag-set, or
+	 * <code>null</code> if it cannot be found, in which case an error message
+	 * is sent to the logger.
+	 */
+	private Tag findTag( final TagSet tagSet, final String label )
+	{
+		final Tag tag = getTagIndex().tag( tagSet, label );
+		if ( tag == null )
+			logger.error( "Could not find a tag with label: '" + label + "' in the tag-set '" + tagSet.getName() + "'\n" );
+		return tag;
+	}
+
+	private synchronized TagIndex getTagIndex()
+	{
+		if ( tagIndex == null )
+			tagIndex = TagIndex.attach( getModel().getTagSetModel() );
+		return tagIndex;
 	}
 
 	/*
@@ -0,0 +1,562 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Context;
+import org.scijava.log.AbstractLogService;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogMessage;
+import org.scijava.log.Logger;
+
+/**
+ * Headless batch runner, that applies the same recipe to many image datasets
+ * or Mastodon projects in one JVM.
+ * <p>
+ * All the jobs share the same {@link Context}, so that its startup cost is
+ * paid only once. Jobs run concurrently on a pool of workers. Each job has its
+ * own {@link Logger}, whose messages are prefixed with the job name, and its
+ * project is closed with {@link Mamut#close()} once the job is done. The
+ * logger of a job receives the messages of the opening of its project, and a
+ * step fails if it returns <code>false</code> or logs an error, since the
+ * operations of {@link Mamut} report their failures to the logger. A
+ * recipe is made of steps added with the {@link #detect(double, double)},
+ * {@link #link(double, int)}, {@link #computeFeatures(String...)} and
+ * {@link #save()} methods, executed in the order they were added.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * final MamutBatch batch = new MamutBatch( context )
+ * 		.numWorkers( 8 )
+ * 		.detect( 6., 200. )
+ * 		.link( 10., 0 )
+ * 		.computeFeatures( "Spot intensity", "Track N spots" )
+ * 		.save();
+ * batch.run( files ).print();
+ * </pre>
+ *
+ * It can also be run from the command line, see {@link #main(String[])}.
+ */
+public class MamutBatch
+{
+
+	/**
+	 * A step of a batch recipe.
+	 */
+	@FunctionalInterface
+	public interface Step
+	{
+		/**
+		 * Applies this step to the project of a job.
+		 *
+		 * @param mamut
+		 *            the project of the job.
+		 * @return <code>true</code> if the step completed successfully. A step
+		 *         that logs an error to the logger of the project fails as
+		 *         well.
+		 * @throws Exception
+		 *             if an error occurs during the step.
+		 */
+		boolean apply( Mamut mamut ) throws Exception;
+	}
+
+	private final Context context;
+
+	private final List< String > stepNames = new ArrayList<>();
+
+	private final List< Step > steps = new ArrayList<>();
+
+	private int numWorkers = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
+
+	private int numThreadsPerJob = 1;
+
+	/**
+	 * Creates a new batch runner with an empty recipe.
+	 *
+	 * @param context
+	 *            the context shared by all the jobs.
+	 */
+	public MamutBatch( final Context context )
+	{
+		this.context = context;
+	}
+
+	/**
+	 * Sets the number of jobs that run concurrently.
+	 *
+	 * @param numWorkers
+	 *            the number of workers.
+	 * @return this batch runner.
+	 */
+	public MamutBatch numWorkers( final int numWorkers )
+	{
+		this.numWorkers = Math.max( 1, numWorkers );
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads each job uses for detection. See
+	 * {@link Mamut#setNumThreads(int)}.
+	 *
+	 * @param numThreads
+	 *            the number of threads per job.
+	 * @return this batch runner.
+	 */
+	public MamutBatch numThreadsPerJob( final int numThreads )
+	{
+		this.numThreadsPerJob = Math.max( 1, numThreads );
+		return this;
+	}
+
+	/**
+	 * Adds a detection step with the default detector to the recipe. See
+	 * {@link Mamut#detect(double, double)}.
+	 *
+	 * @param radius
+	 *            the radius of spots to detect.
+	 * @param threshold
+	 *            the quality threshold.
+	 * @return this batch runner.
+	 */
+	public MamutBatch detect( final double radius, final double threshold )
+	{
+		return step( "detect", mamut -> {
+			mamut.detect( radius, threshold );
+			return true;
+		} );
+	}
+
+	/**
+	 * Adds a linking step with the default linker to the recipe. See
+	 * {@link Mamut#link(double, int)}.
+	 *
+	 * @param maxLinkingDistance
+	 *            the max linking distance.
+	 * @param maxFrameGap
+	 *            the max frame gap.
+	 * @return this batch runner.
+	 */
+	public MamutBatch link( final double maxLinkingDistance, final int maxFrameGap )
+	{
+		return step( "link", mamut -> {
+			mamut.link( maxLinkingDistance, maxFrameGap );
+			return true;
+		} );
+	}
+
+	/**
+	 * Adds a feature computation step to the recipe. See
+	 * {@link Mamut#computeFeatures(String...)}.
+	 *
+	 * @param featureKeys
+	 *            the keys of the features to compute.
+	 * @return this batch runner.
+	 */
+	public MamutBatch computeFeatures( final String... featureKeys )
+	{
+		return step( "features", mamut -> {
+			mamut.computeFeatures( featureKeys );
+			return true;
+		} );
+	}
+
+	/**
+	 * Adds a saving step to the recipe. Projects opened from a Mastodon file
+	 * are saved to this file. Projects created from a BDV file are saved to a
+	 * Mastodon file with the same name, next to the BDV file.
+	 *
+	 * @return this batch runner.
+	 */
+	public MamutBatch save()
+	{
+		return step( "save", mamut -> {
+			final File projectFile = mamut.getProjectFile();
+			if ( projectFile != null )
+				return mamut.save();
+			final String xml = mamut.getDatasetFile().getAbsolutePath();
+			final int dot = xml.lastIndexOf( '.' );
+			return mamut.saveAs( ( dot < 0 ? xml : xml.substring( 0, dot ) ) + ".mastodon" );
+		} );
+	}
+
+	/**
+	 * Adds a custom step to the recipe.
+	 *
+	 * @param name
+	 *            the name of the step, used in the report.
+	 * @param step
+	 *            the step.
+	 * @return this batch runner.
+	 */
+	public MamutBatch step( final String name, final Step step )
+	{
+		stepNames.add( name );
+		steps.add( step );
+		return this;
+	}
+
+	/**
+	 * Runs the recipe on the specified files. Files ending with
+	 * <code>.mastodon</code> are opened as Mastodon projects, other files are
+	 * used to create new projects from BDV files.
+	 * <p>
+	 * This method blocks until all the jobs are done. A failing job does not
+	 * stop the other ones.
+	 *
+	 * @param files
+	 *            the paths to the files to process.
+	 * @return the report of the batch.
+	 */
+	public Report run( final List< String > files )
+	{
+		final ExecutorService executor = Executors.newFixedThreadPool( numWorkers );
+		final long start = System.currentTimeMillis();
+		try
+		{
+			final List< Future< JobReport > > futures = new ArrayList<>( files.size() );
+			for ( final String file : files )
+				futures.add( executor.submit( () -> runJob( file ) ) );
+
+			final List< JobReport > jobs = new ArrayList<>( files.size() );
+			for ( int i = 0; i < futures.size(); i++ )
+			{
+				try
+				{
+					jobs.add( futures.get( i ).get() );
+				}
+				catch ( final ExecutionException e )
+				{
+					jobs.add( new JobReport( files.get( i ), stepNames.size(), "Unexpected error: " + e.getCause() ) );
+				}
+			}
+			return new Report( stepNames, jobs, System.currentTimeMillis() - start, numWorkers );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Batch interrupted.", e );
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	private JobReport runJob( final String file )
+	{
+		final String name = new File( file ).getName();
+		final JobLogger logger = new JobLogger( name );
+		final JobReport report = new JobReport( file, steps.size(), null );
+		final long start = System.currentTimeMillis();
+		Mamut mamut = null;
+		try
+		{
+			mamut = file.endsWith( ".mastodon" )
+					? Mamut.openHeadless( file, context, logger )
+					: Mamut.newProjectHeadless( file, context, logger );
+			mamut.setNumThreads( numThreadsPerJob );
+			report.openTime = System.currentTimeMillis() - start;
+
+			for ( int i = 0; i < steps.size(); i++ )
+			{
+				final long t0 = System.currentTimeMillis();
+				final int nErrors = logger.nErrors.get();
+				final boolean ok = steps.get( i ).apply( mamut ) && logger.nErrors.get() == nErrors;
+				report.stepTimes[ i ] = System.currentTimeMillis() - t0;
+				if ( !ok )
+				{
+					report.error = "Step '" + stepNames.get( i ) + "' failed.";
+					break;
+				}
+			}
+		}
+		catch ( final Exception e )
+		{
+			report.error = e.getClass().getSimpleName() + ": " + e.getMessage();
+			logger.error( report.error + '\n' );
+		}
+		finally
+		{
+			// Release the image data and services of the job, not the shared context.
+			if ( mamut != null )
+				mamut.close();
+		}
+		report.totalTime = System.currentTimeMillis() - start;
+		report.nWarnings = logger.nWarnings.get();
+		report.nErrors = logger.nErrors.get();
+		return report;
+	}
+
+	/**
+	 * Runs a batch from the command line.
+	 * <p>
+	 * Usage:
+	 *
+	 * <pre>
+	 * MamutBatch [--workers N] [--threads N] [--detect RADIUS,THRESHOLD] [--link DISTANCE,GAP] [--features KEY1,KEY2,...] [--save] FILE...
+	 * </pre>
+	 *
+	 * Recipe steps are executed in the order they are given.
+	 *
+	 * @param args
+	 *            the command line arguments.
+	 */
+	public static void main( final String[] args )
+	{
+		try (final Context context = new Context())
+		{
+			final MamutBatch batch = new MamutBatch( context );
+			final List< String > files = new ArrayList<>();
+			for ( int i = 0; i < args.length; i++ )
+			{
+				switch ( args[ i ] )
+				{
+				case "--workers":
+					batch.numWorkers( Integer.parseInt( args[ ++i ] ) );
+					break;
+				case "--threads":
+					batch.numThreadsPerJob( Integer.parseInt( args[ ++i ] ) );
+					break;
+				case "--detect":
+				{
+					final String[] vals = args[ ++i ].split( "," );
+					batch.detect( Double.parseDouble( vals[ 0 ] ), Double.parseDouble( vals[ 1 ] ) );
+					break;
+				}
+				case "--link":
+				{
+					final String[] vals = args[ ++i ].split( "," );
+					batch.link( Double.parseDouble( vals[ 0 ] ), Integer.parseInt( vals[ 1 ] ) );
+					break;
+				}
+				case "--features":
+					batch.computeFeatures( args[ ++i ].split( "," ) );
+					break;
+				case "--save":
+					batch.save();
+					break;
+				default:
+					files.add( args[ i ] );
+				}
+			}
+			if ( files.isEmpty() )
+			{
+				System.err.println( "Usage: MamutBatch [--workers N] [--threads N] [--detect RADIUS,THRESHOLD] "
+						+ "[--link DISTANCE,GAP] [--features KEY1,KEY2,...] [--save] FILE..." );
+				return;
+			}
+			batch.run( files ).print();
+		}
+	}
+
+	/**
+	 * The report of one job.
+	 */
+	public static class JobReport
+	{
+
+		private final String file;
+
+		private final long[] stepTimes;
+
+		private long openTime;
+
+		private long totalTime;
+
+		private int nWarnings;
+
+		private int nErrors;
+
+		private String error;
+
+		private JobReport( final String file, final int nSteps, final String error )
+		{
+			this.file = file;
+			this.stepTimes = new long[ nSteps ];
+			this.error = error;
+		}
+
+		/**
+		 * Returns <code>true</code> if all the steps of the job completed
+		 * successfully.
+		 *
+		 * @return whether the job succeeded.
+		 */
+		public boolean isSuccessful()
+		{
+			return error == null;
+		}
+
+		/**
+		 * Returns the error message of the job, or <code>null</code> if it
+		 * succeeded.
+		 *
+		 * @return the error message.
+		 */
+		public String getError()
+		{
+			return error;
+		}
+
+		/**
+		 * Returns the total time spent on this job, in ms.
+		 *
+		 * @return the job time.
+		 */
+		public long getTotalTime()
+		{
+			return totalTime;
+		}
+	}
+
+	/**
+	 * The report of a batch.
+	 */
+	public static class Report
+	{
+
+		private final List< String > stepNames;
+
+		private final List< JobReport > jobs;
+
+		private final long elapsed;
+
+		private final int numWorkers;
+
+		private Report( final List< String > stepNames, final List< JobReport > jobs, final long elapsed, final int numWorkers )
+		{
+			this.stepNames = new ArrayList<>( stepNames );
+			this.jobs = jobs;
+			this.elapsed = elapsed;
+			this.numWorkers = numWorkers;
+		}
+
+		/**
+		 * Returns the reports of the individual jobs, in the order the files
+		 * were given.
+		 *
+		 * @return the job reports.
+		 */
+		public List< JobReport > getJobs()
+		{
+			return jobs;
+		}
+
+		/**
+		 * Returns the number of jobs processed per minute.
+		 *
+		 * @return the throughput of the batch.
+		 */
+		public double getThroughput()
+		{
+			return jobs.size() * 60_000. / Math.max( 1, elapsed );
+		}
+
+		/**
+		 * Prints this report to the standard output.
+		 */
+		public void print()
+		{
+			System.out.print( toString() );
+		}
+
+		@Override
+		public String toString()
+		{
+			final StringBuilder str = new StringBuilder();
+			final long nOk = jobs.stream().filter( JobReport::isSuccessful ).count();
+			str.append( String.format( "Processed %d jobs (%d successful) in %.1f s over %d workers: %.2f jobs/min.\n",
+					jobs.size(), nOk, elapsed / 1000., numWorkers, getThroughput() ) );
+
+			final StringBuilder header = new StringBuilder( String.format( "%-40s %10s", "File", "open (ms)" ) );
+			for ( final String step : stepNames )
+				header.append( String.format( " %10s", step + " (ms)" ) );
+			header.append( String.format( " %10s %5s %5s  %s\n", "total (ms)", "warn", "err", "status" ) );
+			str.append( header );
+			final char[] line = new char[ header.length() - 1 ];
+			Arrays.fill( line, '-' );
+			str.append( line ).append( '\n' );
+
+			for ( final JobReport job : jobs )
+			{
+				str.append( String.format( "%-40s %10d", new File( job.file ).getName(), job.openTime ) );
+				for ( final long t : job.stepTimes )
+					str.append( String.format( " %10d", t ) );
+				str.append( String.format( " %10d %5d %5d  %s\n", job.totalTime, job.nWarnings, job.nErrors,
+						job.isSuccessful() ? "OK" : job.error ) );
+			}
+			return str.toString();
+		}
+	}
+
+	/**
+	 * Logs to the standard streams, prefixing messages with the job name, and
+	 * counts warnings and errors.
+	 */
+	private static final class JobLogger extends AbstractLogService
+	{
+
+		private final String prefix;
+
+		private final AtomicInteger nWarnings = new AtomicInteger();
+
+		private final AtomicInteger nErrors = new AtomicInteger();
+
+		private JobLogger( final String name )
+		{
+			this.prefix = "[" + name + "] ";
+		}
+
+		@Override
+		protected void messageLogged( final LogMessage message )
+		{
+			final int level = message.level();
+			if ( level <= LogLevel.ERROR )
+				nErrors.incrementAndGet();
+			else if ( level <= LogLevel.WARN )
+				nWarnings.incrementAndGet();
+
+			final String text = prefix + message.text();
+			if ( level <= LogLevel.WARN )
+				System.err.print( text );
+			else
+				System.out.print( text );
+		}
+	}
+}
@@ -0,0 +1,370 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of timers, counters and histograms, for the operations of a
+ * {@link Mamut} instance.
+ * <p>
+ * Each metric has a name, such as <code>detect.timepoint</code> or
+ * <code>save.bytes</code>, and records values: durations in nanoseconds for
+ * timers, increments for counters, and arbitrary values for histograms. For
+ * each metric, the registry keeps the number of values, their sum, minimum
+ * and maximum, and a histogram in powers of two from which percentiles are
+ * estimated.
+ * <p>
+ * The registry is disabled by default. When disabled, recording a value only
+ * costs reading a volatile field, and nothing is stored. The content of the
+ * registry can be queried with {@link #snapshot()} and written to a JSON or
+ * CSV file.
+ */
+public class Metrics
+{
+
+	private static final String[] COLUMNS = new String[] { "kind", "unit", "count", "sum", "min", "max", "mean", "p50", "p90", "p99" };
+
+	private static final class Stat
+	{
+
+		private final String kind;
+
+		private final String unit;
+
+		private long count = 0;
+
+		private long sum = 0;
+
+		private long min = Long.MAX_VALUE;
+
+		private long max = Long.MIN_VALUE;
+
+		/** Bucket i counts the values v with 2^(i-1) &le; v &lt; 2^i. */
+		private final long[] buckets = new long[ 65 ];
+
+		private Stat( final String kind, final String unit )
+		{
+			this.kind = kind;
+			this.unit = unit;
+		}
+
+		private synchronized void add( final long value )
+		{
+			count++;
+			sum += value;
+			min = Math.min( min, value );
+			max = Math.max( max, value );
+			buckets[ value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros( value ) ]++;
+		}
+
+		private synchronized Map< String, Object > toMap()
+		{
+			final Map< String, Object > map = new LinkedHashMap<>();
+			map.put( "kind", kind );
+			map.put( "unit", unit );
+			map.put( "count", count );
+			map.put( "sum", sum );
+			map.put( "min", count == 0 ? 0 : min );
+			map.put( "max", count == 0 ? 0 : max );
+			map.put( "mean", count == 0 ? 0. : ( double ) sum / count );
+			map.put( "p50", percentile( 0.5 ) );
+			map.put( "p90", percentile( 0.9 ) );
+			map.put( "p99", percentile( 0.99 ) );
+			return map;
+		}
+
+		/**
+		 * Estimates a percentile as the upper bound of the bucket it falls
+		 * in, clamped to the range of the values.
+		 */
+		private long percentile( final double p )
+		{
+			if ( count == 0 )
+				return 0;
+			final long rank = ( long ) Math.ceil( p * count );
+			long seen = 0;
+			for ( int i = 0; i < buckets.length; i++ )
+			{
+				seen += buckets[ i ];
+				if ( seen >= rank )
+				{
+					final long upper = i == 0 ? 0 : i >= 63 ? Long.MAX_VALUE : ( 1l << i ) - 1;
+					return Math.max( min, Math.min( max, upper ) );
+				}
+			}
+			return max;
+		}
+	}
+
+	private final Map< String, Stat > stats = new ConcurrentHashMap<>();
+
+	private volatile boolean enabled = false;
+
+	/** Values to record once the registry is enabled. */
+	private final List< Runnable > deferred = new ArrayList<>();
+
+	/**
+	 * Sets whether values are recorded. Enabling the registry records the
+	 * values passed to {@link #recordOnEnable(String, String, long)} while it
+	 * was disabled.
+	 *
+	 * @param enabled
+	 *            whether to record values.
+	 */
+	public synchronized void setEnabled( final boolean enabled )
+	{
+		this.enabled = enabled;
+		if ( enabled )
+		{
+			for ( final Runnable record : deferred )
+				record.run();
+			deferred.clear();
+		}
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Starts a timer.
+	 *
+	 * @return the start time to pass to {@link #stop(String, long)}, or 0 if
+	 *         the registry is disabled.
+	 */
+	public long start()
+	{
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/**
+	 * Stops a timer and records its duration.
+	 *
+	 * @param name
+	 *            the name of the timer.
+	 * @param start
+	 *            the value returned by {@link #start()}.
+	 * @return the duration in nanoseconds, or 0 if the timer was started while
+	 *         the registry was disabled.
+	 */
+	public long stop( final String name, final long start )
+	{
+		if ( start == 0 || !enabled )
+			return 0;
+		final long elapsed = System.nanoTime() - start;
+		stat( name, "timer", "ns" ).add( elapsed );
+		return elapsed;
+	}
+
+	/**
+	 * Increments a counter.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 * @param n
+	 *            the increment.
+	 */
+	public void count( final String name, final long n )
+	{
+		if ( enabled )
+			stat( name, "counter", "" ).add( n );
+	}
+
+	/**
+	 * Records a value in a histogram.
+	 *
+	 * @param name
+	 *            the name of the histogram.
+	 * @param unit
+	 *            the unit of the values, for instance <code>bytes</code>.
+	 * @param value
+	 *            the value.
+	 */
+	public void record( final String name, final String unit, final long value )
+	{
+		if ( enabled )
+			stat( name, "histogram", unit ).add( value );
+	}
+
+	/**
+	 * Records a value in a histogram, now if the registry is enabled, or when
+	 * it gets enabled otherwise. This is for values measured before callers
+	 * can enable the registry, such as the time spent opening a project.
+	 *
+	 * @param name
+	 *            the name of the histogram.
+	 * @param unit
+	 *            the unit of the value, for instance <code>ms</code>.
+	 * @param value
+	 *            the value.
+	 */
+	synchronized void recordOnEnable( final String name, final String unit, final long value )
+	{
+		if ( enabled )
+			record( name, unit, value );
+		else
+			deferred.add( () -> record( name, unit, value ) );
+	}
+
+	/**
+	 * Removes all the metrics.
+	 */
+	public void reset()
+	{
+		stats.clear();
+	}
+
+	/**
+	 * Returns the summary of a metric.
+	 *
+	 * @param name
+	 *            the name of the metric.
+	 * @return a new map with the <code>kind</code>, <code>unit</code>,
+	 *         <code>count</code>, <code>sum</code>, <code>min</code>,
+	 *         <code>max</code>, <code>mean</code>, <code>p50</code>,
+	 *         <code>p90</code> and <code>p99</code> keys, or
+	 *         <code>null</code> if nothing was recorded with this name.
+	 */
+	public Map< String, Object > get( final String name )
+	{
+		final Stat stat = stats.get( name );
+		return stat == null ? null : stat.toMap();
+	}
+
+	/**
+	 * Returns the summaries of all the metrics, sorted by name.
+	 *
+	 * @return a new map from metric name to summary, as returned by
+	 *         {@link #get(String)}.
+	 */
+	public Map< String, Map< String, Object > > snapshot()
+	{
+		final Map< String, Map< String, Object > > map = new TreeMap<>();
+		for ( final Map.Entry< String, Stat > entry : stats.entrySet() )
+			map.put( entry.getKey(), entry.getValue().toMap() );
+		return map;
+	}
+
+	/**
+	 * Returns the summaries of all the metrics as a JSON object.
+	 *
+	 * @return a JSON string.
+	 */
+	public String toJson()
+	{
+		final StringBuilder str = new StringBuilder( "{" );
+		for ( final Map.Entry< String, Map< String, Object > > entry : snapshot().entrySet() )
+		{
+			str.append( str.length() == 1 ? "\n" : ",\n" );
+			str.append( "  " ).append( quote( entry.getKey() ) ).append( ": {" );
+			boolean first = true;
+			for ( final Map.Entry< String, Object > field : entry.getValue().entrySet() )
+			{
+				str.append( first ? " " : ", " ).append( quote( field.getKey() ) ).append( ": " );
+				final Object value = field.getValue();
+				str.append( value instanceof String ? quote( ( String ) value ) : value.toString() );
+				first = false;
+			}
+			str.append( " }" );
+		}
+		return str.append( "\n}\n" ).toString();
+	}
+
+	/**
+	 * Returns the summaries of all the metrics as CSV, one line per metric.
+	 *
+	 * @return a CSV string, with a header line.
+	 */
+	public String toCsv()
+	{
+		final StringBuilder str = new StringBuilder( "name" );
+		for ( final String column : COLUMNS )
+			str.append( ',' ).append( column );
+		str.append( '\n' );
+		for ( final Map.Entry< String, Map< String, Object > > entry : snapshot().entrySet() )
+		{
+			str.append( '"' ).append( entry.getKey().replace( "\"", "\"\"" ) ).append( '"' );
+			for ( final String column : COLUMNS )
+				str.append( ',' ).append( entry.getValue().get( column ) );
+			str.append( '\n' );
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Writes the summaries of all the metrics to a file, as JSON if its name
+	 * ends with <code>.json</code> and as CSV otherwise.
+	 *
+	 * @param file
+	 *            the file to write.
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void write( final File file ) throws IOException
+	{
+		final String content = file.getName().toLowerCase().endsWith( ".json" ) ? toJson() : toCsv();
+		try (Writer writer = Files.newBufferedWriter( file.toPath(), StandardCharsets.UTF_8 ))
+		{
+			writer.write( content );
+		}
+	}
+
+	private Stat stat( final String name, final String kind, final String unit )
+	{
+		final Stat stat = stats.get( name );
+		return stat != null ? stat : stats.computeIfAbsent( name, k -> new Stat( kind, unit ) );
+	}
+
+	private static String quote( final String s )
+	{
+		final StringBuilder str = new StringBuilder( "\"" );
+		for ( final char c : s.toCharArray() )
+		{
+			if ( c == '"' || c == '\\' )
+				str.append( '\\' ).append( c );
+			else if ( c < 0x20 )
+				str.append( String.format( "\\u%04x", ( int ) c ) );
+			else
+				str.append( c );
+		}
+		return str.append( '"' ).toString();
+	}
+}
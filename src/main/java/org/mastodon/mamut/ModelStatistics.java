@@ -0,0 +1,268 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+/**
+ * Counts of the objects in a model, maintained incrementally from graph
+ * events.
+ * <p>
+ * The number of tracks is the number of roots, spots without incoming links.
+ * It is maintained with the in-degree of each spot, updated when links are
+ * added and removed. The number of spots per timepoint is updated when spots
+ * are added and removed. The counts are recomputed from scratch only when
+ * the graph is rebuilt, which is how bulk operations that pause the graph
+ * listeners report their changes. Tag counts are read from the tag maps,
+ * which maintain the set of objects tagged with each tag.
+ */
+final class ModelStatistics implements GraphListener< Spot, Link >
+{
+
+	private final Model model;
+
+	private final GraphIdBimap< Spot, Link > idmap;
+
+	/** In-degree of each spot, indexed by spot id. */
+	private final TIntArrayList inDegree = new TIntArrayList();
+
+	/** Number of spots per timepoint. */
+	private final TIntIntHashMap perTimepoint = new TIntIntHashMap( 10, 0.5f, -1, 0 );
+
+	private int nRoots;
+
+	private ModelStatistics( final Model model )
+	{
+		this.model = model;
+		this.idmap = model.getGraphIdBimap();
+	}
+
+	/**
+	 * Counts the objects in the specified model and starts listening to its
+	 * graph.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return a new statistics instance.
+	 */
+	static ModelStatistics attach( final Model model )
+	{
+		final ModelStatistics stats = new ModelStatistics( model );
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		lock.readLock().lock();
+		try
+		{
+			stats.recount();
+			model.getGraph().addGraphListener( stats );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		return stats;
+	}
+
+	/**
+	 * Stops listening to the graph.
+	 */
+	void detach()
+	{
+		model.getGraph().removeGraphListener( this );
+	}
+
+	int nSpots()
+	{
+		return model.getGraph().vertices().size();
+	}
+
+	int nLinks()
+	{
+		return model.getGraph().edges().size();
+	}
+
+	int nTracks()
+	{
+		return nRoots;
+	}
+
+	/**
+	 * Returns the number of spots in each timepoint that has spots.
+	 *
+	 * @return a new map from timepoint to number of spots.
+	 */
+	SortedMap< Integer, Integer > spotsPerTimepoint()
+	{
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		lock.readLock().lock();
+		try
+		{
+			final SortedMap< Integer, Integer > map = new TreeMap<>();
+			perTimepoint.forEachEntry( ( t, n ) -> {
+				if ( n > 0 )
+					map.put( t, n );
+				return true;
+			} );
+			return map;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of spots or links tagged with each tag of each tag
+	 * set.
+	 *
+	 * @param spots
+	 *            whether to count spots or links.
+	 * @return a new map from tag-set name to map from tag label to count.
+	 */
+	Map< String, Map< String, Integer > > tagCounts( final boolean spots )
+	{
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+		final Map< String, Map< String, Integer > > counts = new LinkedHashMap<>();
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		lock.readLock().lock();
+		try
+		{
+			for ( final TagSet tagSet : tagSetModel.getTagSetStructure().getTagSets() )
+			{
+				final Map< String, Integer > tagCounts = new LinkedHashMap<>();
+				final ObjTagMap< ?, Tag > tags = spots
+						? tagSetModel.getVertexTags().tags( tagSet )
+						: tagSetModel.getEdgeTags().tags( tagSet );
+				for ( final Tag tag : tagSet.getTags() )
+					tagCounts.put( tag.label(), tags.getTaggedWith( tag ).size() );
+				counts.put( tagSet.getName(), tagCounts );
+			}
+			return counts;
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	private void recount()
+	{
+		final ModelGraph graph = model.getGraph();
+		inDegree.resetQuick();
+		perTimepoint.clear();
+		nRoots = 0;
+		for ( final Spot spot : graph.vertices() )
+		{
+			final int id = idmap.getVertexId( spot );
+			final int degree = spot.incomingEdges().size();
+			ensureCapacity( id );
+			inDegree.set( id, degree );
+			perTimepoint.adjustOrPutValue( spot.getTimepoint(), 1, 1 );
+			if ( degree == 0 )
+				nRoots++;
+		}
+	}
+
+	private void ensureCapacity( final int id )
+	{
+		while ( inDegree.size() <= id )
+			inDegree.add( 0 );
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		recount();
+	}
+
+	@Override
+	public void vertexAdded( final Spot spot )
+	{
+		final int id = idmap.getVertexId( spot );
+		ensureCapacity( id );
+		inDegree.set( id, 0 );
+		perTimepoint.adjustOrPutValue( spot.getTimepoint(), 1, 1 );
+		nRoots++;
+	}
+
+	/*
+	 * The links of a spot are reported removed before the spot itself, so by
+	 * then its in-degree is 0 and it counts as a root.
+	 */
+	@Override
+	public void vertexRemoved( final Spot spot )
+	{
+		final int id = idmap.getVertexId( spot );
+		perTimepoint.adjustValue( spot.getTimepoint(), -1 );
+		if ( inDegree.get( id ) == 0 )
+			nRoots--;
+		inDegree.set( id, 0 );
+	}
+
+	@Override
+	public void edgeAdded( final Link link )
+	{
+		final Spot ref = model.getGraph().vertexRef();
+		final int id = idmap.getVertexId( link.getTarget( ref ) );
+		model.getGraph().releaseRef( ref );
+		final int degree = inDegree.get( id ) + 1;
+		inDegree.set( id, degree );
+		if ( degree == 1 )
+			nRoots--;
+	}
+
+	@Override
+	public void edgeRemoved( final Link link )
+	{
+		final Spot ref = model.getGraph().vertexRef();
+		final int id = idmap.getVertexId( link.getTarget( ref ) );
+		model.getGraph().releaseRef( ref );
+		final int degree = inDegree.get( id ) - 1;
+		inDegree.set( id, degree );
+		if ( degree == 0 )
+			nRoots++;
+	}
+}
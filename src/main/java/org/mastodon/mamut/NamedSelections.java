@@ -0,0 +1,453 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.mastodon.feature.FeatureModel.FeatureModelListener;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.TagSetModel.TagSetModelListener;
+import org.mastodon.properties.PropertyChangeListener;
+
+import gnu.trove.TIntCollection;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Selections registered under a name with a compiled selection expression,
+ * and kept up to date as the model changes.
+ * <p>
+ * Graph and spot shape changes mark the objects they touch as dirty in each
+ * selection: added spots and links, the source and target of added and
+ * removed links, and spots that moved or changed shape. When a named
+ * selection is read, only its dirty objects are tested again, in parallel if
+ * the expression allows it. Other selections are not updated. Removed objects
+ * are dropped from the selections immediately. Changes to the feature model
+ * and graph rebuilds make the selections stale, and they are fully evaluated
+ * on next read.
+ * <p>
+ * Tag assignments do not emit events per object. Tag changes made through
+ * {@link Mamut} are reported with {@link #recordTags(TIntCollection, TIntCollection, Runnable)},
+ * and only mark the tagged objects as dirty. Any other notification of the
+ * tag-set model, including the one sent by
+ * {@link org.mastodon.model.tag.TagSetModel#resumeListeners()} after tags
+ * were assigned with listeners paused, makes the selections that test tags
+ * stale. Tags assigned without any notification are not seen: selections
+ * depending on them have to be refreshed with {@link #refresh(String)}.
+ */
+final class NamedSelections implements GraphListener< Spot, Link >, FeatureModelListener, TagSetModelListener
+{
+
+	private static final class Entry
+	{
+
+		private final CompiledSelection expression;
+
+		private final TIntHashSet vertices = new TIntHashSet();
+
+		private final TIntHashSet edges = new TIntHashSet();
+
+		/** Spots to test again, when not stale. */
+		private final TIntHashSet dirtyVertices = new TIntHashSet();
+
+		/** Links to test again, when not stale. */
+		private final TIntHashSet dirtyEdges = new TIntHashSet();
+
+		private boolean stale = true;
+
+		private Entry( final CompiledSelection expression )
+		{
+			this.expression = expression;
+		}
+
+		private void invalidate()
+		{
+			stale = true;
+			dirtyVertices.clear();
+			dirtyEdges.clear();
+		}
+	}
+
+	private final Model model;
+
+	private final GraphIdBimap< Spot, Link > idmap;
+
+	private final Map< String, Entry > entries = new LinkedHashMap<>();
+
+	/**
+	 * Whether tags are being assigned through
+	 * {@link #recordTags(TIntCollection, TIntCollection, Runnable)}.
+	 */
+	private boolean recordingTags;
+
+	private final PropertyChangeListener< Spot > shapeListener = spot -> touchVertex( spot );
+
+	private NamedSelections( final Model model )
+	{
+		this.model = model;
+		this.idmap = model.getGraphIdBimap();
+	}
+
+	/**
+	 * Creates named selections for the specified model and starts listening to
+	 * it.
+	 *
+	 * @param model
+	 *            the model.
+	 * @return a new named selections instance.
+	 */
+	static NamedSelections attach( final Model model )
+	{
+		final NamedSelections selections = new NamedSelections( model );
+		final ModelGraph graph = model.getGraph();
+		graph.addGraphListener( selections );
+		graph.addVertexPositionListener( selections.shapeListener );
+		graph.addVertexCovarianceListener( selections.shapeListener );
+		model.getFeatureModel().listeners().add( selections );
+		model.getTagSetModel().listeners().add( selections );
+		return selections;
+	}
+
+	/**
+	 * Stops listening to the model.
+	 */
+	void detach()
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( shapeListener );
+		graph.removeVertexCovarianceListener( shapeListener );
+		model.getFeatureModel().listeners().remove( this );
+		model.getTagSetModel().listeners().remove( this );
+	}
+
+	/**
+	 * Registers a named selection, replacing any selection with the same
+	 * name. It is evaluated on first read.
+	 *
+	 * @param name
+	 *            the name of the selection.
+	 * @param expression
+	 *            the selection expression.
+	 * @return <code>false</code> if the expression cannot be compiled.
+	 */
+	synchronized boolean define( final String name, final String expression )
+	{
+		final CompiledSelection compiled = CompiledSelection.compile( expression );
+		if ( compiled == null )
+			return false;
+		entries.put( name, new Entry( compiled ) );
+		return true;
+	}
+
+	synchronized boolean remove( final String name )
+	{
+		return entries.remove( name ) != null;
+	}
+
+	synchronized List< String > names()
+	{
+		return new ArrayList<>( entries.keySet() );
+	}
+
+	/**
+	 * Returns the expression of a named selection.
+	 *
+	 * @param name
+	 *            the name of the selection.
+	 * @return the expression, or <code>null</code> if there is no selection
+	 *         with this name.
+	 */
+	synchronized String expression( final String name )
+	{
+		final Entry entry = entries.get( name );
+		return entry == null ? null : entry.expression.getExpression();
+	}
+
+	/**
+	 * Marks a named selection for full evaluation on next read.
+	 *
+	 * @param name
+	 *            the name of the selection.
+	 */
+	synchronized void refresh( final String name )
+	{
+		final Entry entry = entries.get( name );
+		if ( entry != null )
+			entry.invalidate();
+	}
+
+	/**
+	 * Marks all the named selections for full evaluation on next read, for
+	 * instance after feature values changed in place.
+	 */
+	synchronized void refreshAll()
+	{
+		invalidate();
+	}
+
+	/**
+	 * Marks the specified objects as dirty, for instance after changing their
+	 * tags.
+	 *
+	 * @param spots
+	 *            the spots to mark.
+	 * @param links
+	 *            the links to mark.
+	 */
+	synchronized void touch( final Iterable< Spot > spots, final Iterable< Link > links )
+	{
+		for ( final Spot spot : spots )
+			touchVertex( idmap.getVertexId( spot ) );
+		for ( final Link link : links )
+			touchEdge( idmap.getEdgeId( link ) );
+	}
+
+	/**
+	 * Marks the spots and links with the specified ids as dirty.
+	 *
+	 * @param vertexIds
+	 *            the ids of the spots to mark.
+	 * @param edgeIds
+	 *            the ids of the links to mark.
+	 */
+	synchronized void touch( final TIntCollection vertexIds, final TIntCollection edgeIds )
+	{
+		for ( final Entry entry : entries.values() )
+		{
+			if ( entry.stale )
+				continue;
+			entry.dirtyVertices.addAll( vertexIds );
+			entry.dirtyEdges.addAll( edgeIds );
+		}
+	}
+
+	/**
+	 * Runs a tag assignment on the specified spots and links, and marks them
+	 * as dirty. The tag-set model notifications sent during the assignment do
+	 * not make the selections stale.
+	 *
+	 * @param vertexIds
+	 *            the ids of the spots that are tagged.
+	 * @param edgeIds
+	 *            the ids of the links that are tagged.
+	 * @param write
+	 *            the tag assignment.
+	 */
+	synchronized void recordTags( final TIntCollection vertexIds, final TIntCollection edgeIds, final Runnable write )
+	{
+		recordingTags = true;
+		try
+		{
+			write.run();
+		}
+		finally
+		{
+			recordingTags = false;
+			touch( vertexIds, edgeIds );
+		}
+	}
+
+	/**
+	 * Returns the content of a named selection, bringing it up to date first.
+	 *
+	 * @param name
+	 *            the name of the selection.
+	 * @param numThreads
+	 *            the number of threads to use for a full evaluation.
+	 * @param maxTimepoint
+	 *            the last timepoint of the data, or -1 if unknown.
+	 * @return the ids of the spots and links in the selection, or
+	 *         <code>null</code> if there is no selection with this name or if
+	 *         its expression cannot be evaluated on the model.
+	 */
+	CompiledSelection.Matches get( final String name, final int numThreads, final int maxTimepoint )
+	{
+		// Graph lock before monitor, as in the listener callbacks.
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		lock.readLock().lock();
+		try
+		{
+			synchronized ( this )
+			{
+				final Entry entry = entries.get( name );
+				if ( entry == null )
+					return null;
+				if ( !entry.stale )
+					update( entry, numThreads );
+				if ( entry.stale )
+				{
+					final CompiledSelection.Matches matches = entry.expression.evaluate( model, numThreads, maxTimepoint );
+					if ( matches == null )
+						return null;
+					entry.vertices.clear();
+					entry.vertices.addAll( matches.vertices );
+					entry.edges.clear();
+					entry.edges.addAll( matches.edges );
+					entry.stale = false;
+					return matches;
+				}
+				return new CompiledSelection.Matches( new TIntArrayList( entry.vertices.toArray() ), new TIntArrayList( entry.edges.toArray() ) );
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Tests the dirty objects of a selection that is not stale again.
+	 */
+	private void update( final Entry entry, final int numThreads )
+	{
+		if ( entry.dirtyVertices.isEmpty() && entry.dirtyEdges.isEmpty() )
+			return;
+		final TIntArrayList vertexIds = new TIntArrayList( entry.dirtyVertices.toArray() );
+		final TIntArrayList edgeIds = new TIntArrayList( entry.dirtyEdges.toArray() );
+		final CompiledSelection.Matches matches = entry.expression.evaluate( model, vertexIds, edgeIds, numThreads );
+		if ( matches == null )
+		{
+			entry.invalidate();
+			return;
+		}
+		entry.vertices.removeAll( vertexIds );
+		entry.vertices.addAll( matches.vertices );
+		entry.edges.removeAll( edgeIds );
+		entry.edges.addAll( matches.edges );
+		entry.dirtyVertices.clear();
+		entry.dirtyEdges.clear();
+	}
+
+	private synchronized void touchVertex( final Spot spot )
+	{
+		touchVertex( idmap.getVertexId( spot ) );
+	}
+
+	private void touchVertex( final int id )
+	{
+		for ( final Entry entry : entries.values() )
+			if ( !entry.stale )
+				entry.dirtyVertices.add( id );
+	}
+
+	private void touchEdge( final int id )
+	{
+		for ( final Entry entry : entries.values() )
+			if ( !entry.stale )
+				entry.dirtyEdges.add( id );
+	}
+
+	private void invalidate()
+	{
+		for ( final Entry entry : entries.values() )
+			entry.invalidate();
+	}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		invalidate();
+	}
+
+	@Override
+	public synchronized void vertexAdded( final Spot spot )
+	{
+		touchVertex( idmap.getVertexId( spot ) );
+	}
+
+	@Override
+	public synchronized void vertexRemoved( final Spot spot )
+	{
+		final int id = idmap.getVertexId( spot );
+		for ( final Entry entry : entries.values() )
+		{
+			entry.dirtyVertices.remove( id );
+			entry.vertices.remove( id );
+		}
+	}
+
+	@Override
+	public synchronized void edgeAdded( final Link link )
+	{
+		touchEdge( idmap.getEdgeId( link ) );
+		touchEnds( link );
+	}
+
+	@Override
+	public synchronized void edgeRemoved( final Link link )
+	{
+		final int id = idmap.getEdgeId( link );
+		for ( final Entry entry : entries.values() )
+		{
+			entry.dirtyEdges.remove( id );
+			entry.edges.remove( id );
+		}
+		touchEnds( link );
+	}
+
+	/** The number of links of the source and target spots changed. */
+	private void touchEnds( final Link link )
+	{
+		final Spot ref = model.getGraph().vertexRef();
+		touchVertex( idmap.getVertexId( link.getSource( ref ) ) );
+		touchVertex( idmap.getVertexId( link.getTarget( ref ) ) );
+		model.getGraph().releaseRef( ref );
+	}
+
+	@Override
+	public synchronized void featureModelChanged()
+	{
+		invalidate();
+	}
+
+	/**
+	 * Tag-set structure changes, and the notification sent when tag-set
+	 * model listeners are resumed after tags were assigned, make the
+	 * selections that test tags stale.
+	 */
+	@Override
+	public synchronized void tagSetStructureChanged()
+	{
+		if ( recordingTags )
+			return;
+		for ( final Entry entry : entries.values() )
+			if ( entry.expression.usesTags() )
+				entry.invalidate();
+	}
+}
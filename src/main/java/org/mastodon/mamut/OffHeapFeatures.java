@@ -0,0 +1,945 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToIntFunction;
+
+import org.mastodon.collection.RefCollection;
+import org.mastodon.feature.Feature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureProjection;
+import org.mastodon.feature.FeatureProjectionKey;
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.feature.FeatureSpecsService;
+import org.mastodon.feature.io.FeatureSerializationService;
+import org.mastodon.feature.io.FeatureSerializer;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.graph.io.RawGraphIO.GraphToFileIdMap;
+import org.mastodon.io.FileIdToObjectMap;
+import org.mastodon.io.ObjectToFileIdMap;
+import org.mastodon.mamut.io.project.MamutProject;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.scijava.Context;
+
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Keeps the values of spot and link features off the Java heap.
+ * <p>
+ * Each feature declared in the feature model is offloaded to a scratch file
+ * that is memory-mapped: every projection is copied to a column of doubles
+ * indexed by pool id, unset values being stored as {@link Double#NaN}, and
+ * the feature itself is serialized with its {@link FeatureSerializer}. The
+ * feature is then replaced in the feature model by a feature of the same spec
+ * that reads its projections from the columns, so that selections, tables and
+ * exports see the same values. The operating system pages the columns in and
+ * out as needed.
+ * <p>
+ * Features are read from a Mastodon file and written to it one at a time, so
+ * that only one of them is on the heap at any time. They are restored on the
+ * heap from their serialized form when they have to be recomputed, since
+ * their computers expect their own classes. When a feature is offloaded
+ * again, the regions of the scratch file used by its previous version are
+ * reused, and the regions that are no longer used are reused by the next
+ * features offloaded.
+ * <p>
+ * The features whose values are read from the spots themselves, such as
+ * their position, radius, frame and number of links, are kept on the heap:
+ * they use no memory of their own, and a copy would not follow the edits of
+ * the graph.
+ * <p>
+ * Spots and links that are added or removed after offloading have no value.
+ * When the graph is rebuilt, pool ids may refer to other objects, so all the
+ * offloaded features are removed from the feature model and have to be
+ * computed again.
+ */
+final class OffHeapFeatures implements GraphListener< Spot, Link >
+{
+
+	private static final class OffHeapProjection< O > implements FeatureProjection< O >
+	{
+
+		private final FeatureProjectionKey key;
+
+		private final String units;
+
+		/** Position of the column in the scratch file. */
+		private final long offset;
+
+		private final DoubleBuffer column;
+
+		private final ToIntFunction< O > id;
+
+		private OffHeapProjection( final FeatureProjectionKey key, final String units, final long offset, final DoubleBuffer column, final ToIntFunction< O > id )
+		{
+			this.key = key;
+			this.units = units;
+			this.offset = offset;
+			this.column = column;
+			this.id = id;
+		}
+
+		@Override
+		public FeatureProjectionKey getKey()
+		{
+			return key;
+		}
+
+		@Override
+		public boolean isSet( final O obj )
+		{
+			final int i = id.applyAsInt( obj );
+			return i < column.capacity() && !Double.isNaN( column.get( i ) );
+		}
+
+		@Override
+		public double value( final O obj )
+		{
+			final int i = id.applyAsInt( obj );
+			return i < column.capacity() ? column.get( i ) : Double.NaN;
+		}
+
+		@Override
+		public String units()
+		{
+			return units;
+		}
+
+		private void unset( final int i )
+		{
+			if ( i < column.capacity() )
+				column.put( i, Double.NaN );
+		}
+	}
+
+	private static final class OffHeapFeature< O > implements Feature< O >
+	{
+
+		private final FeatureSpec< ? extends Feature< O >, O > spec;
+
+		private final Map< FeatureProjectionKey, OffHeapProjection< O > > projections;
+
+		private final ToIntFunction< O > id;
+
+		/**
+		 * Position and length of the serialized feature in the scratch file,
+		 * and length of the region reserved for it.
+		 */
+		private final long offset;
+
+		private final int length;
+
+		private final long region;
+
+		/** Ids of the objects added or removed since offloading. */
+		private final TIntHashSet invalid = new TIntHashSet();
+
+		private OffHeapFeature( final FeatureSpec< ? extends Feature< O >, O > spec, final Map< FeatureProjectionKey, OffHeapProjection< O > > projections, final ToIntFunction< O > id, final long offset, final int length, final long region )
+		{
+			this.spec = spec;
+			this.projections = projections;
+			this.id = id;
+			this.offset = offset;
+			this.length = length;
+			this.region = region;
+		}
+
+		@Override
+		public FeatureProjection< O > project( final FeatureProjectionKey key )
+		{
+			return projections.get( key );
+		}
+
+		@Override
+		public Set< FeatureProjection< O > > projections()
+		{
+			return new LinkedHashSet<>( projections.values() );
+		}
+
+		@Override
+		public FeatureSpec< ? extends Feature< O >, O > getSpec()
+		{
+			return spec;
+		}
+
+		@Override
+		public void invalidate( final O obj )
+		{
+			unset( id.applyAsInt( obj ) );
+		}
+
+		private synchronized void unset( final int i )
+		{
+			invalid.add( i );
+			for ( final OffHeapProjection< O > projection : projections.values() )
+				projection.unset( i );
+		}
+	}
+
+	/**
+	 * A project whose features are not read when it is opened, so that they
+	 * can be read one at a time with {@link OffHeapFeatures#load}.
+	 */
+	private static final class FeaturelessProject extends MamutProject
+	{
+
+		private boolean hideFeatures = true;
+
+		private FeaturelessProject( final MamutProject project )
+		{
+			super( project.getProjectRoot(), project.getDatasetXmlFile() );
+			setSpaceUnits( project.getSpaceUnits() );
+			setTimeUnits( project.getTimeUnits() );
+		}
+
+		@Override
+		public ProjectReader openForReading() throws IOException
+		{
+			final ProjectReader reader = super.openForReading();
+			if ( !hideFeatures )
+				return reader;
+			return new ProjectReader()
+			{
+				@Override
+				public InputStream getProjectXmlInputStream() throws IOException
+				{
+					return reader.getProjectXmlInputStream();
+				}
+
+				@Override
+				public InputStream getRawModelInputStream() throws IOException
+				{
+					return reader.getRawModelInputStream();
+				}
+
+				@Override
+				public InputStream getRawTagsInputStream() throws IOException
+				{
+					return reader.getRawTagsInputStream();
+				}
+
+				@Override
+				public InputStream getGuiInputStream() throws IOException
+				{
+					return reader.getGuiInputStream();
+				}
+
+				@Override
+				public InputStream getFeatureInputStream( final String featureKey ) throws IOException
+				{
+					// Read later, one at a time.
+					throw new FileNotFoundException( featureKey );
+				}
+
+				@Override
+				public InputStream getBackupDatasetXmlInputStream() throws IOException
+				{
+					return reader.getBackupDatasetXmlInputStream();
+				}
+
+				@Override
+				public void close() throws IOException
+				{
+					reader.close();
+				}
+			};
+		}
+	}
+
+	private final Model model;
+
+	private final GraphIdBimap< Spot, Link > idmap;
+
+	/**
+	 * Keys of the features that read their values from the spots, and are
+	 * kept on the heap.
+	 */
+	private static final Set< String > LIVE = new HashSet<>( Arrays.asList(
+			"Spot position",
+			"Spot radius",
+			"Spot N links",
+			"Spot frame" ) );
+
+	private final FeatureSerializationService serializers;
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private long end = 0;
+
+	/** Regions of the scratch file that can be reused, by position. */
+	private final TreeMap< Long, Long > free = new TreeMap<>();
+
+	/** Features restored on the heap, with the off-heap feature they replace. */
+	private final Map< FeatureSpec< ?, ? >, OffHeapFeature< ? > > restored = new HashMap<>();
+
+	private final Map< FeatureSpec< ?, ? >, Feature< ? > > restoredOriginals = new HashMap<>();
+
+	private OffHeapFeatures( final Model model, final Context context, final File file ) throws IOException
+	{
+		this.model = model;
+		this.idmap = model.getGraphIdBimap();
+		this.serializers = context.getService( FeatureSerializationService.class );
+		this.file = file;
+		this.channel = new RandomAccessFile( file, "rw" ).getChannel();
+	}
+
+	/**
+	 * Creates off-heap storage for the features of the specified model, backed
+	 * by a new scratch file, and starts listening to the model. Features
+	 * already declared are not offloaded until {@link #offload(Collection)}
+	 * is called.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param context
+	 *            the context, used to find feature serializers.
+	 * @param folder
+	 *            the folder in which to create the scratch file, or
+	 *            <code>null</code> to use the default temporary folder.
+	 * @return a new off-heap storage.
+	 * @throws IOException
+	 *             if the scratch file cannot be created.
+	 */
+	static OffHeapFeatures attach( final Model model, final Context context, final File folder ) throws IOException
+	{
+		final File file = File.createTempFile( "mamut-features-", ".bin", folder );
+		file.deleteOnExit();
+		final OffHeapFeatures features = new OffHeapFeatures( model, context, file );
+		model.getGraph().addGraphListener( features );
+		return features;
+	}
+
+	/**
+	 * Returns a copy of the specified project that does not read its features
+	 * when it is opened, until they are read with
+	 * {@link #load(MamutProject, Context, File)}.
+	 *
+	 * @param project
+	 *            the project to open.
+	 * @return a new project, with the same files and units.
+	 */
+	static MamutProject withoutFeatures( final MamutProject project )
+	{
+		return new FeaturelessProject( project );
+	}
+
+	/**
+	 * Reads the spot and link features of a project opened with a project
+	 * returned by {@link #withoutFeatures(MamutProject)}, and offloads them
+	 * one at a time as they are read. Must be called right after the model
+	 * is loaded, while its pool ids are still the ids of the Mastodon file.
+	 *
+	 * @param project
+	 *            the project, as returned by
+	 *            {@link #withoutFeatures(MamutProject)}.
+	 * @param model
+	 *            the model loaded from the project.
+	 * @param context
+	 *            the context, used to find feature specs and serializers.
+	 * @param folder
+	 *            the folder in which to create the scratch file, or
+	 *            <code>null</code> to use the default temporary folder.
+	 * @return a new off-heap storage, attached to the model.
+	 * @throws IOException
+	 *             if the features cannot be read, or the scratch file cannot
+	 *             be written.
+	 */
+	static OffHeapFeatures load( final MamutProject project, final Model model, final Context context, final File folder ) throws IOException
+	{
+		( ( FeaturelessProject ) project ).hideFeatures = false;
+		final OffHeapFeatures features = attach( model, context, folder );
+		try
+		{
+			features.load( project, context.getService( FeatureSpecsService.class ) );
+			return features;
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			features.detach();
+			throw e;
+		}
+	}
+
+	private void load( final MamutProject project, final FeatureSpecsService specs ) throws IOException
+	{
+		final FeatureModel featureModel = model.getFeatureModel();
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		lock.readLock().lock();
+		try (final MamutProject.ProjectReader reader = project.openForReading())
+		{
+			// A graph just read from a file has its objects in file order.
+			for ( final FeatureSpec< ?, Spot > spec : specs.getSpecs( Spot.class ) )
+				load( reader, spec, model.getGraph().vertices(), idmap::getVertex, idmap::getVertexId, featureModel );
+			for ( final FeatureSpec< ?, Link > spec : specs.getSpecs( Link.class ) )
+				load( reader, spec, model.getGraph().edges(), idmap::getEdge, idmap::getEdgeId, featureModel );
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads one feature, offloads it and declares the off-heap feature.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private synchronized < O > void load( final MamutProject.ProjectReader reader, final FeatureSpec< ?, O > spec, final RefCollection< O > objects, final IdToObject< O > objectOf, final ToIntFunction< O > id, final FeatureModel featureModel ) throws IOException
+	{
+		final FeatureSerializer serializer = serializers.getFeatureSerializerFor( spec );
+		if ( serializer == null )
+			return;
+		final InputStream is;
+		try
+		{
+			is = reader.getFeatureInputStream( spec.getKey() );
+		}
+		catch ( final FileNotFoundException e )
+		{
+			// Not saved in this file.
+			return;
+		}
+		final Feature< O > feature;
+		try (final ObjectInputStream ois = new ObjectInputStream( new BufferedInputStream( is, 1 << 20 ) ))
+		{
+			feature = ( Feature< O > ) serializer.deserialize( fileIds( objectOf ), objects, ois );
+		}
+		catch ( final ClassNotFoundException e )
+		{
+			throw new IOException( e );
+		}
+		final OffHeapFeature< O > offHeap = LIVE.contains( spec.getKey() ) ? null : copy( feature, objects, id, null );
+		final Map< FeatureSpec< ?, ? >, Feature< ? > > replacement = new LinkedHashMap<>();
+		replacement.put( spec, offHeap == null ? feature : offHeap );
+		declare( featureModel, replacement );
+	}
+
+	/**
+	 * Stops listening to the model and deletes the scratch file. The offloaded
+	 * features cannot be restored nor saved afterwards.
+	 *
+	 * @throws IOException
+	 *             if the scratch file cannot be closed.
+	 */
+	void detach() throws IOException
+	{
+		model.getGraph().removeGraphListener( this );
+		channel.close();
+		file.delete();
+	}
+
+	/**
+	 * Offloads all the spot and link features that are on the heap.
+	 * <p>
+	 * A feature restored with {@link #restore(Collection)} that was not
+	 * changed is replaced by its previous off-heap version without being
+	 * copied again. A changed feature is copied over the regions of its
+	 * previous version when they are large enough.
+	 *
+	 * @param changed
+	 *            the specs of the restored features whose values may have
+	 *            changed since they were restored.
+	 * @throws IOException
+	 *             if the scratch file cannot be written.
+	 */
+	void offload( final Collection< FeatureSpec< ?, ? > > changed ) throws IOException
+	{
+		final FeatureModel featureModel = model.getFeatureModel();
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		final Map< FeatureSpec< ?, ? >, Feature< ? > > replacements = new LinkedHashMap<>();
+		// Graph lock before monitor, as in the listener callbacks.
+		lock.readLock().lock();
+		try
+		{
+			synchronized ( this )
+			{
+				for ( final FeatureSpec< ?, ? > spec : new ArrayList<>( featureModel.getFeatureSpecs() ) )
+				{
+					final Feature< ? > feature = featureModel.getFeature( spec );
+					if ( feature == null || feature instanceof OffHeapFeature || LIVE.contains( spec.getKey() ) )
+						continue;
+					final OffHeapFeature< ? > previous = restored.remove( spec );
+					if ( previous != null && restoredOriginals.get( spec ) == feature && !changed.contains( spec ) )
+					{
+						replacements.put( spec, previous );
+						continue;
+					}
+					final Feature< ? > offHeap;
+					if ( spec.getTargetClass().equals( Spot.class ) )
+						offHeap = copy( feature, model.getGraph().vertices(), idmap::getVertexId, previous );
+					else if ( spec.getTargetClass().equals( Link.class ) )
+						offHeap = copy( feature, model.getGraph().edges(), idmap::getEdgeId, previous );
+					else
+						offHeap = null;
+					if ( offHeap != null )
+						replacements.put( spec, offHeap );
+				}
+				// Restored features that are gone.
+				for ( final OffHeapFeature< ? > previous : restored.values() )
+					release( previous );
+				restored.clear();
+				restoredOriginals.clear();
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		declare( featureModel, replacements );
+	}
+
+	/**
+	 * Restores the specified features on the heap, in their original classes.
+	 *
+	 * @param specs
+	 *            the specs of the features to restore. Features that are not
+	 *            off-heap are ignored.
+	 * @throws IOException
+	 *             if the scratch file cannot be read.
+	 */
+	void restore( final Collection< FeatureSpec< ?, ? > > specs ) throws IOException
+	{
+		final FeatureModel featureModel = model.getFeatureModel();
+		final ReentrantReadWriteLock lock = model.getGraph().getLock();
+		final Map< FeatureSpec< ?, ? >, Feature< ? > > replacements = new LinkedHashMap<>();
+		lock.readLock().lock();
+		try
+		{
+			synchronized ( this )
+			{
+				for ( final FeatureSpec< ?, ? > spec : specs )
+				{
+					final Feature< ? > feature = featureModel.getFeature( spec );
+					if ( !( feature instanceof OffHeapFeature ) )
+						continue;
+					final OffHeapFeature< ? > offHeap = ( OffHeapFeature< ? > ) feature;
+					final Feature< ? > original = restore( offHeap );
+					replacements.put( spec, original );
+					restored.put( spec, offHeap );
+					restoredOriginals.put( spec, original );
+				}
+			}
+		}
+		finally
+		{
+			lock.readLock().unlock();
+		}
+		declare( featureModel, replacements );
+	}
+
+	/**
+	 * Serializes the spot and link features to a Mastodon project, one at a
+	 * time. Off-heap features are deserialized from the scratch file one
+	 * after the other, and are not declared in the feature model. The caller
+	 * must hold the graph read lock.
+	 *
+	 * @param fileIds
+	 *            the file ids of the spots and links, as returned when
+	 *            serializing the graph.
+	 * @param writer
+	 *            the writer to serialize to.
+	 * @throws IOException
+	 *             if the scratch file cannot be read, or the features cannot
+	 *             be written.
+	 */
+	synchronized void serialize( final GraphToFileIdMap< Spot, Link > fileIds, final MamutProject.ProjectWriter writer ) throws IOException
+	{
+		final FeatureModel featureModel = model.getFeatureModel();
+		for ( final FeatureSpec< ?, ? > spec : featureModel.getFeatureSpecs() )
+		{
+			final Feature< ? > feature = featureModel.getFeature( spec );
+			if ( feature == null )
+				continue;
+			final Feature< ? > original = feature instanceof OffHeapFeature
+					? restore( ( OffHeapFeature< ? > ) feature )
+					: feature;
+			if ( spec.getTargetClass().equals( Spot.class ) )
+				serialize( original, fileIds.vertices(), writer );
+			else if ( spec.getTargetClass().equals( Link.class ) )
+				serialize( original, fileIds.edges(), writer );
+		}
+	}
+
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private < O > void serialize( final Feature< ? > feature, final ObjectToFileIdMap< O > fileIds, final MamutProject.ProjectWriter writer ) throws IOException
+	{
+		final FeatureSerializer serializer = serializers.getFeatureSerializerFor( feature.getSpec() );
+		if ( serializer == null )
+			return;
+		try (final ObjectOutputStream oos = new ObjectOutputStream( new BufferedOutputStream( writer.getFeatureOutputStream( feature.getSpec().getKey() ), 1 << 20 ) ))
+		{
+			serializer.serialize( feature, fileIds, oos );
+		}
+	}
+
+	/**
+	 * Returns the extent of the scratch file in use.
+	 *
+	 * @return the size in bytes.
+	 */
+	synchronized long size()
+	{
+		return end;
+	}
+
+	private static void declare( final FeatureModel featureModel, final Map< FeatureSpec< ?, ? >, Feature< ? > > replacements )
+	{
+		if ( replacements.isEmpty() )
+			return;
+		featureModel.pauseListeners();
+		try
+		{
+			for ( final Map.Entry< FeatureSpec< ?, ? >, Feature< ? > > entry : replacements.entrySet() )
+			{
+				featureModel.clear( entry.getKey() );
+				featureModel.declareFeature( entry.getValue() );
+			}
+		}
+		finally
+		{
+			featureModel.resumeListeners();
+		}
+	}
+
+	/**
+	 * Copies a feature to the scratch file, over the regions of its previous
+	 * version when they are large enough. Returns <code>null</code> if it has
+	 * no serializer or no projection, in which case it stays on the heap and
+	 * the regions of its previous version are released.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private < O > OffHeapFeature< O > copy( final Feature< ? > f, final RefCollection< O > objects, final ToIntFunction< O > id, final OffHeapFeature< ? > p ) throws IOException
+	{
+		final Feature< O > feature = ( Feature< O > ) f;
+		final OffHeapFeature< O > previous = ( OffHeapFeature< O > ) p;
+		final FeatureSerializer serializer = serializers.getFeatureSerializerFor( feature.getSpec() );
+		if ( serializer == null || feature.projections() == null || feature.projections().isEmpty() )
+		{
+			if ( previous != null )
+				release( previous );
+			return null;
+		}
+
+		// Serialized form, with pool ids as file ids.
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (final ObjectOutputStream oos = new ObjectOutputStream( bytes ))
+		{
+			serializer.serialize( feature, new ObjectToFileIdMap< O >()
+			{
+				@Override
+				public int getId( final O o )
+				{
+					return id.applyAsInt( o );
+				}
+			}, oos );
+		}
+		final long offset;
+		final long region;
+		if ( previous != null && bytes.size() <= previous.region )
+		{
+			offset = previous.offset;
+			region = previous.region;
+		}
+		else
+		{
+			if ( previous != null )
+				release( previous.offset, previous.region );
+			region = bytes.size();
+			offset = allocate( region );
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes.toByteArray() );
+		long position = offset;
+		while ( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+
+		// One column per projection.
+		int capacity = 0;
+		for ( final O o : objects )
+			capacity = Math.max( capacity, id.applyAsInt( o ) + 1 );
+		final Map< FeatureProjectionKey, OffHeapProjection< O > > old = previous == null
+				? new HashMap<>()
+				: new HashMap<>( previous.projections );
+		final Map< FeatureProjectionKey, OffHeapProjection< O > > projections = new LinkedHashMap<>();
+		for ( final FeatureProjection< O > projection : feature.projections() )
+		{
+			final OffHeapProjection< O > reused = old.remove( projection.getKey() );
+			final long columnOffset;
+			final DoubleBuffer column;
+			if ( reused != null && reused.column.capacity() >= capacity )
+			{
+				columnOffset = reused.offset;
+				column = reused.column;
+			}
+			else
+			{
+				if ( reused != null )
+					release( reused.offset, reused.column.capacity() * 8l );
+				columnOffset = allocate( capacity * 8l );
+				column = channel.map( MapMode.READ_WRITE, columnOffset, capacity * 8l ).asDoubleBuffer();
+			}
+			for ( int i = 0; i < column.capacity(); i++ )
+				column.put( i, Double.NaN );
+			for ( final O o : objects )
+				if ( projection.isSet( o ) )
+					column.put( id.applyAsInt( o ), projection.value( o ) );
+			projections.put( projection.getKey(), new OffHeapProjection<>( projection.getKey(), projection.units(), columnOffset, column, id ) );
+		}
+		for ( final OffHeapProjection< O > unused : old.values() )
+			release( unused.offset, unused.column.capacity() * 8l );
+		return new OffHeapFeature<>( ( FeatureSpec ) feature.getSpec(), projections, id, offset, bytes.size(), region );
+	}
+
+	/**
+	 * Returns the position of a region of the specified length, reusing a
+	 * free region if there is one large enough.
+	 */
+	private long allocate( final long length )
+	{
+		if ( length == 0 )
+			return end;
+		for ( final Map.Entry< Long, Long > entry : free.entrySet() )
+		{
+			final long offset = entry.getKey();
+			final long available = entry.getValue();
+			if ( available < length )
+				continue;
+			free.remove( offset );
+			if ( available > length )
+				free.put( offset + length, available - length );
+			return offset;
+		}
+		final long offset = end;
+		end += length;
+		return offset;
+	}
+
+	/**
+	 * Makes a region reusable, merging it with the adjacent free regions.
+	 */
+	private void release( long offset, long length )
+	{
+		if ( length == 0 )
+			return;
+		final Map.Entry< Long, Long > before = free.floorEntry( offset );
+		if ( before != null && before.getKey() + before.getValue() == offset )
+		{
+			free.remove( before.getKey() );
+			offset = before.getKey();
+			length += before.getValue();
+		}
+		final Long after = free.remove( offset + length );
+		if ( after != null )
+			length += after;
+		if ( offset + length == end )
+			end = offset;
+		else
+			free.put( offset, length );
+	}
+
+	private void release( final OffHeapFeature< ? > feature )
+	{
+		release( feature.offset, feature.region );
+		for ( final OffHeapProjection< ? > projection : feature.projections.values() )
+			release( projection.offset, projection.column.capacity() * 8l );
+	}
+
+	private Feature< ? > restore( final OffHeapFeature< ? > offHeap ) throws IOException
+	{
+		return offHeap.getSpec().getTargetClass().equals( Spot.class )
+				? restore( offHeap, model.getGraph().vertices(), idmap::getVertex )
+				: restore( offHeap, model.getGraph().edges(), idmap::getEdge );
+	}
+
+	/**
+	 * Deserializes a feature from the scratch file, and unsets the values of
+	 * objects added or removed since it was offloaded.
+	 */
+	@SuppressWarnings( { "unchecked", "rawtypes" } )
+	private < O > Feature< O > restore( final OffHeapFeature< ? > f, final RefCollection< O > objects, final IdToObject< O > objectOf ) throws IOException
+	{
+		final OffHeapFeature< O > offHeap = ( OffHeapFeature< O > ) f;
+		final FeatureSerializer serializer = serializers.getFeatureSerializerFor( offHeap.getSpec() );
+		final ByteBuffer buffer = ByteBuffer.allocate( offHeap.length );
+		long position = offHeap.offset;
+		while ( buffer.hasRemaining() )
+		{
+			final int read = channel.read( buffer, position );
+			if ( read < 0 )
+				throw new IOException( "Unexpected end of the feature scratch file " + file );
+			position += read;
+		}
+
+		final Feature< O > feature;
+		try (final ObjectInputStream ois = new ObjectInputStream( new ByteArrayInputStream( buffer.array() ) ))
+		{
+			feature = ( Feature< O > ) serializer.deserialize( fileIds( objectOf ), objects, ois );
+		}
+		catch ( final ClassNotFoundException e )
+		{
+			throw new IOException( e );
+		}
+
+		synchronized ( offHeap )
+		{
+			final O ref = objects.createRef();
+			try
+			{
+				offHeap.invalid.forEach( id -> {
+					feature.invalidate( objectOf.get( id, ref ) );
+					return true;
+				} );
+			}
+			finally
+			{
+				objects.releaseRef( ref );
+			}
+		}
+		return feature;
+	}
+
+	private static < O > FileIdToObjectMap< O > fileIds( final IdToObject< O > objectOf )
+	{
+		return new FileIdToObjectMap< O >()
+		{
+			@Override
+			public O getObject( final int id, final O ref )
+			{
+				return objectOf.get( id, ref );
+			}
+		};
+	}
+
+	@FunctionalInterface
+	private interface IdToObject< O >
+	{
+		O get( int id, O ref );
+	}
+
+	private void unset( final Class< ? > target, final int id )
+	{
+		final FeatureModel featureModel = model.getFeatureModel();
+		for ( final FeatureSpec< ?, ? > spec : featureModel.getFeatureSpecs() )
+		{
+			if ( !spec.getTargetClass().equals( target ) )
+				continue;
+			final Feature< ? > feature = featureModel.getFeature( spec );
+			if ( feature instanceof OffHeapFeature )
+				( ( OffHeapFeature< ? > ) feature ).unset( id );
+		}
+		for ( final OffHeapFeature< ? > feature : restored.values() )
+			if ( feature.getSpec().getTargetClass().equals( target ) )
+				feature.unset( id );
+	}
+
+	/**
+	 * Removes the offloaded features from the feature model, since the pool
+	 * ids of their columns may now refer to other objects. Restored features
+	 * stay on the heap and are copied again when offloaded.
+	 */
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		final FeatureModel featureModel = model.getFeatureModel();
+		featureModel.pauseListeners();
+		try
+		{
+			for ( final FeatureSpec< ?, ? > spec : new ArrayList<>( featureModel.getFeatureSpecs() ) )
+			{
+				final Feature< ? > feature = featureModel.getFeature( spec );
+				if ( feature instanceof OffHeapFeature )
+				{
+					featureModel.clear( spec );
+					release( ( OffHeapFeature< ? > ) feature );
+				}
+			}
+		}
+		finally
+		{
+			featureModel.resumeListeners();
+		}
+		for ( final OffHeapFeature< ? > feature : restored.values() )
+			release( feature );
+		restored.clear();
+		restoredOriginals.clear();
+	}
+
+	@Override
+	public synchronized void vertexAdded( final Spot spot )
+	{
+		unset( Spot.class, idmap.getVertexId( spot ) );
+	}
+
+	@Override
+	public synchronized void vertexRemoved( final Spot spot )
+	{
+		unset( Spot.class, idmap.getVertexId( spot ) );
+	}
+
+	@Override
+	public synchronized void edgeAdded( final Link link )
+	{
+		unset( Link.class, idmap.getEdgeId( link ) );
+	}
+
+	@Override
+	public synchronized void edgeRemoved( final Link link )
+	{
+		unset( Link.class, idmap.getEdgeId( link ) );
+	}
+}
@@ -0,0 +1,351 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntConsumer;
+
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.tracking.detection.DetectorKeys;
+import org.mastodon.tracking.mamut.detection.DetectionQualityFeature;
+import org.mastodon.tracking.mamut.detection.SpotDetectorOp;
+import org.mastodon.tracking.mamut.trackmate.Settings;
+import org.mastodon.tracking.mamut.trackmate.TrackMate;
+import org.scijava.Context;
+import org.scijava.log.LogLevel;
+import org.scijava.log.Logger;
+
+import bdv.viewer.Source;
+import bdv.viewer.SourceAndConverter;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Runs the detection step of a {@link TrackMate} session in parallel over
+ * timepoints.
+ * <p>
+ * Each timepoint is detected in a separate, private {@link Model} by a task
+ * submitted to a work-stealing {@link ForkJoinPool}. The results are then
+ * merged into the target model in timepoint order, one timepoint per write
+ * lock section. Once anything has been merged, an undo point is recorded and
+ * the graph change is notified, even if detection fails for a later
+ * timepoint. Within a timepoint, spots are added sorted by position, so
+ * that the spot order in the target model does not depend on thread
+ * scheduling.
+ * <p>
+ * Only the <code>ADD</code> and <code>REMOVEALL</code> detection behaviors
+ * without ROI are supported. Use {@link #supports(Settings)} to check whether
+ * a configuration can be run in parallel.
+ */
+final class ParallelDetection
+{
+
+	private static final String ADD = "ADD";
+
+	private static final String REMOVEALL = "REMOVEALL";
+
+	private ParallelDetection()
+	{}
+
+	/**
+	 * Returns <code>true</code> if the detection configured in the specified
+	 * settings can be run in parallel over timepoints.
+	 *
+	 * @param settings
+	 *            the tracking settings.
+	 * @return <code>true</code> if the detection can be run by this class.
+	 */
+	static boolean supports( final Settings settings )
+	{
+		if ( settings.values.getDetector() == null )
+			return false;
+		final Map< String, Object > ds = settings.values.getDetectorSettings();
+		if ( ds.get( DetectorKeys.KEY_ROI ) != null )
+			return false;
+		final Object behavior = ds.get( DetectorKeys.KEY_ADD_BEHAVIOR );
+		return behavior == null || ADD.equals( behavior.toString() ) || REMOVEALL.equals( behavior.toString() );
+	}
+
+	/**
+	 * Runs the detection configured in the specified {@link TrackMate}
+	 * instance, in parallel over timepoints, and notifies the specified
+	 * consumer each time the spots of a timepoint have been merged into the
+	 * model.
+	 *
+	 * @param trackmate
+	 *            the configured {@link TrackMate} instance. Detected spots
+	 *            are added to its model.
+	 * @param numThreads
+	 *            the number of timepoints to process concurrently.
+	 * @param logger
+	 *            the logger to report progress and errors to.
+	 * @param onMerged
+	 *            receives the timepoints in increasing order, once their
+	 *            spots are in the model. Called outside of the graph lock.
+	 * @param metrics
+	 *            the registry receiving the detection time of each timepoint,
+	 *            the merge time and lock wait time, and the number of spots.
+	 * @return <code>true</code> if detection completed successfully for all
+	 *         timepoints.
+	 */
+	static boolean run( final TrackMate trackmate, final int numThreads, final Logger logger, final IntConsumer onMerged, final Metrics metrics )
+	{
+		final Settings settings = trackmate.getSettings();
+		final Map< String, Object > detectorSettings = settings.values.getDetectorSettings();
+		final List< SourceAndConverter< ? > > sources = settings.values.getSources();
+		final int minTimepoint = intValue( detectorSettings.get( DetectorKeys.KEY_MIN_TIMEPOINT ), 0 );
+		final int maxTimepoint = intValue( detectorSettings.get( DetectorKeys.KEY_MAX_TIMEPOINT ), 0 );
+		final int setupId = intValue( detectorSettings.get( DetectorKeys.KEY_SETUP_ID ), 0 );
+		final Source< ? > source = sources.get( setupId ).getSpimSource();
+		final Object behavior = detectorSettings.get( DetectorKeys.KEY_ADD_BEHAVIOR );
+		final boolean removeAll = behavior != null && REMOVEALL.equals( behavior.toString() );
+
+		logger.info( String.format( "Detection on timepoints %d to %d over %d threads.\n",
+				minTimepoint, maxTimepoint, numThreads ) );
+		final long start = System.currentTimeMillis();
+
+		final ForkJoinPool pool = new ForkJoinPool( numThreads );
+		final Deque< Future< DetectionResult > > pending = new ArrayDeque<>();
+		// Bound the number of detected timepoints waiting to be merged.
+		final int maxPending = 2 * numThreads;
+		int nMerged = 0;
+		try
+		{
+			int nSpots = 0;
+			int t = minTimepoint;
+			while ( t <= maxTimepoint || !pending.isEmpty() )
+			{
+				while ( t <= maxTimepoint && pending.size() < maxPending )
+				{
+					final int tp = t++;
+					if ( source.isPresent( tp ) )
+						pending.add( pool.submit( () -> {
+							final long t0 = metrics.start();
+							final DetectionResult detected = detect( trackmate, sources, detectorSettings, tp, logger );
+							metrics.stop( "detect.timepoint", t0 );
+							return detected;
+						} ) );
+				}
+				if ( pending.isEmpty() )
+					continue;
+
+				final DetectionResult result = pending.poll().get();
+				if ( result.errorMessage != null )
+				{
+					logger.error( "Detection failed for timepoint " + result.timepoint + ": " + result.errorMessage + '\n' );
+					return false;
+				}
+				final long t0 = metrics.start();
+				nSpots += merge( result, trackmate.getModel(), removeAll, metrics );
+				nMerged++;
+				metrics.stop( "detect.merge", t0 );
+				onMerged.accept( result.timepoint );
+			}
+
+			metrics.count( "detect.spots", nSpots );
+			final long end = System.currentTimeMillis();
+			logger.info( String.format( "Detected %d spots in %.1f s.\n", nSpots, ( end - start ) / 1000. ) );
+			return true;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			logger.error( "Detection interrupted.\n" );
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Detection failed: " + e.getCause().getMessage() + '\n' );
+			return false;
+		}
+		finally
+		{
+			pool.shutdownNow();
+			// Also when failing halfway, so that merged timepoints can be undone.
+			if ( nMerged > 0 )
+			{
+				trackmate.getModel().setUndoPoint();
+				trackmate.getModel().getGraph().notifyGraphChanged();
+			}
+		}
+	}
+
+	/**
+	 * Detects spots in one timepoint, in a private model.
+	 */
+	private static DetectionResult detect(
+			final TrackMate trackmate,
+			final List< SourceAndConverter< ? > > sources,
+			final Map< String, Object > detectorSettings,
+			final int timepoint,
+			final Logger logger )
+	{
+		final Model target = trackmate.getModel();
+		final Model model = new Model( target.getSpaceUnits(), target.getTimeUnits() );
+
+		final Map< String, Object > ds = new HashMap<>( detectorSettings );
+		ds.put( DetectorKeys.KEY_MIN_TIMEPOINT, Integer.valueOf( timepoint ) );
+		ds.put( DetectorKeys.KEY_MAX_TIMEPOINT, Integer.valueOf( timepoint ) );
+		ds.put( DetectorKeys.KEY_ADD_BEHAVIOR, ADD );
+		final Class< ? extends SpotDetectorOp > detector = trackmate.getSettings().values.getDetector();
+		final Settings settings = new Settings()
+				.sources( sources )
+				.detector( detector )
+				.detectorSettings( ds );
+
+		final TrackMate tm = new TrackMate( settings, model,
+				new DefaultSelectionModel<>( model.getGraph(), model.getGraphIdBimap() ) );
+		final Context context = trackmate.getContext();
+		tm.setContext( context );
+		tm.setLogger( logger.subLogger( "t=" + timepoint, LogLevel.WARN ) );
+		if ( !tm.execDetection() )
+			return new DetectionResult( timepoint, null, tm.getErrorMessage() );
+
+		// Sort spots by position for a deterministic order.
+		final ModelGraph graph = model.getGraph();
+		final DetectionQualityFeature quality = DetectionQualityFeature.getOrRegister(
+				model.getFeatureModel(), graph.vertices().getRefPool() );
+		final double[][] spots = new double[ graph.vertices().size() ][];
+		final double[][] cov = new double[ 3 ][ 3 ];
+		int i = 0;
+		for ( final Spot spot : graph.vertices() )
+		{
+			spot.getCovariance( cov );
+			spots[ i++ ] = new double[] {
+					spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ), spot.getDoublePosition( 2 ),
+					cov[ 0 ][ 0 ], cov[ 0 ][ 1 ], cov[ 0 ][ 2 ], cov[ 1 ][ 1 ], cov[ 1 ][ 2 ], cov[ 2 ][ 2 ],
+					quality.value( spot ) };
+		}
+		Arrays.sort( spots, POSITION_COMPARATOR );
+		return new DetectionResult( timepoint, spots, null );
+	}
+
+	/**
+	 * Adds the spots of one timepoint to the target model, under the graph
+	 * write lock.
+	 */
+	private static int merge( final DetectionResult result, final Model model, final boolean removeAll, final Metrics metrics )
+	{
+		final ModelGraph graph = model.getGraph();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		final DetectionQualityFeature quality = DetectionQualityFeature.getOrRegister(
+				model.getFeatureModel(), graph.vertices().getRefPool() );
+		final Spot ref = graph.vertexRef();
+		final double[] pos = new double[ 3 ];
+		final double[][] cov = new double[ 3 ][ 3 ];
+		final long t0 = metrics.start();
+		lock.writeLock().lock();
+		metrics.stop( "detect.lockWait", t0 );
+		try
+		{
+			if ( removeAll )
+			{
+				final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+				final TIntArrayList ids = new TIntArrayList();
+				for ( final Spot spot : model.getSpatioTemporalIndex().getSpatialIndex( result.timepoint ) )
+					ids.add( idmap.getVertexId( spot ) );
+				BulkModelEdits.remove( graph, idmap, ids, new TIntArrayList( 0 ) );
+			}
+
+			for ( final double[] s : result.spots )
+			{
+				pos[ 0 ] = s[ 0 ];
+				pos[ 1 ] = s[ 1 ];
+				pos[ 2 ] = s[ 2 ];
+				cov[ 0 ][ 0 ] = s[ 3 ];
+				cov[ 0 ][ 1 ] = s[ 4 ];
+				cov[ 1 ][ 0 ] = s[ 4 ];
+				cov[ 0 ][ 2 ] = s[ 5 ];
+				cov[ 2 ][ 0 ] = s[ 5 ];
+				cov[ 1 ][ 1 ] = s[ 6 ];
+				cov[ 1 ][ 2 ] = s[ 7 ];
+				cov[ 2 ][ 1 ] = s[ 7 ];
+				cov[ 2 ][ 2 ] = s[ 8 ];
+				final Spot spot = graph.addVertex( ref ).init( result.timepoint, pos, cov );
+				quality.set( spot, s[ 9 ] );
+			}
+			return result.spots.length;
+		}
+		finally
+		{
+			lock.writeLock().unlock();
+			graph.releaseRef( ref );
+		}
+	}
+
+	static int intValue( final Object obj, final int defaultValue )
+	{
+		return ( obj instanceof Number ) ? ( ( Number ) obj ).intValue() : defaultValue;
+	}
+
+	private static final Comparator< double[] > POSITION_COMPARATOR = ( a, b ) -> {
+		for ( int d = 0; d < 3; d++ )
+		{
+			final int c = Double.compare( a[ d ], b[ d ] );
+			if ( c != 0 )
+				return c;
+		}
+		return 0;
+	};
+
+	private static final class DetectionResult
+	{
+
+		private final int timepoint;
+
+		/**
+		 * One row per spot: X, Y, Z, the 6 independent covariance elements and
+		 * the quality.
+		 */
+		private final double[][] spots;
+
+		private final String errorMessage;
+
+		private DetectionResult( final int timepoint, final double[][] spots, final String errorMessage )
+		{
+			this.timepoint = timepoint;
+			this.spots = spots;
+			this.errorMessage = errorMessage;
+		}
+	}
+}
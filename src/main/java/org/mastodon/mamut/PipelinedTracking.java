@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+import org.mastodon.tracking.detection.DetectorKeys;
+import org.mastodon.tracking.linking.LinkerKeys;
+import org.mastodon.tracking.mamut.trackmate.Settings;
+import org.mastodon.tracking.mamut.trackmate.TrackMate;
+import org.scijava.log.LogLevel;
+import org.scijava.log.Logger;
+
+/**
+ * Runs detection and linking of a {@link TrackMate} session as a pipeline.
+ * <p>
+ * Detection runs in a background thread, in parallel over timepoints (see
+ * {@link ParallelDetection}). Each timepoint fully merged in the model is
+ * handed over to the linking stage through a bounded queue. The linking
+ * stage links the frame pair <code>t-1, t</code> as soon as both are
+ * detected, so that tracks are built while later frames are still being
+ * detected.
+ * <p>
+ * Frame-to-frame linking is only equivalent to linking the whole movie if the
+ * linker does not close gaps, nor detect splitting or merging events. Use
+ * {@link #supports(Settings)} to check whether a configuration can be run as
+ * a pipeline.
+ */
+final class PipelinedTracking
+{
+
+	/**
+	 * Marks the end of the detection stage in the queue.
+	 */
+	private static final int END = -1;
+
+	private PipelinedTracking()
+	{}
+
+	/**
+	 * Returns <code>true</code> if the specified settings can be run as a
+	 * detection - linking pipeline.
+	 *
+	 * @param settings
+	 *            the tracking settings.
+	 * @return <code>true</code> if the configuration can be pipelined.
+	 */
+	static boolean supports( final Settings settings )
+	{
+		if ( settings.values.getLinker() == null || !ParallelDetection.supports( settings ) )
+			return false;
+		final Map< String, Object > ls = settings.values.getLinkerSettings();
+		return !isTrue( ls.get( LinkerKeys.KEY_ALLOW_GAP_CLOSING ) )
+				&& !isTrue( ls.get( LinkerKeys.KEY_ALLOW_TRACK_SPLITTING ) )
+				&& !isTrue( ls.get( LinkerKeys.KEY_ALLOW_TRACK_MERGING ) );
+	}
+
+	/**
+	 * Runs the detection and linking configured in the specified
+	 * {@link TrackMate} instance as a pipeline.
+	 *
+	 * @param trackmate
+	 *            the configured {@link TrackMate} instance.
+	 * @param numThreads
+	 *            the number of threads used for detection.
+	 * @param queueCapacity
+	 *            the max number of detected timepoints waiting to be linked.
+	 *            Detection blocks when this number is reached.
+	 * @param logger
+	 *            the logger to report progress and errors to.
+	 * @param onDetected
+	 *            receives the timepoints in increasing order, once their
+	 *            spots are in the model.
+	 * @param metrics
+	 *            the registry receiving the detection metrics.
+	 * @return <code>true</code> if tracking completed successfully.
+	 */
+	static boolean run( final TrackMate trackmate, final int numThreads, final int queueCapacity, final Logger logger, final IntConsumer onDetected, final Metrics metrics )
+	{
+		final BlockingQueue< Integer > detected = new ArrayBlockingQueue<>( Math.max( 1, queueCapacity ) );
+		final ExecutorService executor = Executors.newSingleThreadExecutor();
+		final long start = System.currentTimeMillis();
+		final Future< Boolean > detection = executor.submit( () -> {
+			try
+			{
+				return ParallelDetection.run( trackmate, numThreads, logger, tp -> {
+					onDetected.accept( tp );
+					try
+					{
+						detected.put( Integer.valueOf( tp ) );
+					}
+					catch ( final InterruptedException e )
+					{
+						Thread.currentThread().interrupt();
+					}
+				}, metrics );
+			}
+			finally
+			{
+				detected.put( Integer.valueOf( END ) );
+			}
+		} );
+
+		// Linking runs over frame pairs, we restore the settings afterwards.
+		final Map< String, Object > linkerSettings = trackmate.getSettings().values.getLinkerSettings();
+		final Object minTimepoint = linkerSettings.get( DetectorKeys.KEY_MIN_TIMEPOINT );
+		final Object maxTimepoint = linkerSettings.get( DetectorKeys.KEY_MAX_TIMEPOINT );
+		// One line per frame pair would flood the log.
+		trackmate.setLogger( logger.subLogger( "linking", LogLevel.WARN ) );
+		int nFrames = 0;
+		int nPairs = 0;
+		long linkingTime = 0;
+		try
+		{
+			int previous = END;
+			while ( true )
+			{
+				final int tp = detected.take().intValue();
+				if ( tp == END )
+					break;
+				nFrames++;
+
+				if ( previous != END && tp == previous + 1 )
+				{
+					final long t0 = System.currentTimeMillis();
+					final long m0 = metrics.start();
+					if ( !link( trackmate, previous, tp ) )
+					{
+						logger.error( "Linking failed for frames " + previous + " -> " + tp + ": " + trackmate.getErrorMessage() + '\n' );
+						detection.cancel( true );
+						return false;
+					}
+					metrics.stop( "link.framePair", m0 );
+					linkingTime += System.currentTimeMillis() - t0;
+					nPairs++;
+				}
+				previous = tp;
+			}
+
+			if ( !detection.get().booleanValue() )
+				return false;
+
+			final double elapsed = ( System.currentTimeMillis() - start ) / 1000.;
+			logger.info( String.format( "Pipelined tracking done in %.1f s.\n", elapsed ) );
+			logger.info( String.format( " - detection: %d frames, %.2f frames/s.\n", nFrames, nFrames / elapsed ) );
+			logger.info( String.format( " - linking:   %d frame pairs, %.2f pairs/s (%.1f s busy).\n",
+					nPairs, nPairs / Math.max( 1e-3, linkingTime / 1000. ), linkingTime / 1000. ) );
+			trackmate.getModel().setUndoPoint();
+			return true;
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			detection.cancel( true );
+			logger.error( "Tracking interrupted.\n" );
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			logger.error( "Detection failed: " + e.getCause().getMessage() + '\n' );
+			return false;
+		}
+		finally
+		{
+			executor.shutdownNow();
+			trackmate.setLogger( logger );
+			linkerSettings.put( DetectorKeys.KEY_MIN_TIMEPOINT, minTimepoint );
+			linkerSettings.put( DetectorKeys.KEY_MAX_TIMEPOINT, maxTimepoint );
+		}
+	}
+
+	/**
+	 * Links the spots of two consecutive frames, reusing the linker
+	 * configured in the {@link TrackMate} instance.
+	 */
+	private static boolean link( final TrackMate trackmate, final int t0, final int t1 )
+	{
+		final Map< String, Object > ls = trackmate.getSettings().values.getLinkerSettings();
+		ls.put( DetectorKeys.KEY_MIN_TIMEPOINT, Integer.valueOf( t0 ) );
+		ls.put( DetectorKeys.KEY_MAX_TIMEPOINT, Integer.valueOf( t1 ) );
+		return trackmate.execParticleLinking();
+	}
+
+	private static boolean isTrue( final Object obj )
+	{
+		return ( obj instanceof Boolean ) && ( ( Boolean ) obj ).booleanValue();
+	}
+}
@@ -0,0 +1,961 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.mastodon.feature.FeatureModel.FeatureModelListener;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetModel.TagSetModelListener;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.mastodon.properties.PropertyChangeListener;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.set.hash.TIntHashSet;
+
+/**
+ * Append-only journal of the changes made to a model since its last full
+ * save.
+ * <p>
+ * The journal is a file stored next to the Mastodon project file, with the
+ * <code>.journal</code> extension appended. It records the spots and links
+ * added and removed, the spot position, shape and label changes, and the tag
+ * assignment changes of spots and links. Changes are accumulated in memory
+ * and written to the file by {@link #append()}, each batch being closed by a
+ * commit record. When a project is opened, the committed part of its journal
+ * is replayed on the model with {@link #replay(Model, File)}.
+ * <p>
+ * Spots are identified in the journal by their rank in the iteration order of
+ * the graph at the time of the full save, which is also the order in which
+ * they are read back when the project is loaded. Spots added later receive
+ * new ranks. Links are identified by their source and target spots.
+ * <p>
+ * Tag assignments are journaled for the spots and links reported to
+ * {@link #recordTags(TagSet, TIntList, TIntList, Runnable)}, without
+ * scanning the model. Other tag assignments cannot be seen object by object:
+ * when the tag-set model notifies its listeners outside of this method, for
+ * instance after a tag-set structure change or after tags were written with
+ * paused listeners, the journal is marked as broken.
+ * <p>
+ * Feature values are not journaled. Changes to the feature model, and the
+ * feature value writes reported with {@link #featureValuesChanged()}, also
+ * mark the journal as broken. After such changes {@link #canAppend()}
+ * returns <code>false</code> and a full save is required.
+ * <p>
+ * Once the journal is broken, or once the pending changes would bring the
+ * journal file beyond its maximal size, changes are not recorded anymore and
+ * the memory they used is released, since the next save is a full save.
+ */
+final class ProjectJournal implements GraphListener< Spot, Link >
+{
+
+	static final String EXTENSION = ".journal";
+
+	private static final int MAGIC = 0x4D4A524E;
+
+	private static final int VERSION = 1;
+
+	private static final byte ADD_SPOT = 1;
+
+	private static final byte REMOVE_SPOT = 2;
+
+	private static final byte ADD_LINK = 3;
+
+	private static final byte REMOVE_LINK = 4;
+
+	private static final byte SPOT_SHAPE = 5;
+
+	private static final byte SPOT_LABEL = 6;
+
+	private static final byte SPOT_TAG = 7;
+
+	private static final byte LINK_TAG = 8;
+
+	private static final byte COMMIT = 9;
+
+	private final Model model;
+
+	private final File file;
+
+	/**
+	 * Maps spot pool ids to journal ids.
+	 */
+	private final TIntIntHashMap spotJids = new TIntIntHashMap( 10, 0.5f, -1, -1 );
+
+	private int nextJid;
+
+	/**
+	 * Number of spots in the model at the time of the last full save.
+	 */
+	private int nSavedSpots;
+
+	/**
+	 * Spots whose position or shape changed since the last append.
+	 */
+	private final TIntHashSet shapeChanged = new TIntHashSet();
+
+	/**
+	 * Spots whose label changed since the last append.
+	 */
+	private final TIntHashSet labelChanged = new TIntHashSet();
+
+	/**
+	 * Pool ids of the spots and links whose tags changed since the last
+	 * append, per tag-set id.
+	 */
+	private final Map< Integer, TIntHashSet > spotTagsChanged = new HashMap<>();
+
+	private final Map< Integer, TIntHashSet > linkTagsChanged = new HashMap<>();
+
+	private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+	private final DataOutputStream out = new DataOutputStream( buffer );
+
+	private boolean broken;
+
+	/**
+	 * Size of the journal file, as written by this instance.
+	 */
+	private long fileSize;
+
+	private long maxSize = Long.MAX_VALUE;
+
+	/**
+	 * Whether tags reported to {@link #recordTags} are being written.
+	 */
+	private boolean recordingTags;
+
+	private final PropertyChangeListener< Spot > shapeListener = this::shapeChanged;
+
+	private final PropertyChangeListener< Spot > labelListener = this::labelChanged;
+
+	private final TagSetModelListener tagSetListener = () -> {
+		if ( !recordingTags )
+			setBroken();
+	};
+
+	private final FeatureModelListener featureListener = this::setBroken;
+
+	private ProjectJournal( final Model model, final File file )
+	{
+		this.model = model;
+		this.file = file;
+	}
+
+	/**
+	 * Returns the journal file of the specified project file.
+	 *
+	 * @param projectFile
+	 *            the Mastodon project file.
+	 * @return the journal file.
+	 */
+	static File journalFile( final File projectFile )
+	{
+		return new File( projectFile.getAbsolutePath() + EXTENSION );
+	}
+
+	/**
+	 * Creates a new journal for a model that was just fully saved to the
+	 * specified project file, and starts listening to the model. Any previous
+	 * journal file is truncated.
+	 *
+	 * @param model
+	 *            the model, as it was saved.
+	 * @param projectFile
+	 *            the Mastodon project file.
+	 * @return a new journal.
+	 * @throws IOException
+	 *             if the journal file cannot be written.
+	 */
+	static ProjectJournal create( final Model model, final File projectFile ) throws IOException
+	{
+		final ProjectJournal journal = new ProjectJournal( model, journalFile( projectFile ) );
+		journal.rebase();
+		journal.writeHeader( projectFile );
+		journal.attach();
+		return journal;
+	}
+
+	/**
+	 * Creates a new journal for a model whose snapshot is being written to the
+	 * specified project file, and starts listening to the model. The model
+	 * must not change between the snapshot and this call.
+	 * <p>
+	 * The changes made while the snapshot is written are recorded. The journal
+	 * file is only written by {@link #writeHeader(File)}, once the project
+	 * file is complete.
+	 *
+	 * @param model
+	 *            the model, as in the snapshot.
+	 * @param projectFile
+	 *            the Mastodon project file being written.
+	 * @return a new journal.
+	 */
+	static ProjectJournal createPending( final Model model, final File projectFile )
+	{
+		final ProjectJournal journal = new ProjectJournal( model, journalFile( projectFile ) );
+		journal.rebase();
+		journal.attach();
+		return journal;
+	}
+
+	/**
+	 * Replays the journal of the specified project file, if there is one, on
+	 * a model freshly loaded from this project file. Then returns a journal
+	 * that continues the replayed one and listens to the model.
+	 *
+	 * @param model
+	 *            the model loaded from the project file.
+	 * @param projectFile
+	 *            the Mastodon project file.
+	 * @return the journal, or <code>null</code> if there was no journal for
+	 *         this project file.
+	 * @throws IOException
+	 *             if the journal file exists but does not match the project
+	 *             file, or cannot be read.
+	 */
+	static ProjectJournal replay( final Model model, final File projectFile ) throws IOException
+	{
+		final File file = journalFile( projectFile );
+		if ( !file.exists() )
+			return null;
+
+		final ProjectJournal journal = new ProjectJournal( model, file );
+		final int nCommits = countCommits( file );
+		final ModelGraph graph = model.getGraph();
+		graph.getLock().writeLock().lock();
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			journal.readHeader( in, projectFile );
+			journal.apply( in, nCommits );
+		}
+		finally
+		{
+			graph.getLock().writeLock().unlock();
+		}
+		graph.notifyGraphChanged();
+		model.setUndoPoint();
+		journal.fileSize = file.length();
+		journal.attach();
+		return journal;
+	}
+
+	/**
+	 * Returns <code>true</code> if the changes made since the last full save
+	 * can be appended to this journal.
+	 *
+	 * @return whether an incremental save is possible.
+	 */
+	boolean canAppend()
+	{
+		return recording();
+	}
+
+	/**
+	 * Marks feature values as changed. Feature values are not journaled, so
+	 * the next save has to be a full save.
+	 */
+	void featureValuesChanged()
+	{
+		setBroken();
+	}
+
+	/**
+	 * Sets the size of the journal file above which changes are not recorded
+	 * anymore, the next save being a full save.
+	 *
+	 * @param bytes
+	 *            the maximal size, in bytes.
+	 */
+	void setMaxSize( final long bytes )
+	{
+		this.maxSize = bytes;
+		recording();
+	}
+
+	/**
+	 * Writes tags with the specified task, and records that the tags of the
+	 * specified objects in the specified tag-set changed. The tag-set model
+	 * notifications emitted by the task do not mark the journal as broken.
+	 *
+	 * @param tagSet
+	 *            the tag-set written by the task.
+	 * @param vertexIds
+	 *            the pool ids of the spots whose tag is written.
+	 * @param edgeIds
+	 *            the pool ids of the links whose tag is written.
+	 * @param write
+	 *            the task writing the tags.
+	 */
+	void recordTags( final TagSet tagSet, final TIntList vertexIds, final TIntList edgeIds, final Runnable write )
+	{
+		if ( recording() )
+		{
+			final Integer key = Integer.valueOf( tagSet.id() );
+			spotTagsChanged.computeIfAbsent( key, k -> new TIntHashSet() ).addAll( vertexIds );
+			linkTagsChanged.computeIfAbsent( key, k -> new TIntHashSet() ).addAll( edgeIds );
+		}
+		recordingTags = true;
+		try
+		{
+			write.run();
+		}
+		finally
+		{
+			recordingTags = false;
+		}
+	}
+
+	/**
+	 * Returns the size of the journal file.
+	 *
+	 * @return the size in bytes.
+	 */
+	long size()
+	{
+		return file.length();
+	}
+
+	/**
+	 * Appends the changes made since the last append to the journal file.
+	 *
+	 * @return the number of bytes written.
+	 * @throws IOException
+	 *             if the journal file cannot be written.
+	 */
+	long append() throws IOException
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.getLock().readLock().lock();
+		try
+		{
+			writeShapesAndLabels();
+			writeTagChanges();
+			out.writeByte( COMMIT );
+			out.flush();
+			try (final FileOutputStream fos = new FileOutputStream( file, true ))
+			{
+				buffer.writeTo( fos );
+				fos.getChannel().force( false );
+			}
+			final long written = buffer.size();
+			buffer.reset();
+			fileSize += written;
+			return written;
+		}
+		finally
+		{
+			graph.getLock().readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops listening to the model.
+	 */
+	void detach()
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.removeGraphListener( this );
+		graph.removeVertexPositionListener( shapeListener );
+		graph.removeVertexCovarianceListener( shapeListener );
+		graph.removeVertexLabelListener( labelListener );
+		model.getTagSetModel().listeners().remove( tagSetListener );
+		model.getFeatureModel().listeners().remove( featureListener );
+	}
+
+	private void attach()
+	{
+		final ModelGraph graph = model.getGraph();
+		graph.addGraphListener( this );
+		graph.addVertexPositionListener( shapeListener );
+		graph.addVertexCovarianceListener( shapeListener );
+		graph.addVertexLabelListener( labelListener );
+		model.getTagSetModel().listeners().add( tagSetListener );
+		model.getFeatureModel().listeners().add( featureListener );
+	}
+
+	/*
+	 * Full save.
+	 */
+
+	private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4;
+
+	private void rebase()
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		spotJids.clear();
+		nextJid = 0;
+		for ( final Spot spot : graph.vertices() )
+			spotJids.put( idmap.getVertexId( spot ), nextJid++ );
+		shapeChanged.clear();
+		labelChanged.clear();
+		spotTagsChanged.clear();
+		linkTagsChanged.clear();
+		buffer.reset();
+		broken = false;
+		nSavedSpots = nextJid;
+	}
+
+	/**
+	 * Writes the header of the journal file, which identifies the full save
+	 * of the specified project file. Any previous journal file is truncated.
+	 *
+	 * @param projectFile
+	 *            the Mastodon project file, completely written.
+	 * @throws IOException
+	 *             if the journal file cannot be written.
+	 */
+	void writeHeader( final File projectFile ) throws IOException
+	{
+		try (final DataOutputStream header = new DataOutputStream( new FileOutputStream( file, false ) ))
+		{
+			header.writeInt( MAGIC );
+			header.writeInt( VERSION );
+			header.writeLong( projectFile.length() );
+			header.writeLong( projectFile.lastModified() );
+			header.writeInt( nSavedSpots );
+		}
+		fileSize = HEADER_SIZE;
+	}
+
+	/*
+	 * Recording.
+	 */
+
+	/**
+	 * Marks the journal as broken, and releases the changes recorded so far.
+	 */
+	private void setBroken()
+	{
+		broken = true;
+		spotJids.clear();
+		shapeChanged.clear();
+		labelChanged.clear();
+		spotTagsChanged.clear();
+		linkTagsChanged.clear();
+		buffer.reset();
+	}
+
+	/**
+	 * Returns <code>true</code> if changes are still recorded. The journal is
+	 * marked as broken when the pending changes would bring it beyond its
+	 * maximal size.
+	 */
+	private boolean recording()
+	{
+		if ( broken )
+			return false;
+		if ( fileSize + buffer.size() <= maxSize )
+			return true;
+		setBroken();
+		return false;
+	}
+
+	@Override
+	public void graphRebuilt()
+	{
+		setBroken();
+	}
+
+	@Override
+	public void vertexAdded( final Spot spot )
+	{
+		if ( !recording() )
+			return;
+		final int id = model.getGraphIdBimap().getVertexId( spot );
+		final int jid = nextJid++;
+		spotJids.put( id, jid );
+		forgetSpot( id );
+		try
+		{
+			out.writeByte( ADD_SPOT );
+			out.writeInt( jid );
+			out.writeInt( spot.getTimepoint() );
+			writeShape( spot );
+		}
+		catch ( final IOException e )
+		{
+			setBroken();
+		}
+	}
+
+	@Override
+	public void vertexRemoved( final Spot spot )
+	{
+		if ( !recording() )
+			return;
+		final int id = model.getGraphIdBimap().getVertexId( spot );
+		final int jid = spotJids.remove( id );
+		forgetSpot( id );
+		try
+		{
+			out.writeByte( REMOVE_SPOT );
+			out.writeInt( jid );
+		}
+		catch ( final IOException e )
+		{
+			setBroken();
+		}
+	}
+
+	@Override
+	public void edgeAdded( final Link link )
+	{
+		if ( !recording() )
+			return;
+		forgetLink( model.getGraphIdBimap().getEdgeId( link ) );
+		writeLink( ADD_LINK, link );
+	}
+
+	@Override
+	public void edgeRemoved( final Link link )
+	{
+		if ( !recording() )
+			return;
+		forgetLink( model.getGraphIdBimap().getEdgeId( link ) );
+		writeLink( REMOVE_LINK, link );
+	}
+
+	private void shapeChanged( final Spot spot )
+	{
+		if ( recording() )
+			shapeChanged.add( model.getGraphIdBimap().getVertexId( spot ) );
+	}
+
+	private void labelChanged( final Spot spot )
+	{
+		if ( recording() )
+			labelChanged.add( model.getGraphIdBimap().getVertexId( spot ) );
+	}
+
+	/**
+	 * Pool ids are reused: drop what we know of the previous object with this
+	 * id.
+	 */
+	private void forgetSpot( final int id )
+	{
+		shapeChanged.remove( id );
+		labelChanged.remove( id );
+		for ( final TIntHashSet ids : spotTagsChanged.values() )
+			ids.remove( id );
+	}
+
+	private void forgetLink( final int id )
+	{
+		for ( final TIntHashSet ids : linkTagsChanged.values() )
+			ids.remove( id );
+	}
+
+	private void writeLink( final byte op, final Link link )
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final Spot ref = graph.vertexRef();
+		try
+		{
+			out.writeByte( op );
+			out.writeInt( spotJids.get( idmap.getVertexId( link.getSource( ref ) ) ) );
+			out.writeInt( spotJids.get( idmap.getVertexId( link.getTarget( ref ) ) ) );
+		}
+		catch ( final IOException e )
+		{
+			setBroken();
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+	}
+
+	private final double[][] cov = new double[ 3 ][ 3 ];
+
+	private void writeShape( final Spot spot ) throws IOException
+	{
+		for ( int d = 0; d < 3; d++ )
+			out.writeDouble( spot.getDoublePosition( d ) );
+		spot.getCovariance( cov );
+		for ( int r = 0; r < 3; r++ )
+			for ( int c = r; c < 3; c++ )
+				out.writeDouble( cov[ r ][ c ] );
+	}
+
+	private void writeShapesAndLabels() throws IOException
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final Spot ref = graph.vertexRef();
+		try
+		{
+			for ( final int id : shapeChanged.toArray() )
+			{
+				final Spot spot = idmap.getVertex( id, ref );
+				out.writeByte( SPOT_SHAPE );
+				out.writeInt( spotJids.get( id ) );
+				writeShape( spot );
+			}
+			for ( final int id : labelChanged.toArray() )
+			{
+				final Spot spot = idmap.getVertex( id, ref );
+				out.writeByte( SPOT_LABEL );
+				out.writeInt( spotJids.get( id ) );
+				out.writeUTF( spot.getLabel() );
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+		}
+		shapeChanged.clear();
+		labelChanged.clear();
+	}
+
+	/**
+	 * Writes the current tag of the spots and links recorded as changed. Only
+	 * these objects are visited.
+	 */
+	private void writeTagChanges() throws IOException
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+		final Spot ref = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		try
+		{
+			for ( final TagSet tagSet : tagSetModel.getTagSetStructure().getTagSets() )
+			{
+				final Integer key = Integer.valueOf( tagSet.id() );
+				final TIntHashSet st = spotTagsChanged.get( key );
+				if ( st != null )
+				{
+					final ObjTagMap< Spot, Tag > vertexTags = tagSetModel.getVertexTags().tags( tagSet );
+					for ( final int id : st.toArray() )
+					{
+						final Tag tag = vertexTags.get( idmap.getVertex( id, ref ) );
+						out.writeByte( SPOT_TAG );
+						out.writeInt( spotJids.get( id ) );
+						out.writeInt( tagSet.id() );
+						out.writeInt( ( tag == null ) ? -1 : tag.id() );
+					}
+				}
+
+				final TIntHashSet lt = linkTagsChanged.get( key );
+				if ( lt != null )
+				{
+					final ObjTagMap< Link, Tag > edgeTags = tagSetModel.getEdgeTags().tags( tagSet );
+					for ( final int id : lt.toArray() )
+					{
+						final Link link = idmap.getEdge( id, eref );
+						final Tag tag = edgeTags.get( link );
+						out.writeByte( LINK_TAG );
+						out.writeInt( spotJids.get( idmap.getVertexId( link.getSource( ref ) ) ) );
+						out.writeInt( spotJids.get( idmap.getVertexId( link.getTarget( ref ) ) ) );
+						out.writeInt( tagSet.id() );
+						out.writeInt( ( tag == null ) ? -1 : tag.id() );
+					}
+				}
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref );
+			graph.releaseRef( eref );
+		}
+		spotTagsChanged.clear();
+		linkTagsChanged.clear();
+	}
+
+	/*
+	 * Replay.
+	 */
+
+	/**
+	 * Returns the number of commit records in the journal. Records after the
+	 * last commit, for instance written by a save that did not complete, are
+	 * ignored.
+	 */
+	private static int countCommits( final File file ) throws IOException
+	{
+		int nCommits = 0;
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) ))
+		{
+			in.skipBytes( HEADER_SIZE );
+			while ( true )
+			{
+				final byte op = in.readByte();
+				recordSize( op, in );
+				if ( op == COMMIT )
+					nCommits++;
+			}
+		}
+		catch ( final EOFException e )
+		{
+			// End of file reached.
+		}
+		return nCommits;
+	}
+
+	/**
+	 * Skips the payload of a record and returns its size.
+	 */
+	private static int recordSize( final byte op, final DataInputStream in ) throws IOException
+	{
+		final int size;
+		switch ( op )
+		{
+		case ADD_SPOT:
+			size = 4 + 4 + 9 * 8;
+			break;
+		case REMOVE_SPOT:
+			size = 4;
+			break;
+		case ADD_LINK:
+		case REMOVE_LINK:
+			size = 8;
+			break;
+		case SPOT_SHAPE:
+			size = 4 + 9 * 8;
+			break;
+		case SPOT_LABEL:
+			in.skipBytes( 4 );
+			final int len = in.readUnsignedShort();
+			if ( in.skipBytes( len ) < len )
+				throw new EOFException();
+			return 4 + 2 + len;
+		case SPOT_TAG:
+			size = 12;
+			break;
+		case LINK_TAG:
+			size = 16;
+			break;
+		case COMMIT:
+			size = 0;
+			break;
+		default:
+			throw new IOException( "Corrupted journal, unknown record: " + op );
+		}
+		if ( in.skipBytes( size ) < size )
+			throw new EOFException();
+		return size;
+	}
+
+	private void readHeader( final DataInputStream in, final File projectFile ) throws IOException
+	{
+		if ( in.readInt() != MAGIC || in.readInt() != VERSION )
+			throw new IOException( "Not a Mastodon journal file: " + file );
+		final long length = in.readLong();
+		final long lastModified = in.readLong();
+		if ( length != projectFile.length() || lastModified != projectFile.lastModified() )
+			throw new IOException( "The journal " + file + " does not match the project file. It was ignored." );
+		final int nSpots = in.readInt();
+		if ( nSpots != model.getGraph().vertices().size() )
+			throw new IOException( "The journal " + file + " expects " + nSpots + " spots in the project, but found "
+					+ model.getGraph().vertices().size() + ". It was ignored." );
+
+		// Journal ids of saved spots are their rank in the graph.
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		nextJid = 0;
+		for ( final Spot spot : model.getGraph().vertices() )
+			spotJids.put( idmap.getVertexId( spot ), nextJid++ );
+	}
+
+	private void apply( final DataInputStream in, final int nCommits ) throws IOException
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = model.getGraphIdBimap();
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+
+		// Inverse map, from journal id to pool id.
+		final TIntIntHashMap poolIds = new TIntIntHashMap( spotJids.size(), 0.5f, -1, -1 );
+		for ( final int id : spotJids.keys() )
+			poolIds.put( spotJids.get( id ), id );
+
+		final Spot ref1 = graph.vertexRef();
+		final Spot ref2 = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		final double[] pos = new double[ 3 ];
+		final double[][] c = new double[ 3 ][ 3 ];
+		int commits = 0;
+		try
+		{
+			while ( commits < nCommits )
+			{
+				final byte op = in.readByte();
+				switch ( op )
+				{
+				case ADD_SPOT:
+				{
+					final int jid = in.readInt();
+					final int tp = in.readInt();
+					readShape( in, pos, c );
+					final Spot spot = graph.addVertex( ref1 ).init( tp, pos, c );
+					final int id = idmap.getVertexId( spot );
+					spotJids.put( id, jid );
+					poolIds.put( jid, id );
+					nextJid = Math.max( nextJid, jid + 1 );
+					break;
+				}
+				case REMOVE_SPOT:
+				{
+					final int jid = in.readInt();
+					final int id = poolIds.remove( jid );
+					spotJids.remove( id );
+					graph.remove( idmap.getVertex( id, ref1 ) );
+					break;
+				}
+				case ADD_LINK:
+				case REMOVE_LINK:
+				{
+					final Spot source = idmap.getVertex( poolIds.get( in.readInt() ), ref1 );
+					final Spot target = idmap.getVertex( poolIds.get( in.readInt() ), ref2 );
+					if ( op == ADD_LINK )
+						graph.addEdge( source, target, eref ).init();
+					else
+					{
+						final Link link = graph.getEdge( source, target, eref );
+						if ( link != null )
+							graph.remove( link );
+					}
+					break;
+				}
+				case SPOT_SHAPE:
+				{
+					final Spot spot = idmap.getVertex( poolIds.get( in.readInt() ), ref1 );
+					readShape( in, pos, c );
+					spot.setPosition( pos );
+					spot.setCovariance( c );
+					break;
+				}
+				case SPOT_LABEL:
+				{
+					final Spot spot = idmap.getVertex( poolIds.get( in.readInt() ), ref1 );
+					final String label = in.readUTF();
+					spot.setLabel( label );
+					break;
+				}
+				case SPOT_TAG:
+				{
+					final Spot spot = idmap.getVertex( poolIds.get( in.readInt() ), ref1 );
+					final TagSet tagSet = findTagSet( tagSetModel, in.readInt() );
+					final int tagId = in.readInt();
+					if ( tagSet != null )
+					{
+						final ObjTagMap< Spot, Tag > tags = tagSetModel.getVertexTags().tags( tagSet );
+						final Tag tag = findTag( tagSet, tagId );
+						if ( tag == null )
+							tags.remove( spot );
+						else
+							tags.set( spot, tag );
+					}
+					break;
+				}
+				case LINK_TAG:
+				{
+					final Spot source = idmap.getVertex( poolIds.get( in.readInt() ), ref1 );
+					final Spot target = idmap.getVertex( poolIds.get( in.readInt() ), ref2 );
+					final TagSet tagSet = findTagSet( tagSetModel, in.readInt() );
+					final int tagId = in.readInt();
+					final Link link = graph.getEdge( source, target, eref );
+					if ( tagSet != null && link != null )
+					{
+						final ObjTagMap< Link, Tag > tags = tagSetModel.getEdgeTags().tags( tagSet );
+						final Tag tag = findTag( tagSet, tagId );
+						if ( tag == null )
+							tags.remove( link );
+						else
+							tags.set( link, tag );
+					}
+					break;
+				}
+				case COMMIT:
+					commits++;
+					break;
+				default:
+					throw new IOException( "Corrupted journal, unknown record: " + op );
+				}
+			}
+		}
+		finally
+		{
+			graph.releaseRef( ref1 );
+			graph.releaseRef( ref2 );
+			graph.releaseRef( eref );
+		}
+	}
+
+	private static void readShape( final DataInputStream in, final double[] pos, final double[][] c ) throws IOException
+	{
+		for ( int d = 0; d < 3; d++ )
+			pos[ d ] = in.readDouble();
+		for ( int r = 0; r < 3; r++ )
+			for ( int col = r; col < 3; col++ )
+			{
+				c[ r ][ col ] = in.readDouble();
+				c[ col ][ r ] = c[ r ][ col ];
+			}
+	}
+
+	private static TagSet findTagSet( final TagSetModel< Spot, Link > tagSetModel, final int id )
+	{
+		final List< TagSet > tagSets = tagSetModel.getTagSetStructure().getTagSets();
+		for ( final TagSet tagSet : tagSets )
+			if ( tagSet.id() == id )
+				return tagSet;
+		return null;
+	}
+
+	private static Tag findTag( final TagSet tagSet, final int id )
+	{
+		for ( final Tag tag : tagSet.getTags() )
+			if ( tag.id() == id )
+				return tag;
+		return null;
+	}
+}
@@ -0,0 +1,340 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.mastodon.graph.io.RawGraphIO.GraphToFileIdMap;
+import org.mastodon.mamut.feature.MamutRawFeatureModelIO;
+import org.mastodon.mamut.io.project.MamutProject;
+import org.mastodon.mamut.io.project.MamutProjectIO;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.scijava.Context;
+
+/**
+ * A copy of the serialized content of a Mastodon project, spooled to
+ * temporary files.
+ * <p>
+ * Taking a snapshot serializes the model, tags and features to uncompressed
+ * temporary files, which is faster than writing the compressed project file
+ * and does not keep the serialized model on the heap. The snapshot can then
+ * be written to the project file from another thread while the model is
+ * being edited.
+ * <p>
+ * The GUI state (window layout and display settings) and the backup of the
+ * dataset XML file are copied from the project file the snapshot is taken
+ * from, as they were last saved. When there is no such file, the backup is
+ * copied from the dataset XML file and no GUI state is written.
+ */
+final class ProjectSnapshot implements MamutProject.ProjectWriter
+{
+
+	private final File folder;
+
+	private File projectXml;
+
+	private File rawModel;
+
+	private File rawTags;
+
+	private File gui;
+
+	private File backupDatasetXml;
+
+	private final Map< String, File > features = new LinkedHashMap<>();
+
+	private ProjectSnapshot( final File folder )
+	{
+		this.folder = folder;
+	}
+
+	/**
+	 * Serializes the specified project to temporary files, for the specified
+	 * target file. The caller must hold the graph read lock so that the
+	 * snapshot is consistent.
+	 * <p>
+	 * The project root of the project is set to the target file, which is
+	 * needed to write paths relative to it. It is left unchanged if taking
+	 * the snapshot fails.
+	 *
+	 * @param project
+	 *            the project, with its project root set to the file the GUI
+	 *            state is copied from, or <code>null</code>.
+	 * @param target
+	 *            the file the snapshot will be written to.
+	 * @param model
+	 *            the model to serialize.
+	 * @param context
+	 *            the context used to find feature serializers.
+	 * @param offHeapFeatures
+	 *            the off-heap storage of the features of the model, which
+	 *            serializes them one at a time, or <code>null</code> if they
+	 *            are on the heap.
+	 * @return a new snapshot.
+	 * @throws IOException
+	 *             if serialization fails.
+	 */
+	static ProjectSnapshot take( final MamutProject project, final File target, final Model model, final Context context, final OffHeapFeatures offHeapFeatures ) throws IOException
+	{
+		final ProjectSnapshot snapshot = new ProjectSnapshot( Files.createTempDirectory( "mastodon-snapshot" ).toFile() );
+		final File previous = project.getProjectRoot();
+		try
+		{
+			if ( previous != null && previous.exists() )
+				snapshot.copyFrom( project );
+			if ( snapshot.backupDatasetXml == null && project.getDatasetXmlFile() != null && project.getDatasetXmlFile().isFile() )
+			{
+				snapshot.backupDatasetXml = snapshot.newFile( "backup" );
+				Files.copy( project.getDatasetXmlFile().toPath(), snapshot.backupDatasetXml.toPath() );
+			}
+
+			project.setProjectRoot( target );
+			MamutProjectIO.save( project, snapshot );
+			final GraphToFileIdMap< Spot, Link > idmap = model.saveRaw( snapshot );
+			if ( offHeapFeatures == null )
+				MamutRawFeatureModelIO.serialize( context, model, idmap, snapshot );
+			else
+				offHeapFeatures.serialize( idmap, snapshot );
+			return snapshot;
+		}
+		catch ( final UncheckedIOException e )
+		{
+			project.setProjectRoot( previous );
+			snapshot.dispose();
+			throw e.getCause();
+		}
+		catch ( final IOException | RuntimeException e )
+		{
+			project.setProjectRoot( previous );
+			snapshot.dispose();
+			throw e;
+		}
+	}
+
+	/**
+	 * Copies the GUI state and the backup of the dataset XML file saved in the
+	 * project file.
+	 */
+	private void copyFrom( final MamutProject project ) throws IOException
+	{
+		try (final MamutProject.ProjectReader reader = project.openForReading())
+		{
+			gui = copy( reader::getGuiInputStream, "gui" );
+			backupDatasetXml = copy( reader::getBackupDatasetXmlInputStream, "backup" );
+		}
+	}
+
+	@FunctionalInterface
+	private interface StreamSupplier
+	{
+		InputStream get() throws IOException;
+	}
+
+	/**
+	 * Copies a stream of the project file to a temporary file, or returns
+	 * <code>null</code> if the project file does not have it.
+	 */
+	private File copy( final StreamSupplier supplier, final String name ) throws IOException
+	{
+		final InputStream is;
+		try
+		{
+			is = supplier.get();
+		}
+		catch ( final FileNotFoundException e )
+		{
+			return null;
+		}
+		if ( is == null )
+			return null;
+		final File file = newFile( name );
+		try (final InputStream in = is)
+		{
+			Files.copy( in, file.toPath() );
+		}
+		return file;
+	}
+
+	/**
+	 * Writes this snapshot to the project root of the specified project.
+	 *
+	 * @param project
+	 *            the project.
+	 * @return the number of bytes serialized, before compression.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	long writeTo( final MamutProject project ) throws IOException
+	{
+		long size = 0;
+		try (final MamutProject.ProjectWriter writer = project.openForWriting())
+		{
+			size += copy( projectXml, writer.getProjectXmlOutputStream() );
+			size += copy( rawModel, writer.getRawModelOutputStream() );
+			size += copy( rawTags, writer.getRawTagsOutputStream() );
+			for ( final Map.Entry< String, File > entry : features.entrySet() )
+				size += copy( entry.getValue(), writer.getFeatureOutputStream( entry.getKey() ) );
+			if ( gui != null )
+				size += copy( gui, writer.getGuiOutputStream() );
+			if ( backupDatasetXml != null )
+				size += copy( backupDatasetXml, writer.getBackupDatasetXmlOutputStream() );
+		}
+		return size;
+	}
+
+	/**
+	 * Returns the size of this snapshot.
+	 *
+	 * @return the size in bytes.
+	 */
+	long size()
+	{
+		long size = size( projectXml ) + size( rawModel ) + size( rawTags ) + size( gui ) + size( backupDatasetXml );
+		for ( final File feature : features.values() )
+			size += feature.length();
+		return size;
+	}
+
+	/**
+	 * Deletes the temporary files of this snapshot.
+	 */
+	void dispose()
+	{
+		final File[] files = folder.listFiles();
+		if ( files != null )
+			for ( final File file : files )
+				file.delete();
+		folder.delete();
+	}
+
+	private static long size( final File file )
+	{
+		return file == null ? 0 : file.length();
+	}
+
+	private static long copy( final File file, final OutputStream target ) throws IOException
+	{
+		if ( file == null )
+			return 0;
+		try (final OutputStream os = target)
+		{
+			Files.copy( file.toPath(), os );
+		}
+		return file.length();
+	}
+
+	private File newFile( final String name )
+	{
+		return new File( folder, features.size() + "-" + name );
+	}
+
+	/**
+	 * Opens a stream to a new temporary file.
+	 */
+	private OutputStream open( final File file )
+	{
+		try
+		{
+			return new BufferedOutputStream( new FileOutputStream( file ), 1 << 16 );
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+	}
+
+	@Override
+	public OutputStream getProjectXmlOutputStream()
+	{
+		projectXml = newFile( "project.xml" );
+		return open( projectXml );
+	}
+
+	@Override
+	public OutputStream getRawModelOutputStream()
+	{
+		rawModel = newFile( "model.raw" );
+		return open( rawModel );
+	}
+
+	@Override
+	public OutputStream getRawTagsOutputStream()
+	{
+		rawTags = newFile( "tags.raw" );
+		return open( rawTags );
+	}
+
+	@Override
+	public OutputStream getGuiOutputStream()
+	{
+		// The GUI state is copied from the project file.
+		return new OutputStream()
+		{
+			@Override
+			public void write( final int b )
+			{}
+		};
+	}
+
+	@Override
+	public OutputStream getFeatureOutputStream( final String featureKey )
+	{
+		final File file = newFile( "feature.raw" );
+		features.put( featureKey, file );
+		return open( file );
+	}
+
+	@Override
+	public OutputStream getBackupDatasetXmlOutputStream()
+	{
+		// The backup is copied from the project file or from the dataset.
+		return new OutputStream()
+		{
+			@Override
+			public void write( final int b )
+			{}
+		};
+	}
+
+	@Override
+	public void close()
+	{}
+}
@@ -0,0 +1,276 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Writes the content of a data model as two text tables, one for spots and one
+ * for links, row by row as it iterates over the graph.
+ * <p>
+ * Rows are formatted and written one at a time, so the memory used does not
+ * depend on the size of the model. Feature columns can be restricted to a
+ * subset of the feature projections, and rows can be filtered with a
+ * predicate. The graph read lock is held while writing.
+ */
+public class TableWriter
+{
+
+	private final Model model;
+
+	private Collection< String > columns;
+
+	private Predicate< Spot > spotFilter = s -> true;
+
+	private Predicate< Link > linkFilter = l -> true;
+
+	private long maxLines = Long.MAX_VALUE;
+
+	/**
+	 * Creates a table writer for the specified model, writing all the
+	 * feature columns and all the rows.
+	 *
+	 * @param model
+	 *            the model.
+	 */
+	public TableWriter( final Model model )
+	{
+		this.model = model;
+	}
+
+	/**
+	 * Restricts the feature columns written to the ones with the specified
+	 * names, as reported in the table header (the feature projection keys).
+	 *
+	 * @param columns
+	 *            the names of the feature columns to write, or
+	 *            <code>null</code> to write all of them.
+	 * @return this writer.
+	 */
+	public TableWriter columns( final Collection< String > columns )
+	{
+		this.columns = columns;
+		return this;
+	}
+
+	/**
+	 * Only writes the spots that pass the specified filter.
+	 *
+	 * @param filter
+	 *            the spot filter.
+	 * @return this writer.
+	 */
+	public TableWriter spots( final Predicate< Spot > filter )
+	{
+		this.spotFilter = filter;
+		return this;
+	}
+
+	/**
+	 * Only writes the links that pass the specified filter.
+	 *
+	 * @param filter
+	 *            the link filter.
+	 * @return this writer.
+	 */
+	public TableWriter links( final Predicate< Link > filter )
+	{
+		this.linkFilter = filter;
+		return this;
+	}
+
+	/**
+	 * Limits the number of rows written in each table.
+	 *
+	 * @param maxLines
+	 *            the maximal number of rows per table.
+	 * @return this writer.
+	 */
+	public TableWriter maxLines( final long maxLines )
+	{
+		this.maxLines = maxLines;
+		return this;
+	}
+
+	/**
+	 * Writes the tables to the specified file, replacing its content.
+	 *
+	 * @param path
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public void write( final Path path ) throws IOException
+	{
+		try (Writer out = Files.newBufferedWriter( path, StandardCharsets.UTF_8 ))
+		{
+			write( out );
+		}
+	}
+
+	/**
+	 * Writes the tables to the specified writer. The writer is flushed but not
+	 * closed.
+	 *
+	 * @param writer
+	 *            the writer.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public void write( final Writer writer ) throws IOException
+	{
+		final BufferedWriter out = writer instanceof BufferedWriter
+				? ( BufferedWriter ) writer
+				: new BufferedWriter( writer );
+		final String spaceUnits = Optional.ofNullable( model.getSpaceUnits() ).orElse( "" );
+		final String timeUnits = Optional.ofNullable( model.getTimeUnits() ).orElse( "" );
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final ReentrantReadWriteLock lock = graph.getLock();
+		final Spot ref = graph.vertexRef();
+		lock.readLock().lock();
+		try
+		{
+			out.write( "Data model #" + model.hashCode() + '\n' );
+
+			// Spots.
+			final List< FeatureColumns.Column< Spot > > spotColumns = filter( FeatureColumns.of( model.getFeatureModel(), Spot.class ) );
+			out.write( "  Spots:\n" );
+			final StringBuilder h1 = new StringBuilder( String.format( "  %9s  %9s  %6s  %9s  %9s  %9s",
+					"Id", "Label", "Frame", "X", "Y", "Z" ) );
+			final StringBuilder h2 = new StringBuilder( String.format( "  %9s  %9s  %6s  %9s  %9s  %9s",
+					"", "", "(" + timeUnits + ")", "(" + spaceUnits + ")", "(" + spaceUnits + ")", "(" + spaceUnits + ")" ) );
+			final int[] spotWidths = appendHeaders( spotColumns, h1, h2 );
+			writeHeader( out, h1, h2 );
+			long n = 0;
+			for ( final Spot spot : graph.vertices() )
+			{
+				if ( n >= maxLines )
+					break;
+				if ( !spotFilter.test( spot ) )
+					continue;
+				out.write( String.format( "  %9d  %9s  %6d  %9.1f  %9.1f  %9.1f",
+						idmap.getVertexId( spot ), spot.getLabel(), spot.getTimepoint(),
+						spot.getDoublePosition( 0 ), spot.getDoublePosition( 1 ), spot.getDoublePosition( 2 ) ) );
+				writeValues( out, spotColumns, spotWidths, spot );
+				n++;
+			}
+
+			// Links.
+			final List< FeatureColumns.Column< Link > > linkColumns = filter( FeatureColumns.of( model.getFeatureModel(), Link.class ) );
+			out.write( "  Links:\n" );
+			final StringBuilder l1 = new StringBuilder( String.format( "  %9s  %9s  %9s", "Id", "Source Id", "Target Id" ) );
+			final StringBuilder l2 = new StringBuilder( String.format( "  %9s  %9s  %9s", "", "", "" ) );
+			final int[] linkWidths = appendHeaders( linkColumns, l1, l2 );
+			writeHeader( out, l1, l2 );
+			n = 0;
+			for ( final Link link : graph.edges() )
+			{
+				if ( n >= maxLines )
+					break;
+				if ( !linkFilter.test( link ) )
+					continue;
+				out.write( String.format( "  %9d  %9d  %9d",
+						idmap.getEdgeId( link ),
+						idmap.getVertexId( link.getSource( ref ) ),
+						idmap.getVertexId( link.getTarget( ref ) ) ) );
+				writeValues( out, linkColumns, linkWidths, link );
+				n++;
+			}
+			out.flush();
+		}
+		finally
+		{
+			lock.readLock().unlock();
+			graph.releaseRef( ref );
+		}
+	}
+
+	private < O > List< FeatureColumns.Column< O > > filter( final List< FeatureColumns.Column< O > > all )
+	{
+		if ( columns == null )
+			return all;
+		final List< FeatureColumns.Column< O > > filtered = new ArrayList<>();
+		for ( final FeatureColumns.Column< O > column : all )
+			if ( columns.contains( column.name ) )
+				filtered.add( column );
+		return filtered;
+	}
+
+	private static < O > int[] appendHeaders( final List< FeatureColumns.Column< O > > columns, final StringBuilder h1, final StringBuilder h2 )
+	{
+		final int[] widths = new int[ columns.size() ];
+		for ( int i = 0; i < columns.size(); i++ )
+		{
+			final FeatureColumns.Column< O > column = columns.get( i );
+			final String units = "(" + Optional.ofNullable( column.units ).orElse( "" ) + ")";
+			widths[ i ] = Math.max( 9, Math.max( column.name.length(), units.length() ) );
+			h1.append( String.format( "  %" + widths[ i ] + "s", column.name ) );
+			h2.append( String.format( "  %" + widths[ i ] + "s", units ) );
+		}
+		return widths;
+	}
+
+	private static void writeHeader( final Writer out, final CharSequence h1, final CharSequence h2 ) throws IOException
+	{
+		out.write( h1.toString() );
+		out.write( '\n' );
+		out.write( h2.toString() );
+		out.write( '\n' );
+		final char[] line = new char[ h1.length() ];
+		Arrays.fill( line, '-' );
+		out.write( line );
+		out.write( '\n' );
+	}
+
+	private static < O > void writeValues( final Writer out, final List< FeatureColumns.Column< O > > columns, final int[] widths, final O o ) throws IOException
+	{
+		for ( int i = 0; i < columns.size(); i++ )
+			out.write( String.format( "  %" + widths[ i ] + ".1f", columns.get( i ).value( o ) ) );
+		out.write( '\n' );
+	}
+}
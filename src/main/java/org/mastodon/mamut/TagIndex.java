@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetModel.TagSetModelListener;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+
+/**
+ * Index of the tag-sets and tags of a tag-set model by name and label.
+ * <p>
+ * The index is built on first lookup and discarded when the tag-set
+ * structure changes.
+ */
+final class TagIndex implements TagSetModelListener
+{
+
+	private static final class Entry
+	{
+
+		private final TagSet tagSet;
+
+		private final Map< String, Tag > tags = new HashMap<>();
+
+		private Entry( final TagSet tagSet )
+		{
+			this.tagSet = tagSet;
+			for ( final Tag tag : tagSet.getTags() )
+				tags.putIfAbsent( tag.label(), tag );
+		}
+	}
+
+	private final TagSetModel< Spot, Link > tagSetModel;
+
+	private Map< String, Entry > index;
+
+	private TagIndex( final TagSetModel< Spot, Link > tagSetModel )
+	{
+		this.tagSetModel = tagSetModel;
+	}
+
+	/**
+	 * Creates an index for the specified tag-set model and starts listening to
+	 * it.
+	 *
+	 * @param tagSetModel
+	 *            the tag-set model.
+	 * @return a new index.
+	 */
+	static TagIndex attach( final TagSetModel< Spot, Link > tagSetModel )
+	{
+		final TagIndex index = new TagIndex( tagSetModel );
+		tagSetModel.listeners().add( index );
+		return index;
+	}
+
+	/**
+	 * Stops listening to the tag-set model.
+	 */
+	void detach()
+	{
+		tagSetModel.listeners().remove( this );
+	}
+
+	/**
+	 * Returns the tag-set with the specified name.
+	 *
+	 * @param name
+	 *            the tag-set name.
+	 * @return the tag-set, or <code>null</code> if there is none with this
+	 *         name.
+	 */
+	synchronized TagSet tagSet( final String name )
+	{
+		final Entry entry = index().get( name );
+		return entry == null ? null : entry.tagSet;
+	}
+
+	/**
+	 * Returns the tag with the specified label in a tag-set.
+	 *
+	 * @param tagSet
+	 *            the tag-set.
+	 * @param label
+	 *            the tag label.
+	 * @return the tag, or <code>null</code> if there is none with this label.
+	 */
+	synchronized Tag tag( final TagSet tagSet, final String label )
+	{
+		final Entry entry = index().get( tagSet.getName() );
+		return entry == null ? null : entry.tags.get( label );
+	}
+
+	private Map< String, Entry > index()
+	{
+		if ( index == null )
+		{
+			index = new HashMap<>();
+			for ( final TagSet tagSet : tagSetModel.getTagSetStructure().getTagSets() )
+				index.putIfAbsent( tagSet.getName(), new Entry( tagSet ) );
+		}
+		return index;
+	}
+
+	@Override
+	public synchronized void tagSetStructureChanged()
+	{
+		index = null;
+	}
+}
@@ -0,0 +1,182 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.mastodon.tracking.mamut.detection.SpotDetectorOp;
+import org.mastodon.tracking.mamut.linking.SpotLinkerOp;
+import org.mastodon.tracking.mamut.trackmate.PluginProvider;
+import org.scijava.Context;
+import org.scijava.event.EventHandler;
+import org.scijava.event.EventService;
+import org.scijava.event.EventSubscriber;
+import org.scijava.object.ObjectService;
+import org.scijava.plugin.event.PluginsAddedEvent;
+import org.scijava.plugin.event.PluginsRemovedEvent;
+
+/**
+ * Caches the detector and linker plugins discovered in a {@link Context}, and
+ * their default settings.
+ * <p>
+ * Plugin discovery and the instantiation of a dummy op to read default
+ * settings are costly compared to short tracking runs. There is one instance
+ * of this class per context, stored in the context {@link ObjectService}, so
+ * that all the {@link Mamut} and {@link TrackMateProxy} instances using this
+ * context share it. The cache is invalidated when plugins are added to or
+ * removed from the context.
+ */
+final class TrackMatePlugins
+{
+
+	private final Context context;
+
+	private PluginProvider< SpotDetectorOp > detectors;
+
+	private PluginProvider< SpotLinkerOp > linkers;
+
+	private final Map< Class< ? >, Map< String, Object > > defaultSettings = new HashMap<>();
+
+	/**
+	 * Keeps a reference to the event subscribers, otherwise they are garbage
+	 * collected.
+	 */
+	@SuppressWarnings( "unused" )
+	private final List< EventSubscriber< ? > > subscribers;
+
+	private TrackMatePlugins( final Context context )
+	{
+		this.context = context;
+		final EventService eventService = context.getService( EventService.class );
+		this.subscribers = ( eventService == null )
+				? Collections.emptyList()
+				: eventService.subscribe( this );
+	}
+
+	/**
+	 * Returns the plugin registry of the specified context, creating it if
+	 * needed.
+	 *
+	 * @param context
+	 *            the context.
+	 * @return the plugin registry of this context.
+	 */
+	static TrackMatePlugins get( final Context context )
+	{
+		final ObjectService objectService = context.getService( ObjectService.class );
+		synchronized ( objectService )
+		{
+			final List< TrackMatePlugins > registries = objectService.getObjects( TrackMatePlugins.class );
+			if ( !registries.isEmpty() )
+				return registries.get( 0 );
+
+			final TrackMatePlugins registry = new TrackMatePlugins( context );
+			objectService.addObject( registry );
+			return registry;
+		}
+	}
+
+	/**
+	 * Returns the provider of the detectors known to the context.
+	 *
+	 * @return the detector provider.
+	 */
+	synchronized PluginProvider< SpotDetectorOp > detectors()
+	{
+		if ( detectors == null )
+		{
+			detectors = new PluginProvider<>( SpotDetectorOp.class );
+			context.inject( detectors );
+		}
+		return detectors;
+	}
+
+	/**
+	 * Returns the provider of the linkers known to the context.
+	 *
+	 * @return the linker provider.
+	 */
+	synchronized PluginProvider< SpotLinkerOp > linkers()
+	{
+		if ( linkers == null )
+		{
+			linkers = new PluginProvider<>( SpotLinkerOp.class );
+			context.inject( linkers );
+		}
+		return linkers;
+	}
+
+	/**
+	 * Returns a new, modifiable copy of the default settings of the specified
+	 * detector or linker class. The default settings are computed with the
+	 * specified supplier the first time they are requested for this class.
+	 *
+	 * @param cl
+	 *            the detector or linker class.
+	 * @param defaultsSupplier
+	 *            computes the default settings of this class.
+	 * @return a new settings map.
+	 */
+	synchronized Map< String, Object > getDefaultSettings( final Class< ? > cl, final Supplier< Map< String, Object > > defaultsSupplier )
+	{
+		Map< String, Object > defaults = defaultSettings.get( cl );
+		if ( defaults == null )
+		{
+			defaults = Collections.unmodifiableMap( new HashMap<>( defaultsSupplier.get() ) );
+			defaultSettings.put( cl, defaults );
+		}
+		return new HashMap<>( defaults );
+	}
+
+	/**
+	 * Discards all the cached plugin information.
+	 */
+	synchronized void invalidate()
+	{
+		detectors = null;
+		linkers = null;
+		defaultSettings.clear();
+	}
+
+	@EventHandler
+	void onEvent( final PluginsAddedEvent event )
+	{
+		invalidate();
+	}
+
+	@EventHandler
+	void onEvent( final PluginsRemovedEvent event )
+	{
+		invalidate();
+	}
+}
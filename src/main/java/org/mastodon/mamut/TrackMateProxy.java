@@ -33,10 +33,12 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntConsumer;
 
 import org.apache.commons.lang.WordUtils;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.tracking.detection.DetectorKeys;
 import org.mastodon.tracking.mamut.detection.DetectionQualityFeature;
 import org.mastodon.tracking.mamut.detection.SpotDetectorOp;
 import org.mastodon.tracking.mamut.linking.LinkCostFeature;
@@ -64,10 +66,23 @@ public class TrackMateProxy
 
 	private final Logger logger;
 
+	private final TrackMatePlugins plugins;
+
+	private int numThreads = 1;
+
+	private boolean pipelined = false;
+
+	private ImageCache imageCache;
+
+	private Metrics metrics = new Metrics();
+
+	private Runnable featureValuesListener = () -> {};
+
 	TrackMateProxy( final TrackMate trackmate, final Logger logger )
 	{
 		this.trackmate = trackmate;
 		this.logger = logger;
+		this.plugins = TrackMatePlugins.get( trackmate.getContext() );
 	}
 
 	/**
@@ -87,8 +102,7 @@ public class TrackMateProxy
 			return;
 		}
 
-		final PluginProvider< SpotDetectorOp > detectorprovider = new PluginProvider<>( SpotDetectorOp.class );
-		trackmate.context().inject( detectorprovider );
+		final PluginProvider< SpotDetectorOp > detectorprovider = plugins.detectors();
 		final List< String > detectorNames = detectorprovider.getNames();
 		final int indexOf = detectorNames.indexOf( detector );
 		if ( indexOf < 0 )
@@ -122,6 +136,11 @@ public class TrackMateProxy
 	}
 
 	private Map< String, Object > getDefaultDetectorSettings( final Class< ? extends SpotDetectorOp > detectorClass )
+	{
+		return plugins.getDefaultSettings( detectorClass, () -> createDefaultDetectorSettings( detectorClass ) );
+	}
+
+	private Map< String, Object > createDefaultDetectorSettings( final Class< ? extends SpotDetectorOp > detectorClass )
 	{
 		// Instantiate a dummy detector.
 		final Model model = trackmate.getModel();
@@ -153,8 +172,7 @@ public class TrackMateProxy
 			return;
 		}
 
-		final PluginProvider< SpotLinkerOp > linkerprovider = new PluginProvider<>( SpotLinkerOp.class );
-		trackmate.context().inject( linkerprovider );
+		final PluginProvider< SpotLinkerOp > linkerprovider = plugins.linkers();
 		final List< String > linkerNames = linkerprovider.getNames();
 		final int indexOf = linkerNames.indexOf( linker );
 		if ( indexOf < 0 )
@@ -189,7 +207,12 @@ public class TrackMateProxy
 
 	private Map< String, Object > getDefaultLinkerSettings( final Class< ? extends SpotLinkerOp > linkerCl )
 	{
-		// Instantiate a dummy detector.
+		return plugins.getDefaultSettings( linkerCl, () -> createDefaultLinkerSettings( linkerCl ) );
+	}
+
+	private Map< String, Object > createDefaultLinkerSettings( final Class< ? extends SpotLinkerOp > linkerCl )
+	{
+		// Instantiate a dummy linker.
 		final Model model = trackmate.getModel();
 		final LinkCostFeature linkCostFeature = LinkCostFeature.getOrRegister(
 				model.getFeatureModel(), model.getGraph().edges().getRefPool() );
@@ -258,6 +281,136 @@ public class TrackMateProxy
 		trackmate.getSettings().values.getLinkerSettings().put( key, value );
 	}
 
+	/**
+	 * Sets the number of threads used to run detection. With more than one
+	 * thread, timepoints are detected in parallel and the results merged in
+	 * timepoint order. This is possible only for the <code>ADD</code> and
+	 * <code>REMOVEALL</code> detection behaviors without ROI; other
+	 * configurations are run sequentially.
+	 * 
+	 * @param numThreads
+	 *            the number of threads to use for detection.
+	 */
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	 * Returns the number of threads used to run detection.
+	 * 
+	 * @return the number of threads.
+	 */
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * Sets whether detection and linking should run as a pipeline in
+	 * {@link #run()}. In pipelined mode, the frame pair <code>t-1, t</code> is
+	 * linked as soon as both frames are detected, while detection proceeds
+	 * with the next frames. This is possible only for linkers configured
+	 * without gap-closing, splitting nor merging, and for detection
+	 * configurations that can run in parallel (see
+	 * {@link #setNumThreads(int)}). Other configurations run detection then
+	 * linking, as in the default mode.
+	 * 
+	 * @param pipelined
+	 *            whether to pipeline detection and linking.
+	 */
+	public void setPipelined( final boolean pipelined )
+	{
+		this.pipelined = pipelined;
+	}
+
+	/**
+	 * Sets the image cache that prefetches the timepoints ahead of detection.
+	 * 
+	 * @param imageCache
+	 *            the image cache, or <code>null</code> not to prefetch.
+	 */
+	void setImageCache( final ImageCache imageCache )
+	{
+		this.imageCache = imageCache;
+	}
+
+	/**
+	 * Sets the registry receiving the metrics of detection and linking.
+	 * 
+	 * @param metrics
+	 *            the metrics registry.
+	 */
+	void setMetrics( final Metrics metrics )
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Sets the task to run after detection or tracking, that may have written
+	 * feature values such as the detection quality and the link cost.
+	 * 
+	 * @param featureValuesListener
+	 *            the task to run.
+	 */
+	void setFeatureValuesListener( final Runnable featureValuesListener )
+	{
+		this.featureValuesListener = featureValuesListener;
+	}
+
+	/**
+	 * Starts prefetching the first timepoints to detect, if the image cache is
+	 * configured to, and returns a consumer that prefetches the timepoints
+	 * following each detected timepoint. Without parallel detection,
+	 * timepoints are not reported and only the first ones are prefetched.
+	 * 
+	 * @return the consumer of detected timepoints.
+	 */
+	private IntConsumer startPrefetch()
+	{
+		final int ahead = imageCache == null ? 0 : imageCache.getPrefetchTimepoints();
+		if ( ahead == 0 || trackmate.getSettings().values.getDetector() == null )
+			return tp -> {};
+		final Map< String, Object > ds = trackmate.getSettings().values.getDetectorSettings();
+		final int setupId = ParallelDetection.intValue( ds.get( DetectorKeys.KEY_SETUP_ID ), 0 );
+		final int minTimepoint = ParallelDetection.intValue( ds.get( DetectorKeys.KEY_MIN_TIMEPOINT ), 0 );
+		final int maxTimepoint = ParallelDetection.intValue( ds.get( DetectorKeys.KEY_MAX_TIMEPOINT ), 0 );
+		imageCache.prefetch( setupId, minTimepoint, Math.min( maxTimepoint, minTimepoint + ahead - 1 ) );
+		return tp -> imageCache.prefetch( setupId, tp + 1, Math.min( maxTimepoint, tp + ahead ) );
+	}
+
+	/**
+	 * Executes the detection step only, in parallel over timepoints if
+	 * possible.
+	 * 
+	 * @return <code>true</code> if detection completed successfully.
+	 */
+	boolean execDetection()
+	{
+		final long t0 = metrics.start();
+		try
+		{
+			return detect();
+		}
+		finally
+		{
+			metrics.stop( "detect", t0 );
+			featureValuesListener.run();
+		}
+	}
+
+	private boolean detect()
+	{
+		final IntConsumer prefetch = startPrefetch();
+		if ( numThreads > 1 && ParallelDetection.supports( trackmate.getSettings() ) )
+			return ParallelDetection.run( trackmate, numThreads, logger, prefetch, metrics );
+
+		final boolean ok = trackmate.execDetection();
+		if ( !ok )
+			logger.error( trackmate.getErrorMessage() );
+		return ok;
+	}
+
 	/**
 	 * Executes the tracking with current configuration.
 	 * 
@@ -266,6 +419,38 @@ public class TrackMateProxy
 	 */
 	public boolean run()
 	{
+		final long t0 = metrics.start();
+		try
+		{
+			return track();
+		}
+		finally
+		{
+			metrics.stop( "trackmate.run", t0 );
+			featureValuesListener.run();
+		}
+	}
+
+	private boolean track()
+	{
+		final IntConsumer prefetch = startPrefetch();
+		if ( pipelined && PipelinedTracking.supports( trackmate.getSettings() ) )
+			return PipelinedTracking.run( trackmate, numThreads, Math.max( 4, 2 * numThreads ), logger, prefetch, metrics );
+
+		if ( numThreads > 1 && ParallelDetection.supports( trackmate.getSettings() ) )
+		{
+			if ( !ParallelDetection.run( trackmate, numThreads, logger, prefetch, metrics ) )
+				return false;
+			if ( trackmate.getSettings().values.getLinker() == null )
+				return true;
+			final long t0 = metrics.start();
+			final boolean ok = trackmate.execParticleLinking();
+			metrics.stop( "link", t0 );
+			if ( !ok )
+				logger.error( trackmate.getErrorMessage() );
+			return ok;
+		}
+
 		trackmate.run();
 
 		if ( trackmate.isCanceled() )
@@ -294,8 +479,7 @@ public class TrackMateProxy
 		final StringBuilder str = new StringBuilder();
 		str.append( "Available detectors:\n" );
 
-		final PluginProvider< SpotDetectorOp > detectorprovider = new PluginProvider<>( SpotDetectorOp.class );
-		trackmate.context().inject( detectorprovider );
+		final PluginProvider< SpotDetectorOp > detectorprovider = plugins.detectors();
 		final List< String > detectorNames = detectorprovider.getNames();
 		for ( int i = 0; i < detectorNames.size(); i++ )
 		{
@@ -335,8 +519,7 @@ public class TrackMateProxy
 		final StringBuilder str = new StringBuilder();
 		str.append( "Available linkers:\n" );
 
-		final PluginProvider< SpotLinkerOp > linkerprovider = new PluginProvider<>( SpotLinkerOp.class );
-		trackmate.context().inject( linkerprovider );
+		final PluginProvider< SpotLinkerOp > linkerprovider = plugins.linkers();
 		final List< String > linkerNames = linkerprovider.getNames();
 		for ( int i = 0; i < linkerNames.size(); i++ )
 		{
@@ -0,0 +1,264 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.tag.TagSetModel;
+import org.mastodon.model.tag.TagSetStructure;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.mastodon.tracking.mamut.detection.DetectionQualityFeature;
+import org.mastodon.tracking.mamut.linking.LinkCostFeature;
+import org.scijava.Context;
+import org.scijava.log.LogLevel;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Checks that compiled selection expressions select the same spots and links
+ * as the selection creator parser, on a synthetic model with unset feature
+ * values and tags.
+ */
+public class CompiledSelectionTest
+{
+
+	/*
+	 * More spots than one evaluation chunk, so that parallel evaluation is
+	 * exercised.
+	 */
+	private static final int N_TRACKS = 1000;
+
+	private static final int N_FRAMES = 20;
+
+	private static final String DATASET = "samples/datasethdf5.xml";
+
+	/** The last timepoint of the sample dataset. */
+	private static final int MAX_TIMEPOINT = 30;
+
+	private static final String[] EXPRESSIONS = new String[] {
+			"vertexFeature( 'Detection quality' ) > 0.5",
+			"vertexFeature( 'Detection quality' ) != 0.5",
+			"!( vertexFeature( 'Detection quality' ) > 0.5 )",
+			"vertexFeature( 'Detection quality' ) >= 0.2 & vertexFeature( 'Detection quality' ) < 0.8",
+			"edgeFeature( 'Link cost' ) <= 0.3",
+			"!( edgeFeature( 'Link cost' ) <= 0.3 )",
+			"vertexFeature( 'Detection quality' ) > 0.2 & edgeFeature( 'Link cost' ) < 0.7",
+			"vertexFeature( 'Detection quality' ) > 0.2 | edgeFeature( 'Link cost' ) < 0.7",
+			"vertexTag( 'Fate', 'A' )",
+			"!vertexTag( 'Fate', 'A' )",
+			"edgeTag( 'Fate', 'B' ) | vertexTag( 'Fate', 'B' )",
+			"vertexTag( 'Fate', 'A' ) & edgeTag( 'Fate', 'A' )",
+			"!( vertexTag( 'Fate', 'A' ) & vertexFeature( 'Detection quality' ) >= 0.5 )",
+			"( vertexTag( 'Fate', 'A' ) | edgeFeature( 'Link cost' ) > 0.5 ) & !( edgeTag( 'Fate', 'B' ) )"
+	};
+
+	private Model model;
+
+	@Before
+	public void setUp()
+	{
+		model = SyntheticModels.create( N_TRACKS, N_FRAMES );
+		final ModelGraph graph = model.getGraph();
+		final Random ran = new Random( 2l );
+
+		// Feature values, left unset on part of the objects.
+		final DetectionQualityFeature quality = DetectionQualityFeature.getOrRegister(
+				model.getFeatureModel(), graph.vertices().getRefPool() );
+		for ( final Spot spot : graph.vertices() )
+			if ( ran.nextDouble() < 0.8 )
+				quality.set( spot, ran.nextInt( 5 ) == 0 ? 0.5 : ran.nextDouble() );
+		final LinkCostFeature cost = LinkCostFeature.getOrRegister(
+				model.getFeatureModel(), graph.edges().getRefPool() );
+		for ( final Link link : graph.edges() )
+			if ( ran.nextDouble() < 0.8 )
+				cost.set( link, ran.nextDouble() );
+
+		// Tags, left unset on part of the objects.
+		final TagSetStructure tss = new TagSetStructure();
+		tss.createTagSet( "Fate" ).createTag( "A", 0xFF0000 );
+		tss.getTagSets().get( 0 ).createTag( "B", 0x00FF00 );
+		final TagSetModel< Spot, Link > tagSetModel = model.getTagSetModel();
+		tagSetModel.setTagSetStructure( tss );
+		final TagSet tagSet = tagSetModel.getTagSetStructure().getTagSets().get( 0 );
+		final Tag a = tagSet.getTags().get( 0 );
+		final Tag b = tagSet.getTags().get( 1 );
+		for ( final Spot spot : graph.vertices() )
+		{
+			final double r = ran.nextDouble();
+			if ( r < 0.3 )
+				tagSetModel.getVertexTags().set( spot, a );
+			else if ( r < 0.5 )
+				tagSetModel.getVertexTags().set( spot, b );
+		}
+		for ( final Link link : graph.edges() )
+		{
+			final double r = ran.nextDouble();
+			if ( r < 0.3 )
+				tagSetModel.getEdgeTags().set( link, a );
+			else if ( r < 0.5 )
+				tagSetModel.getEdgeTags().set( link, b );
+		}
+	}
+
+	@Test
+	public void testSameAsParser()
+	{
+		for ( final String expression : EXPRESSIONS )
+		{
+			final CompiledSelection compiled = CompiledSelection.compile( expression );
+			assertNotNull( "Expression should compile: " + expression, compiled );
+			final int[][] expected = parse( model, expression );
+			for ( final int numThreads : new int[] { 1, 4 } )
+			{
+				final CompiledSelection.Matches matches = compiled.evaluate( model, numThreads, N_FRAMES - 1 );
+				assertNotNull( "Expression should evaluate: " + expression, matches );
+				assertArrayEquals( "Spots selected by " + expression + " on " + numThreads + " threads",
+						expected[ 0 ], sorted( matches.vertices ) );
+				assertArrayEquals( "Links selected by " + expression + " on " + numThreads + " threads",
+						expected[ 1 ], sorted( matches.edges ) );
+			}
+		}
+	}
+
+	@Test
+	public void testPositionIndex() throws Exception
+	{
+		final Context context = new Context();
+		try
+		{
+			final Mamut mamut = Mamut.newProjectHeadless( DATASET, context );
+			try
+			{
+				mamut.setLogger( mamut.getLogger().subLogger( "test", LogLevel.NONE ) );
+				final Model model = mamut.getModel();
+				SyntheticModels.addTracks( model, N_TRACKS, N_FRAMES, 1l );
+				mamut.computeFeatures( "Spot frame", "Spot position" );
+				final double x = model.getGraph().vertices().iterator().next().getDoublePosition( 0 );
+				final String[] expressions = new String[] {
+						"vertexFeature( 'Spot position', 'X' ) < 300",
+						"vertexFeature( 'Spot position', 'X' ) == " + x,
+						"vertexFeature( 'Spot position', 'X' ) >= 200 & vertexFeature( 'Spot position', 'Y' ) <= 500 & vertexFeature( 'Spot position', 'Z' ) > 100",
+						"vertexFeature( 'Spot position', 'X' ) < 100 | vertexFeature( 'Spot position', 'Y' ) > 900",
+						"vertexFeature( 'Spot position', 'Y' ) < 500 & vertexFeature( 'Spot frame' ) >= 5 & vertexFeature( 'Spot frame' ) < 12",
+						"vertexFeature( 'Spot position', 'X' ) < 500 | vertexFeature( 'Spot position', 'Y' ) != 3",
+						"!( vertexFeature( 'Spot position', 'Z' ) < 500 )",
+						"vertexFeature( 'Spot position', 'Z' ) < 500 & vertexFeature( 'Spot frame' ) > 15"
+				};
+				for ( final String expression : expressions )
+				{
+					final CompiledSelection compiled = CompiledSelection.compile( expression );
+					assertNotNull( "Expression should compile: " + expression, compiled );
+					final int[][] expected = parse( model, expression );
+					final CompiledSelection.Matches matches = compiled.evaluate( model, 4, MAX_TIMEPOINT );
+					assertNotNull( "Expression should evaluate: " + expression, matches );
+					assertArrayEquals( "Spots selected by " + expression, expected[ 0 ], sorted( matches.vertices ) );
+					assertArrayEquals( "Links selected by " + expression, expected[ 1 ], sorted( matches.edges ) );
+				}
+			}
+			finally
+			{
+				mamut.close();
+			}
+		}
+		finally
+		{
+			context.dispose();
+		}
+	}
+
+	@Test
+	public void testParallelOnlyForKnownFeatures()
+	{
+		assertTrue( CompiledSelection.compile( "vertexFeature( 'Detection quality' ) > 0.5" ).bind( model ).parallel() );
+		assertTrue( CompiledSelection.compile( "edgeFeature( 'Link cost' ) > 0.5" ).bind( model ).parallel() );
+		assertFalse( CompiledSelection.compile( "vertexTag( 'Fate', 'A' )" ).bind( model ).parallel() );
+		assertFalse( CompiledSelection.compile( "vertexTag( 'Fate', 'A' ) | vertexFeature( 'Detection quality' ) > 0.5" ).bind( model ).parallel() );
+	}
+
+	@Test
+	public void testUnsupported()
+	{
+		assertNull( CompiledSelection.compile( "vertexFeature( 'Detection quality' ) > 0.5 + 1" ) );
+		assertNull( CompiledSelection.compile( "morphoVertexFeature( 'Detection quality' ) > 0.5" ) );
+		assertNull( CompiledSelection.compile( "vertexFeature( 'Unknown feature' ) > 0.5" ).evaluate( model, 1, N_FRAMES - 1 ) );
+		assertNull( CompiledSelection.compile( "vertexTag( 'Fate', 'C' )" ).evaluate( model, 1, N_FRAMES - 1 ) );
+	}
+
+	/**
+	 * Returns the sorted ids of the spots and links selected by the selection
+	 * creator parser.
+	 */
+	private static int[][] parse( final Model model, final String expression )
+	{
+		final ModelGraph graph = model.getGraph();
+		final GraphIdBimap< Spot, Link > idmap = graph.getGraphIdBimap();
+		final DefaultSelectionModel< Spot, Link > selection = new DefaultSelectionModel<>( graph, idmap );
+		try
+		{
+			final SelectionParser< Spot, Link > parser = new SelectionParser<>( graph, idmap,
+					model.getTagSetModel(), model.getFeatureModel(), selection );
+			assertTrue( "Parser failed on " + expression + ": " + parser.getErrorMessage(), parser.parse( expression ) );
+			final TIntArrayList vertices = new TIntArrayList();
+			for ( final Spot spot : selection.getSelectedVertices() )
+				vertices.add( idmap.getVertexId( spot ) );
+			final TIntArrayList edges = new TIntArrayList();
+			for ( final Link link : selection.getSelectedEdges() )
+				edges.add( idmap.getEdgeId( link ) );
+			return new int[][] { sorted( vertices ), sorted( edges ) };
+		}
+		finally
+		{
+			graph.removeGraphListener( selection );
+		}
+	}
+
+	private static int[] sorted( final TIntArrayList ids )
+	{
+		final int[] array = ids.toArray();
+		Arrays.sort( array );
+		return array;
+	}
+}
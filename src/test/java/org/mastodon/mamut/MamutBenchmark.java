@@ -0,0 +1,357 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+import org.scijava.log.LogLevel;
+
+/**
+ * Benchmarks the hot paths of the {@link Mamut} scripting API on synthetic
+ * models of configurable size, and detection and linking on the sample
+ * dataset.
+ * <p>
+ * Operations that do not modify the model run on a shared project. Operations
+ * that remove or create objects are measured as single shots, on a project
+ * refilled before each iteration.
+ * <p>
+ * Run with <code>mvn -Pbenchmarks test-compile exec:exec</code>. Arguments:
+ * the file to write the results to, as JSON (defaults to
+ * <code>target/jmh-mamut.json</code>), and an optional regular expression
+ * selecting the benchmarks to run. The model size can be set with the
+ * <code>mamut.benchmark.tracks</code> and <code>mamut.benchmark.frames</code>
+ * system properties.
+ * <p>
+ * The benchmarks live in the tests of this module and are run through the
+ * <code>benchmarks</code> profile, not in a separate benchmark module: they
+ * share the test fixtures, such as {@link SyntheticModels}. The startup, save
+ * and TrackMate plugin benchmarks have their own classes, run with their
+ * <code>main</code> methods.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class MamutBenchmark
+{
+
+	private static final String DATASET = "samples/datasethdf5.xml";
+
+	private static final String EXPRESSION = "vertexFeature( 'Spot frame' ) < 10";
+
+	private static final String[] FEATURES = new String[] { "Spot N links", "Track N spots" };
+
+	@Param( { "1000" } )
+	public int nTracks;
+
+	@Param( { "100" } )
+	public int nFrames;
+
+	private Context context;
+
+	private Mamut mamut;
+
+	private File file;
+
+	@Setup( Level.Trial )
+	public void setup() throws Exception
+	{
+		context = new Context();
+		mamut = newMamut( context, nTracks, nFrames );
+		file = File.createTempFile( "mastodon-benchmark", ".mastodon" );
+		file.deleteOnExit();
+		mamut.saveAs( file.getAbsolutePath() );
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		mamut.close();
+		context.dispose();
+		file.delete();
+	}
+
+	@Benchmark
+	public Mamut select()
+	{
+		mamut.select( EXPRESSION );
+		return mamut;
+	}
+
+	@Benchmark
+	public Mamut tagSelectionWith()
+	{
+		mamut.select( EXPRESSION );
+		mamut.tagSelectionWith( "Benchmark", "A" );
+		return mamut;
+	}
+
+	@Benchmark
+	public Mamut computeFeatures()
+	{
+		mamut.computeFeatures( true, FEATURES );
+		return mamut;
+	}
+
+	@Benchmark
+	public Mamut info()
+	{
+		mamut.info();
+		return mamut;
+	}
+
+	@Benchmark
+	public Mamut echo()
+	{
+		mamut.echo();
+		return mamut;
+	}
+
+	@Benchmark
+	public boolean save()
+	{
+		return mamut.saveAs( file.getAbsolutePath() );
+	}
+
+	@Benchmark
+	public int open() throws Exception
+	{
+		final Mamut opened = Mamut.openHeadless( file.getAbsolutePath(), context );
+		try
+		{
+			return opened.getModel().getGraph().vertices().size();
+		}
+		finally
+		{
+			opened.close();
+		}
+	}
+
+	/**
+	 * A project refilled before each iteration, for the operations that
+	 * remove spots and links.
+	 */
+	@State( Scope.Benchmark )
+	public static class Edited
+	{
+
+		@Param( { "1000" } )
+		public int nTracks;
+
+		@Param( { "100" } )
+		public int nFrames;
+
+		private Context context;
+
+		private Mamut mamut;
+
+		@Setup( Level.Trial )
+		public void setup() throws Exception
+		{
+			context = new Context();
+			mamut = newMamut( context, 0, 0 );
+		}
+
+		@Setup( Level.Iteration )
+		public void refill()
+		{
+			mamut.clear();
+			SyntheticModels.addTracks( mamut.getModel(), nTracks, nFrames, 1l );
+			mamut.computeFeatures( "Spot frame" );
+			mamut.select( EXPRESSION );
+		}
+
+		@TearDown( Level.Trial )
+		public void tearDown()
+		{
+			mamut.close();
+			context.dispose();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.SingleShotTime )
+	@Measurement( iterations = 10 )
+	public Mamut deleteSelection( final Edited state )
+	{
+		state.mamut.deleteSelection();
+		return state.mamut;
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.SingleShotTime )
+	@Measurement( iterations = 10 )
+	public Mamut clear( final Edited state )
+	{
+		state.mamut.clear();
+		return state.mamut;
+	}
+
+	/**
+	 * A project on the sample dataset, cleared before each iteration.
+	 */
+	@State( Scope.Benchmark )
+	public static class Tracking
+	{
+
+		private Context context;
+
+		private Mamut mamut;
+
+		@Setup( Level.Trial )
+		public void setup() throws Exception
+		{
+			context = new Context();
+			mamut = newMamut( context, 0, 0 );
+		}
+
+		@Setup( Level.Iteration )
+		public void reset()
+		{
+			mamut.clear();
+		}
+
+		@TearDown( Level.Trial )
+		public void tearDown()
+		{
+			mamut.close();
+			context.dispose();
+		}
+	}
+
+	/**
+	 * A project on the sample dataset, cleared and detected again before each
+	 * iteration.
+	 */
+	@State( Scope.Benchmark )
+	public static class Detected
+	{
+
+		private Context context;
+
+		private Mamut mamut;
+
+		@Setup( Level.Trial )
+		public void setup() throws Exception
+		{
+			context = new Context();
+			mamut = newMamut( context, 0, 0 );
+		}
+
+		@Setup( Level.Iteration )
+		public void reset()
+		{
+			mamut.clear();
+			mamut.detect( 6., 200. );
+		}
+
+		@TearDown( Level.Trial )
+		public void tearDown()
+		{
+			mamut.close();
+			context.dispose();
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.SingleShotTime )
+	@Measurement( iterations = 10 )
+	public Mamut detect( final Tracking state )
+	{
+		state.mamut.detect( 6., 200. );
+		return state.mamut;
+	}
+
+	@Benchmark
+	@BenchmarkMode( Mode.SingleShotTime )
+	@Measurement( iterations = 10 )
+	public Mamut link( final Detected state )
+	{
+		state.mamut.link( 10., 0 );
+		return state.mamut;
+	}
+
+	/**
+	 * Creates a project on the sample dataset, with the specified number of
+	 * synthetic tracks, a tag-set and the spot frame feature, and with a
+	 * silenced logger.
+	 */
+	private static Mamut newMamut( final Context context, final int nTracks, final int nFrames ) throws Exception
+	{
+		final Mamut mamut = Mamut.newProjectHeadless( DATASET, context );
+		mamut.setLogger( mamut.getLogger().subLogger( "benchmark", LogLevel.NONE ) );
+		SyntheticModels.addTracks( mamut.getModel(), nTracks, nFrames, 1l );
+		mamut.createTag( "Benchmark", "A", "B" );
+		mamut.computeFeatures( "Spot frame" );
+		return mamut;
+	}
+
+	public static void main( final String[] args ) throws RunnerException, IOException
+	{
+		final File results = new File( args.length > 0 ? args[ 0 ] : "target/jmh-mamut.json" );
+		final File parent = results.getAbsoluteFile().getParentFile();
+		if ( !parent.exists() && !parent.mkdirs() )
+			throw new IOException( "Could not create the folder " + parent );
+
+		final ChainedOptionsBuilder options = new OptionsBuilder()
+				.include( MamutBenchmark.class.getSimpleName() + ( args.length > 1 ? "\\." + args[ 1 ] : "" ) )
+				.resultFormat( ResultFormatType.JSON )
+				.result( results.getAbsolutePath() );
+		final String tracks = System.getProperty( "mamut.benchmark.tracks" );
+		if ( tracks != null )
+			options.param( "nTracks", tracks );
+		final String frames = System.getProperty( "mamut.benchmark.frames" );
+		if ( frames != null )
+			options.param( "nFrames", frames );
+		new Runner( options.build() ).run();
+	}
+}
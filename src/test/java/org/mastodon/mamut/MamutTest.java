@@ -0,0 +1,864 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mastodon.feature.Feature;
+import org.mastodon.feature.FeatureModel;
+import org.mastodon.feature.FeatureSpec;
+import org.mastodon.feature.FeatureSpecsService;
+import org.mastodon.graph.GraphIdBimap;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.model.tag.ObjTagMap;
+import org.mastodon.model.tag.TagSetStructure.Tag;
+import org.mastodon.model.tag.TagSetStructure.TagSet;
+import org.scijava.Context;
+import org.scijava.log.AbstractLogService;
+import org.scijava.log.LogLevel;
+import org.scijava.log.LogMessage;
+
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Checks the behavior of the editing, tagging, named selection, saving and
+ * journaling methods of {@link Mamut} on synthetic tracks added to the sample
+ * dataset.
+ */
+public class MamutTest
+{
+
+	private static final String DATASET = "samples/datasethdf5.xml";
+
+	private static final int N_TRACKS = 50;
+
+	private static final int N_FRAMES = 20;
+
+	private static final String EARLY = "vertexFeature( 'Spot frame' ) < 5";
+
+	private Context context;
+
+	private Mamut mamut;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		context = new Context();
+		mamut = Mamut.newProjectHeadless( DATASET, context );
+		silence( mamut );
+		SyntheticModels.addTracks( mamut.getModel(), N_TRACKS, N_FRAMES, 1l );
+		mamut.computeFeatures( "Spot frame" );
+		mamut.createTag( "Fate", "A", "B" );
+	}
+
+	@After
+	public void tearDown()
+	{
+		mamut.close();
+		context.dispose();
+	}
+
+	@Test
+	public void testDeleteWhere()
+	{
+		final ModelGraph graph = mamut.getModel().getGraph();
+		assertTrue( mamut.deleteWhere( EARLY ) );
+		assertEquals( N_TRACKS * ( N_FRAMES - 5 ), graph.vertices().size() );
+		assertEquals( N_TRACKS * ( N_FRAMES - 6 ), graph.edges().size() );
+		for ( final Spot spot : graph.vertices() )
+			assertTrue( spot.getTimepoint() >= 5 );
+
+		// Expressions that cannot be compiled are rejected.
+		assertFalse( mamut.deleteWhere( "vertexFeature( 'Spot frame' ) > 10 + 1" ) );
+		assertEquals( N_TRACKS * ( N_FRAMES - 5 ), graph.vertices().size() );
+	}
+
+	@Test
+	public void testTagWhere()
+	{
+		assertTrue( mamut.tagWhere( EARLY, "Fate", "A" ) );
+		final ObjTagMap< Spot, Tag > tags = vertexTags( mamut, "Fate" );
+		final Tag a = tag( mamut, "Fate", "A" );
+		for ( final Spot spot : mamut.getModel().getGraph().vertices() )
+		{
+			if ( spot.getTimepoint() < 5 )
+				assertSame( a, tags.get( spot ) );
+			else
+				assertNull( tags.get( spot ) );
+		}
+		assertTrue( mamut.getSelectionModel().isEmpty() );
+		assertFalse( mamut.tagWhere( EARLY, "Fate", "C" ) );
+		assertFalse( mamut.tagWhere( EARLY, "Unknown", "A" ) );
+	}
+
+	@Test
+	public void testExportWhere() throws Exception
+	{
+		final File file = File.createTempFile( "mamut-test", ".txt" );
+		file.deleteOnExit();
+		assertTrue( mamut.exportWhere( EARLY, file.getAbsolutePath(), null ) );
+		final List< String > lines = Files.readAllLines( file.toPath(), StandardCharsets.UTF_8 );
+		assertEquals( "  Spots:", lines.get( 1 ) );
+		assertEquals( "  Links:", lines.get( 5 + N_TRACKS * 5 ) );
+		for ( int i = 5; i < 5 + N_TRACKS * 5; i++ )
+			assertTrue( Integer.parseInt( lines.get( i ).trim().split( "\\s+" )[ 2 ] ) < 5 );
+		assertTrue( mamut.getSelectionModel().isEmpty() );
+
+		assertFalse( mamut.exportWhere( "vertexFeature( 'Spot frame' ) > 10 + 1", file.getAbsolutePath(), null ) );
+		assertFalse( mamut.exportWhere( "vertexTag( 'Unknown', 'A' )", file.getAbsolutePath(), null ) );
+	}
+
+	@Test
+	public void testTagIds()
+	{
+		final Model model = mamut.getModel();
+		final TIntArrayList ids = new TIntArrayList();
+		for ( final Spot spot : model.getGraph().vertices() )
+			if ( spot.getTimepoint() == 3 )
+				ids.add( model.getGraphIdBimap().getVertexId( spot ) );
+		assertEquals( N_TRACKS, ids.size() );
+
+		// One unknown id: nothing is tagged.
+		final TIntArrayList withUnknown = new TIntArrayList( ids );
+		withUnknown.add( model.getGraph().vertices().size() + 100 );
+		assertFalse( mamut.tag( "Fate", "B", withUnknown.toArray(), new int[ 0 ] ) );
+		final ObjTagMap< Spot, Tag > tags = vertexTags( mamut, "Fate" );
+		for ( final Spot spot : model.getGraph().vertices() )
+			assertNull( tags.get( spot ) );
+
+		assertTrue( mamut.tag( "Fate", "B", ids.toArray(), new int[ 0 ] ) );
+		final Tag b = tag( mamut, "Fate", "B" );
+		for ( final Spot spot : model.getGraph().vertices() )
+			assertEquals( spot.getTimepoint() == 3 ? b : null, tags.get( spot ) );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	@Test
+	public void testStats()
+	{
+		Map< String, Object > stats = mamut.stats();
+		assertEquals( N_TRACKS * N_FRAMES, stats.get( "spots" ) );
+		assertEquals( N_TRACKS * ( N_FRAMES - 1 ), stats.get( "links" ) );
+		assertEquals( N_TRACKS, stats.get( "tracks" ) );
+		Map< Integer, Integer > perTimepoint = ( Map< Integer, Integer > ) stats.get( "spotsPerTimepoint" );
+		assertEquals( N_FRAMES, perTimepoint.size() );
+		for ( int t = 0; t < N_FRAMES; t++ )
+			assertEquals( Integer.valueOf( N_TRACKS ), perTimepoint.get( t ) );
+		Map< String, Map< String, Integer > > spotTags = ( Map< String, Map< String, Integer > > ) stats.get( "spotTags" );
+		assertEquals( Integer.valueOf( 0 ), spotTags.get( "Fate" ).get( "A" ) );
+
+		// Counts follow tagging, deletion and addition.
+		mamut.tagWhere( EARLY, "Fate", "A" );
+		mamut.deleteWhere( "vertexFeature( 'Spot frame' ) == 10" );
+		final ModelGraph graph = mamut.getModel().getGraph();
+		graph.addVertex().init( N_FRAMES + 5, new double[] { 1., 2., 3. }, 4. );
+		graph.notifyGraphChanged();
+
+		stats = mamut.stats();
+		assertEquals( N_TRACKS * ( N_FRAMES - 1 ) + 1, stats.get( "spots" ) );
+		assertEquals( N_TRACKS * ( N_FRAMES - 3 ), stats.get( "links" ) );
+		int nRoots = 0;
+		for ( final Spot spot : graph.vertices() )
+			if ( spot.incomingEdges().isEmpty() )
+				nRoots++;
+		assertEquals( 2 * N_TRACKS + 1, nRoots );
+		assertEquals( nRoots, stats.get( "tracks" ) );
+		perTimepoint = ( Map< Integer, Integer > ) stats.get( "spotsPerTimepoint" );
+		assertFalse( perTimepoint.containsKey( 10 ) );
+		assertEquals( Integer.valueOf( 1 ), perTimepoint.get( N_FRAMES + 5 ) );
+		spotTags = ( Map< String, Map< String, Integer > > ) stats.get( "spotTags" );
+		assertEquals( Integer.valueOf( N_TRACKS * 5 ), spotTags.get( "Fate" ).get( "A" ) );
+		assertEquals( Integer.valueOf( 0 ), spotTags.get( "Fate" ).get( "B" ) );
+	}
+
+	@Test
+	public void testTagInvalidIds()
+	{
+		final Model model = mamut.getModel();
+		final ModelGraph graph = model.getGraph();
+		final Spot spot = graph.vertices().iterator().next();
+		final int spotId = model.getGraphIdBimap().getVertexId( spot );
+
+		// Negative and out of range ids.
+		assertFalse( mamut.tag( "Fate", "A", new int[] { -1 }, new int[ 0 ] ) );
+		assertFalse( mamut.tag( "Fate", "A", new int[ 0 ], new int[] { graph.edges().size() + 100 } ) );
+
+		// Ids of removed objects, whose slot is free in the pool.
+		graph.remove( spot );
+		graph.notifyGraphChanged();
+		assertFalse( mamut.tag( "Fate", "A", new int[] { spotId }, new int[ 0 ] ) );
+		final Link other = graph.edges().iterator().next();
+		final int otherId = model.getGraphIdBimap().getEdgeId( other );
+		graph.remove( other );
+		graph.notifyGraphChanged();
+		assertFalse( mamut.tag( "Fate", "A", new int[ 0 ], new int[] { otherId } ) );
+		assertTagged( mamut, 0 );
+
+		// Valid ids of links.
+		final Link remaining = graph.edges().iterator().next();
+		final int remainingId = model.getGraphIdBimap().getEdgeId( remaining );
+		assertTrue( mamut.tag( "Fate", "B", new int[ 0 ], new int[] { remainingId } ) );
+		final ObjTagMap< Link, Tag > linkTags = model.getTagSetModel().getEdgeTags().tags( tagSet( mamut, "Fate" ) );
+		assertSame( tag( mamut, "Fate", "B" ), linkTags.get( remaining ) );
+	}
+
+	@Test
+	public void testNamedSelection()
+	{
+		assertFalse( mamut.defineSelection( "bad", "vertexFeature( 'Spot frame' ) > 10 + 1" ) );
+		assertTrue( mamut.defineSelection( "a", "vertexTag( 'Fate', 'A' )" ) );
+		assertTrue( mamut.getSelectionNames().contains( "a" ) );
+		mamut.useSelection( "a" );
+		assertTrue( mamut.getSelectionModel().isEmpty() );
+
+		// Tagging updates the named selection.
+		mamut.tagWhere( EARLY, "Fate", "A" );
+		mamut.useSelection( "a" );
+		assertEquals( N_TRACKS * 5, mamut.getSelectionModel().getSelectedVertices().size() );
+
+		// So does deleting.
+		mamut.resetSelection();
+		mamut.deleteWhere( "vertexFeature( 'Spot frame' ) < 2" );
+		mamut.useSelection( "a" );
+		assertEquals( N_TRACKS * 3, mamut.getSelectionModel().getSelectedVertices().size() );
+
+		mamut.removeSelection( "a" );
+		assertFalse( mamut.getSelectionNames().contains( "a" ) );
+	}
+
+	@Test
+	public void testNamedSelectionUpdates()
+	{
+		final String[] expressions = new String[] {
+				"vertexFeature( 'Spot position', 'X' ) < 500",
+				"vertexTag( 'Fate', 'A' ) | edgeTag( 'Fate', 'B' )",
+				EARLY };
+		mamut.computeFeatures( "Spot position" );
+		for ( int i = 0; i < expressions.length; i++ )
+			assertTrue( mamut.defineSelection( "s" + i, expressions[ i ] ) );
+		assertSameAsSelect( expressions );
+
+		// Moved spots.
+		final Model model = mamut.getModel();
+		final ModelGraph graph = model.getGraph();
+		int n = 0;
+		for ( final Spot spot : graph.vertices() )
+		{
+			spot.setPosition( 1000. - spot.getDoublePosition( 0 ), 0 );
+			if ( ++n == N_TRACKS )
+				break;
+		}
+		model.setUndoPoint();
+		assertSameAsSelect( expressions );
+
+		// Tags of spots and links.
+		mamut.tagWhere( "vertexFeature( 'Spot frame' ) == 7", "Fate", "A" );
+		final Link link = graph.edges().iterator().next();
+		assertTrue( mamut.tag( "Fate", "B", new int[ 0 ], new int[] { model.getGraphIdBimap().getEdgeId( link ) } ) );
+		assertSameAsSelect( expressions );
+
+		// Added and removed objects, and recomputed features.
+		final Spot added = graph.addVertex().init( 2, new double[] { 10., 10., 10. }, 4. );
+		graph.addEdge( graph.vertices().iterator().next(), added ).init();
+		graph.notifyGraphChanged();
+		mamut.deleteWhere( "vertexFeature( 'Spot frame' ) == 3" );
+		mamut.computeFeatures( true, "Spot frame" );
+		assertSameAsSelect( expressions );
+	}
+
+	@Test
+	public void testFeatureDirtySet()
+	{
+		final String[] keys = new String[] { "Spot position", "Spot N links" };
+		final int nSpots = N_TRACKS * N_FRAMES;
+
+		// Features never computed are entirely dirty.
+		mamut.computeFeatures( keys );
+		assertCounts( keys, nSpots, 0 );
+
+		// Nothing changed: the features are skipped and kept as they are.
+		final FeatureModel featureModel = mamut.getModel().getFeatureModel();
+		final FeatureSpec< ?, ? > position = context.getService( FeatureSpecsService.class ).getSpec( keys[ 0 ] );
+		final Feature< ? > feature = featureModel.getFeature( position );
+		assertNotNull( feature );
+		mamut.computeFeatures( keys );
+		assertCounts( keys, 0, nSpots );
+		assertSame( feature, featureModel.getFeature( position ) );
+
+		// A moved spot is dirty.
+		final ModelGraph graph = mamut.getModel().getGraph();
+		final Spot spot = graph.vertices().iterator().next();
+		spot.setPosition( spot.getDoublePosition( 0 ) + 10., 0 );
+		mamut.getModel().setUndoPoint();
+		mamut.computeFeatures( keys );
+		assertCounts( keys, 1, nSpots - 1 );
+
+		// A new link makes the whole track of its spots dirty.
+		final Spot added = graph.addVertex().init( N_FRAMES, new double[] { 10., 10., 10. }, 4. );
+		graph.addEdge( spot, added ).init();
+		graph.notifyGraphChanged();
+		mamut.computeFeatures( keys );
+		assertCounts( keys, N_FRAMES + 1, nSpots - N_FRAMES );
+
+		// Forced computation recomputes everything.
+		mamut.computeFeatures( true, keys );
+		assertCounts( keys, nSpots + 1, 0 );
+		final Map< String, Object > stats = mamut.featureStats();
+		assertEquals( Long.valueOf( 2 * ( nSpots + 1 ) ), stats.get( "estimatedRecomputed" ) );
+		assertEquals( Long.valueOf( 0 ), stats.get( "estimatedSkipped" ) );
+	}
+
+	@Test
+	public void testSaveAndReopen() throws Exception
+	{
+		mamut.tagWhere( EARLY, "Fate", "A" );
+		final File file = tempFile();
+		assertTrue( mamut.saveAs( file.getAbsolutePath() ) );
+
+		final Mamut reopened = Mamut.openHeadless( file.getAbsolutePath(), context );
+		try
+		{
+			silence( reopened );
+			assertEquals( N_TRACKS * N_FRAMES, reopened.getModel().getGraph().vertices().size() );
+			assertEquals( N_TRACKS * ( N_FRAMES - 1 ), reopened.getModel().getGraph().edges().size() );
+			assertTagged( reopened, N_TRACKS * 5 );
+			reopened.select( EARLY );
+			assertEquals( N_TRACKS * 5, reopened.getSelectionModel().getSelectedVertices().size() );
+		}
+		finally
+		{
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testSaveAsync() throws Exception
+	{
+		mamut.tagWhere( EARLY, "Fate", "A" );
+		mamut.setIncrementalSave( true );
+		final File file = tempFile();
+		final Future< Boolean > saved = mamut.saveAsync( file.getAbsolutePath() );
+		assertEquals( file.getAbsoluteFile(), mamut.getProjectFile().getAbsoluteFile() );
+
+		// Edits made during the background save are journaled.
+		assertTrue( mamut.deleteWhere( "vertexFeature( 'Spot frame' ) >= 15" ) );
+		assertTrue( saved.get() );
+
+		// The saved file reflects the model when the save started.
+		Mamut reopened = Mamut.openHeadless( file.getAbsolutePath(), context );
+		try
+		{
+			silence( reopened );
+			assertEquals( N_TRACKS * N_FRAMES, reopened.getModel().getGraph().vertices().size() );
+			assertTagged( reopened, N_TRACKS * 5 );
+		}
+		finally
+		{
+			reopened.close();
+		}
+
+		assertTrue( mamut.save() );
+		reopened = Mamut.openHeadless( file.getAbsolutePath(), context );
+		try
+		{
+			silence( reopened );
+			assertEquals( N_TRACKS * 15, reopened.getModel().getGraph().vertices().size() );
+			assertEquals( N_TRACKS * 14, reopened.getModel().getGraph().edges().size() );
+			assertTagged( reopened, N_TRACKS * 5 );
+		}
+		finally
+		{
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testOffHeapFeatures() throws Exception
+	{
+		final File file = tempFile();
+		assertTrue( mamut.saveAs( file.getAbsolutePath() ) );
+
+		final File copy = tempFile();
+		final Mamut offHeap = Mamut.openHeadless( file.getAbsolutePath(), context, true );
+		try
+		{
+			silence( offHeap );
+			offHeap.select( EARLY );
+			assertEquals( N_TRACKS * 5, offHeap.getSelectionModel().getSelectedVertices().size() );
+
+			// Recomputed features are offloaded again.
+			offHeap.computeFeatures( true, "Spot frame" );
+			assertTrue( offHeap.tagWhere( EARLY, "Fate", "B" ) );
+			assertTagged( offHeap, N_TRACKS * 5 );
+			assertTrue( offHeap.saveAs( copy.getAbsolutePath() ) );
+		}
+		finally
+		{
+			offHeap.close();
+		}
+
+		// Features saved one at a time are read back on the heap.
+		final Mamut reopened = Mamut.openHeadless( copy.getAbsolutePath(), context );
+		try
+		{
+			silence( reopened );
+			reopened.select( EARLY );
+			assertEquals( N_TRACKS * 5, reopened.getSelectionModel().getSelectedVertices().size() );
+			assertTagged( reopened, N_TRACKS * 5 );
+		}
+		finally
+		{
+			reopened.close();
+		}
+	}
+
+	@Test
+	public void testOffHeapLiveFeatures() throws Exception
+	{
+		mamut.computeFeatures( "Spot position", "Spot N links" );
+		final File file = tempFile();
+		assertTrue( mamut.saveAs( file.getAbsolutePath() ) );
+
+		final Mamut offHeap = Mamut.openHeadless( file.getAbsolutePath(), context, true );
+		try
+		{
+			silence( offHeap );
+			final Model model = offHeap.getModel();
+			final ModelGraph graph = model.getGraph();
+			final String left = "vertexFeature( 'Spot position', 'X' ) < 500";
+			offHeap.select( left );
+			final int nLeft = offHeap.getSelectionModel().getSelectedVertices().size();
+
+			// Moved spots are selected from their new position.
+			Spot spot = null;
+			for ( final Spot s : offHeap.getSelectionModel().getSelectedVertices() )
+			{
+				if ( s.edges().size() == 2 )
+				{
+					spot = s;
+					break;
+				}
+			}
+			assertNotNull( spot );
+			spot.setPosition( 2000., 0 );
+			model.setUndoPoint();
+			offHeap.select( left );
+			assertEquals( nLeft - 1, offHeap.getSelectionModel().getSelectedVertices().size() );
+			assertFalse( offHeap.getSelectionModel().isSelected( spot ) );
+
+			// New spots have a frame, and links change the number of links.
+			final Spot added = graph.addVertex().init( 2, new double[] { 10., 10., 10. }, 4. );
+			graph.addEdge( spot, added ).init();
+			graph.notifyGraphChanged();
+			offHeap.select( EARLY );
+			assertEquals( N_TRACKS * 5 + 1, offHeap.getSelectionModel().getSelectedVertices().size() );
+			assertTrue( offHeap.getSelectionModel().isSelected( added ) );
+			offHeap.select( "vertexFeature( 'Spot N links' ) == 3" );
+			assertEquals( 1, offHeap.getSelectionModel().getSelectedVertices().size() );
+			assertTrue( offHeap.getSelectionModel().isSelected( spot ) );
+		}
+		finally
+		{
+			offHeap.close();
+		}
+	}
+
+	@Test
+	public void testMetricsOpen()
+	{
+		// The time spent opening is recorded when metrics get enabled.
+		final Metrics metrics = mamut.getMetrics();
+		metrics.setEnabled( true );
+		metrics.setEnabled( true );
+		assertEquals( 1l, ( ( Number ) metrics.get( "open" ).get( "count" ) ).longValue() );
+		assertEquals( mamut.getStartupTime(), ( ( Number ) metrics.get( "open" ).get( "max" ) ).longValue() );
+	}
+
+	@Test
+	public void testJournal() throws Exception
+	{
+		final File file = tempFile();
+		final File journalFile = ProjectJournal.journalFile( file );
+		mamut.setIncrementalSave( true );
+		assertTrue( mamut.saveAs( file.getAbsolutePath() ) );
+		final long headerSize = journalFile.length();
+		final long projectSize = file.length();
+		final long projectModified = file.lastModified();
+
+		// Spots, links, shapes, labels and tags.
+		assertTrue( mamut.tagWhere( EARLY, "Fate", "A" ) );
+		final Model model = mamut.getModel();
+		final ModelGraph graph = model.getGraph();
+		final Spot a = graph.addVertex().init( 0, new double[] { 1., 2., 3. }, 4. );
+		final Spot b = graph.addVertex().init( 1, new double[] { 2., 2., 3. }, 4. );
+		final Link ab = graph.addEdge( a, b ).init();
+		a.setLabel( "journaled" );
+		b.setPosition( 10., 0 );
+		for ( final Spot spot : graph.vertices() )
+		{
+			if ( spot.getTimepoint() == N_FRAMES - 1 )
+			{
+				graph.remove( spot );
+				break;
+			}
+		}
+		graph.notifyGraphChanged();
+		final int linkId = model.getGraphIdBimap().getEdgeId( ab );
+		assertTrue( mamut.tag( "Fate", "B", new int[ 0 ], new int[] { linkId } ) );
+
+		assertTrue( mamut.save() );
+		assertEquals( projectSize, file.length() );
+		assertEquals( projectModified, file.lastModified() );
+		assertTrue( journalFile.length() > headerSize );
+
+		final Mamut reopened = Mamut.openHeadless( file.getAbsolutePath(), context );
+		try
+		{
+			silence( reopened );
+			final ModelGraph rgraph = reopened.getModel().getGraph();
+			assertEquals( N_TRACKS * N_FRAMES + 1, rgraph.vertices().size() );
+			assertEquals( N_TRACKS * ( N_FRAMES - 1 ), rgraph.edges().size() );
+			assertTagged( reopened, N_TRACKS * 5 );
+			Spot ra = null;
+			for ( final Spot spot : rgraph.vertices() )
+				if ( spot.getLabel().equals( "journaled" ) )
+					ra = spot;
+			assertNotNull( ra );
+			assertEquals( 3., ra.getDoublePosition( 2 ), 0. );
+			assertEquals( 1, ra.outgoingEdges().size() );
+			final Link rab = ra.outgoingEdges().iterator().next();
+			final Spot rb = rab.getTarget();
+			assertEquals( 10., rb.getDoublePosition( 0 ), 0. );
+			final ObjTagMap< Link, Tag > linkTags = reopened.getModel().getTagSetModel().getEdgeTags().tags( tagSet( reopened, "Fate" ) );
+			assertSame( tag( reopened, "Fate", "B" ), linkTags.get( rab ) );
+
+			// Feature values are not journaled: the next save is a full save.
+			reopened.computeFeatures( true, "Spot frame" );
+			assertTrue( reopened.deleteWhere( "vertexFeature( 'Spot frame' ) < 1" ) );
+			assertTrue( reopened.save() );
+			assertEquals( headerSize, journalFile.length() );
+
+			// So is a save past the compaction threshold.
+			reopened.setJournalCompactionThreshold( headerSize );
+			rb.setPosition( 20., 0 );
+			reopened.getModel().setUndoPoint();
+			assertTrue( reopened.save() );
+			assertEquals( headerSize, journalFile.length() );
+		}
+		finally
+		{
+			reopened.close();
+		}
+
+		final Mamut compacted = Mamut.openHeadless( file.getAbsolutePath(), context );
+		try
+		{
+			silence( compacted );
+			final ModelGraph cgraph = compacted.getModel().getGraph();
+			assertEquals( N_TRACKS * ( N_FRAMES - 1 ), cgraph.vertices().size() );
+			boolean moved = false;
+			for ( final Spot spot : cgraph.vertices() )
+				moved |= spot.getDoublePosition( 0 ) == 20.;
+			assertTrue( moved );
+		}
+		finally
+		{
+			compacted.close();
+		}
+	}
+
+	@Test
+	public void testExportColumns() throws Exception
+	{
+		mamut.tagWhere( EARLY, "Fate", "A" );
+		final File file = File.createTempFile( "mamut-test", ".mcol" );
+		file.deleteOnExit();
+		assertTrue( mamut.exportColumns( file.getAbsolutePath() ) );
+
+		final ByteBuffer in = ByteBuffer.wrap( Files.readAllBytes( file.toPath() ) ).order( ByteOrder.LITTLE_ENDIAN );
+		assertEquals( 0x4D434F4C, in.getInt() );
+		assertEquals( 1, in.getInt() );
+		assertEquals( 2, in.getInt() );
+
+		final Map< String, double[] > spots = readTable( in, "spots" );
+		final int nSpots = N_TRACKS * N_FRAMES;
+		final double[] frames = spots.get( "frame" );
+		final double[] fates = spots.get( "Fate" );
+		assertEquals( nSpots, frames.length );
+		for ( int r = 0; r < nSpots; r++ )
+		{
+			assertEquals( 5., spots.get( "radius" )[ r ], 1e-9 );
+			assertEquals( frames[ r ] < 5 ? 0. : -1., fates[ r ], 0. );
+		}
+
+		final Map< String, double[] > links = readTable( in, "links" );
+		final double[] sources = links.get( "source" );
+		final double[] targets = links.get( "target" );
+		assertEquals( N_TRACKS * ( N_FRAMES - 1 ), sources.length );
+		for ( int r = 0; r < sources.length; r++ )
+			assertEquals( frames[ ( int ) sources[ r ] ] + 1., frames[ ( int ) targets[ r ] ], 0. );
+		assertFalse( in.hasRemaining() );
+	}
+
+	@Test
+	public void testEcho() throws Exception
+	{
+		final StringBuilder echoed = collect( mamut );
+		mamut.echo();
+		final StringWriter written = new StringWriter();
+		assertTrue( mamut.writeTable( written, null, null ) );
+		assertEquals( written.toString(), echoed.toString() );
+
+		final String[] lines = echoed.toString().split( "\n" );
+		assertTrue( lines[ 0 ].startsWith( "Data model #" ) );
+		assertEquals( "  Spots:", lines[ 1 ] );
+		assertTrue( lines[ 2 ].matches( "\\s+Id\\s+Label\\s+Frame\\s+X\\s+Y\\s+Z.*" ) );
+		final int spotRows = 5;
+		final int linksHeader = spotRows + N_TRACKS * N_FRAMES;
+		assertEquals( "  Links:", lines[ linksHeader ] );
+		assertTrue( lines[ linksHeader + 1 ].matches( "\\s+Id\\s+Source Id\\s+Target Id.*" ) );
+		assertEquals( linksHeader + 4 + N_TRACKS * ( N_FRAMES - 1 ), lines.length );
+
+		// Rows follow the graph iteration order and the dump layout.
+		final Spot first = mamut.getModel().getGraph().vertices().iterator().next();
+		final String row = String.format( "  %9d  %9s  %6d  %9.1f  %9.1f  %9.1f",
+				mamut.getModel().getGraphIdBimap().getVertexId( first ), first.getLabel(), first.getTimepoint(),
+				first.getDoublePosition( 0 ), first.getDoublePosition( 1 ), first.getDoublePosition( 2 ) );
+		assertTrue( lines[ spotRows ].startsWith( row ) );
+
+		// Limited number of rows.
+		echoed.setLength( 0 );
+		mamut.echo( 3 );
+		assertEquals( spotRows + 3 + 4 + 3, echoed.toString().split( "\n" ).length );
+
+		// Column filter and selection expression.
+		final StringWriter filtered = new StringWriter();
+		assertTrue( mamut.writeTable( filtered, Collections.emptyList(), EARLY ) );
+		final String[] filteredLines = filtered.toString().split( "\n" );
+		assertEquals( "  Links:", filteredLines[ spotRows + N_TRACKS * 5 ] );
+		assertFalse( filteredLines[ 2 ].contains( "Spot frame" ) );
+		assertTrue( mamut.getSelectionModel().isEmpty() );
+	}
+
+	/**
+	 * Sends the info messages of the specified instance to the returned
+	 * builder.
+	 */
+	private static StringBuilder collect( final Mamut mamut )
+	{
+		final StringBuilder str = new StringBuilder();
+		mamut.setLogger( new AbstractLogService()
+		{
+			@Override
+			protected void messageLogged( final LogMessage message )
+			{
+				if ( message.level() == LogLevel.INFO )
+					str.append( message.text() );
+			}
+		} );
+		return str;
+	}
+
+	/**
+	 * Checks that each named selection <code>s&lt;i&gt;</code> selects the
+	 * same spots and links as a full evaluation of its expression.
+	 */
+	@SuppressWarnings( "unchecked" )
+	private void assertCounts( final String[] keys, final int recomputed, final int skipped )
+	{
+		final Map< String, Object > stats = mamut.featureStats();
+		for ( final String key : keys )
+		{
+			final Map< String, Integer > counts = ( Map< String, Integer > ) stats.get( key );
+			assertEquals( key, Integer.valueOf( recomputed ), counts.get( "estimatedRecomputed" ) );
+			assertEquals( key, Integer.valueOf( skipped ), counts.get( "estimatedSkipped" ) );
+		}
+	}
+
+	private void assertSameAsSelect( final String[] expressions )
+	{
+		final SelectionModel< Spot, Link > selection = mamut.getSelectionModel();
+		final GraphIdBimap< Spot, Link > idmap = mamut.getModel().getGraphIdBimap();
+		for ( int i = 0; i < expressions.length; i++ )
+		{
+			mamut.select( expressions[ i ] );
+			final int[][] expected = selectedIds( selection, idmap );
+			mamut.useSelection( "s" + i );
+			final int[][] actual = selectedIds( selection, idmap );
+			assertArrayEquals( "Spots of " + expressions[ i ], expected[ 0 ], actual[ 0 ] );
+			assertArrayEquals( "Links of " + expressions[ i ], expected[ 1 ], actual[ 1 ] );
+		}
+		mamut.resetSelection();
+	}
+
+	private static int[][] selectedIds( final SelectionModel< Spot, Link > selection, final GraphIdBimap< Spot, Link > idmap )
+	{
+		final TIntArrayList vertices = new TIntArrayList();
+		for ( final Spot spot : selection.getSelectedVertices() )
+			vertices.add( idmap.getVertexId( spot ) );
+		final TIntArrayList edges = new TIntArrayList();
+		for ( final Link link : selection.getSelectedEdges() )
+			edges.add( idmap.getEdgeId( link ) );
+		vertices.sort();
+		edges.sort();
+		return new int[][] { vertices.toArray(), edges.toArray() };
+	}
+
+	private static void silence( final Mamut mamut )
+	{
+		mamut.setLogger( mamut.getLogger().subLogger( "test", LogLevel.NONE ) );
+	}
+
+	private static File tempFile() throws Exception
+	{
+		final File file = File.createTempFile( "mamut-test", ".mastodon" );
+		file.deleteOnExit();
+		ProjectJournal.journalFile( file ).deleteOnExit();
+		return file;
+	}
+
+	/**
+	 * Reads a table of a columnar export. Values of int, double and dictionary
+	 * columns are returned as doubles, string columns are skipped. Checks the
+	 * dictionary of the 'Fate' tag-set.
+	 */
+	private static Map< String, double[] > readTable( final ByteBuffer in, final String name )
+	{
+		assertEquals( name, readString( in ) );
+		final int nRows = in.getInt();
+		final int nColumns = in.getInt();
+		final String[] names = new String[ nColumns ];
+		final byte[] types = new byte[ nColumns ];
+		for ( int c = 0; c < nColumns; c++ )
+		{
+			names[ c ] = readString( in );
+			readString( in );
+			types[ c ] = in.get();
+			if ( types[ c ] == 3 )
+			{
+				final List< String > dictionary = new ArrayList<>();
+				final int n = in.getInt();
+				for ( int i = 0; i < n; i++ )
+					dictionary.add( readString( in ) );
+				if ( names[ c ].equals( "Fate" ) )
+					assertEquals( Arrays.asList( "A", "B" ), dictionary );
+			}
+		}
+		final Map< String, double[] > table = new LinkedHashMap<>();
+		for ( int c = 0; c < nColumns; c++ )
+		{
+			final double[] values = new double[ nRows ];
+			for ( int r = 0; r < nRows; r++ )
+			{
+				if ( types[ c ] == 2 )
+					values[ r ] = in.getDouble();
+				else if ( types[ c ] == 4 )
+					values[ r ] = readString( in ).isEmpty() ? 0. : 1.;
+				else
+					values[ r ] = in.getInt();
+			}
+			table.put( names[ c ], values );
+		}
+		return table;
+	}
+
+	private static String readString( final ByteBuffer in )
+	{
+		final byte[] bytes = new byte[ in.getInt() ];
+		in.get( bytes );
+		return new String( bytes, StandardCharsets.UTF_8 );
+	}
+
+	/**
+	 * Checks that the spots of the first 5 frames, and only them, are tagged
+	 * in the 'Fate' tag-set.
+	 */
+	private static void assertTagged( final Mamut mamut, final int expected )
+	{
+		final ObjTagMap< Spot, Tag > tags = vertexTags( mamut, "Fate" );
+		int n = 0;
+		for ( final Spot spot : mamut.getModel().getGraph().vertices() )
+		{
+			if ( tags.get( spot ) != null )
+			{
+				assertTrue( spot.getTimepoint() < 5 );
+				n++;
+			}
+		}
+		assertEquals( expected, n );
+	}
+
+	private static TagSet tagSet( final Mamut mamut, final String name )
+	{
+		for ( final TagSet tagSet : mamut.getModel().getTagSetModel().getTagSetStructure().getTagSets() )
+			if ( tagSet.getName().equals( name ) )
+				return tagSet;
+		throw new AssertionError( "No tag-set " + name );
+	}
+
+	private static Tag tag( final Mamut mamut, final String tagSetName, final String label )
+	{
+		for ( final Tag tag : tagSet( mamut, tagSetName ).getTags() )
+			if ( tag.label().equals( label ) )
+				return tag;
+		throw new AssertionError( "No tag " + label );
+	}
+
+	private static ObjTagMap< Spot, Tag > vertexTags( final Mamut mamut, final String tagSetName )
+	{
+		return mamut.getModel().getTagSetModel().getVertexTags().tags( tagSet( mamut, tagSetName ) );
+	}
+}
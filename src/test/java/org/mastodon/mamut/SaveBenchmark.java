@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.model.Spot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.scijava.Context;
+import org.scijava.log.LogLevel;
+
+/**
+ * Compares incremental saves, appending to the journal of the project, with
+ * full saves, after a small edit. Each save is measured as a single shot.
+ * <p>
+ * The size of the journal is printed at the end of the trial.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.SingleShotTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 10 )
+@Fork( 1 )
+public class SaveBenchmark
+{
+
+	private static final String DATASET = "samples/datasethdf5.xml";
+
+	@Param( { "1000" } )
+	public int nTracks;
+
+	@Param( { "100" } )
+	public int nFrames;
+
+	@Param( { "true", "false" } )
+	public boolean incremental;
+
+	private Context context;
+
+	private Mamut mamut;
+
+	private File file;
+
+	private int iteration = 0;
+
+	@Setup( Level.Trial )
+	public void setup() throws Exception
+	{
+		context = new Context();
+		mamut = Mamut.newProjectHeadless( DATASET, context );
+		mamut.setLogger( mamut.getLogger().subLogger( "benchmark", LogLevel.NONE ) );
+		SyntheticModels.addTracks( mamut.getModel(), nTracks, nFrames, 1l );
+		mamut.createTag( "Benchmark", "A", "B" );
+		mamut.computeFeatures( "Spot frame" );
+		file = File.createTempFile( "mastodon-benchmark", ".mastodon" );
+		file.deleteOnExit();
+		ProjectJournal.journalFile( file ).deleteOnExit();
+		mamut.setIncrementalSave( incremental );
+		mamut.saveAs( file.getAbsolutePath() );
+	}
+
+	/**
+	 * Tags the spots of one frame and moves one spot.
+	 */
+	@Setup( Level.Iteration )
+	public void edit()
+	{
+		final int i = iteration++;
+		mamut.tagWhere( "vertexFeature( 'Spot frame' ) == " + ( i % Math.max( 1, nFrames ) ), "Benchmark", i % 2 == 0 ? "A" : "B" );
+		final Spot spot = mamut.getModel().getGraph().vertices().iterator().next();
+		spot.setPosition( spot.getDoublePosition( 0 ) + 1., 0 );
+		mamut.getModel().setUndoPoint();
+	}
+
+	@TearDown( Level.Trial )
+	public void tearDown()
+	{
+		final File journal = ProjectJournal.journalFile( file );
+		System.out.println( String.format( "Project file: %d bytes, journal: %d bytes.", file.length(), journal.length() ) );
+		mamut.close();
+		context.dispose();
+		journal.delete();
+		file.delete();
+	}
+
+	@Benchmark
+	public boolean save()
+	{
+		return mamut.save();
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( SaveBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.mamut.selectioncreator.SelectionParser;
+import org.mastodon.model.DefaultSelectionModel;
+import org.mastodon.model.SelectionModel;
+import org.mastodon.tracking.mamut.detection.DetectionQualityFeature;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the evaluation of a selection expression by the selection creator
+ * parser with the compiled evaluation used in {@link Mamut#select(String)}.
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class SelectionBenchmark
+{
+
+	private static final String EXPRESSION = "vertexFeature( 'Detection quality' ) > 0.5 & vertexFeature( 'Detection quality' ) < 0.9";
+
+	@Param( { "1000" } )
+	public int nTracks;
+
+	@Param( { "1000" } )
+	public int nFrames;
+
+	@Param( { "1", "4" } )
+	public int numThreads;
+
+	private Model model;
+
+	private SelectionModel< Spot, Link > selection;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		model = SyntheticModels.create( nTracks, nFrames );
+		final ModelGraph graph = model.getGraph();
+		final DetectionQualityFeature quality = DetectionQualityFeature.getOrRegister(
+				model.getFeatureModel(), graph.vertices().getRefPool() );
+		final Random ran = new Random( 1l );
+		for ( final Spot spot : graph.vertices() )
+			quality.set( spot, ran.nextDouble() );
+		selection = new DefaultSelectionModel<>( graph, graph.getGraphIdBimap() );
+	}
+
+	@Benchmark
+	public int parser()
+	{
+		final SelectionParser< Spot, Link > parser = new SelectionParser<>( model.getGraph(), model.getGraphIdBimap(),
+				model.getTagSetModel(), model.getFeatureModel(), selection );
+		parser.parse( EXPRESSION );
+		return selection.getSelectedVertices().size();
+	}
+
+	@Benchmark
+	public int compiled()
+	{
+		final CompiledSelection.Matches matches = CompiledSelection.compile( EXPRESSION ).evaluate( model, numThreads, nFrames - 1 );
+		CompiledSelection.select( matches, model.getGraph(), selection );
+		return matches.vertices.size();
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		final Options options = new OptionsBuilder()
+				.include( SelectionBenchmark.class.getSimpleName() )
+				.build();
+		new Runner( options ).run();
+	}
+}
@@ -0,0 +1,109 @@
+/*-
+ * #%L
+ * Mastodon
+ * %%
+ * Copyright (C) 2014 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.mamut;
+
+import java.util.Random;
+
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Builds synthetic data models, made of straight tracks drifting in a box,
+ * used in benchmarks.
+ */
+public class SyntheticModels
+{
+
+	/**
+	 * Adds tracks to the specified model. Each track has one spot per frame,
+	 * linked to the spot of the previous frame.
+	 *
+	 * @param model
+	 *            the model to add tracks to.
+	 * @param nTracks
+	 *            the number of tracks to create.
+	 * @param nFrames
+	 *            the number of frames, that is the number of spots per track.
+	 * @param seed
+	 *            the seed of the random generator used for positions.
+	 */
+	public static void addTracks( final Model model, final int nTracks, final int nFrames, final long seed )
+	{
+		final Random ran = new Random( seed );
+		final ModelGraph graph = model.getGraph();
+		final Spot source = graph.vertexRef();
+		final Spot target = graph.vertexRef();
+		final Link eref = graph.edgeRef();
+		final double[] pos = new double[ 3 ];
+		graph.getLock().writeLock().lock();
+		try
+		{
+			for ( int i = 0; i < nTracks; i++ )
+			{
+				for ( int d = 0; d < 3; d++ )
+					pos[ d ] = 1000. * ran.nextDouble();
+				graph.addVertex( source ).init( 0, pos, 5. );
+				for ( int t = 1; t < nFrames; t++ )
+				{
+					for ( int d = 0; d < 3; d++ )
+						pos[ d ] += ran.nextGaussian();
+					graph.addVertex( target ).init( t, pos, 5. );
+					graph.addEdge( source, target, eref ).init();
+					source.refTo( target );
+				}
+			}
+		}
+		finally
+		{
+			graph.getLock().writeLock().unlock();
+			graph.releaseRef( source );
+			graph.releaseRef( target );
+			graph.releaseRef( eref );
+		}
+		graph.notifyGraphChanged();
+	}
+
+	/**
+	 * Creates a new model with the specified number of tracks.
+	 *
+	 * @param nTracks
+	 *            the number of tracks to create.
+	 * @param nFrames
+	 *            the number of frames, that is the number of spots per track.
+	 * @return a new model.
+	 */
+	public static Model create( final int nTracks, final int nFrames )
+	{
+		final Model model = new Model();
+		addTracks( model, nTracks, nFrames, 1l );
+		return model;
+	}
+}